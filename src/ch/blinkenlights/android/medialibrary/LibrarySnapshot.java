@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads and writes a compact binary copy of the media library.
+ *
+ * The snapshot allows us to rebuild a lost database without parsing every
+ * file again: all rows are loaded as-is and the scanner only has to compare
+ * the stored mtimes with the files on disk.
+ */
+class LibrarySnapshot {
+	/**
+	 * Magic number at the start of every snapshot
+	 */
+	private static final int MAGIC = 0x564d4c53; // 'VMLS'
+	/**
+	 * Version of the file format (not the database schema)
+	 */
+	private static final int FORMAT_VERSION = 1;
+	/**
+	 * Tables included in the snapshot
+	 */
+	private static final String[] TABLES = {
+		MediaLibrary.TABLE_SONGS,
+		MediaLibrary.TABLE_ALBUMS,
+		MediaLibrary.TABLE_CONTRIBUTORS,
+		MediaLibrary.TABLE_CONTRIBUTORS_SONGS,
+		MediaLibrary.TABLE_GENRES,
+		MediaLibrary.TABLE_GENRES_SONGS,
+		MediaLibrary.TABLE_PLAYLISTS,
+		MediaLibrary.TABLE_PLAYLISTS_SONGS,
+		MediaLibrary.TABLE_DIRECTORIES,
+	};
+	/**
+	 * Type tags of the stored values
+	 */
+	private static final int TAG_END_OF_TABLE = 0;
+	private static final int TAG_NULL = 1;
+	private static final int TAG_LONG = 2;
+	private static final int TAG_DOUBLE = 3;
+	private static final int TAG_STRING = 4;
+	private static final int TAG_BLOB = 5;
+	/**
+	 * Marks the start of a new row
+	 */
+	private static final int TAG_ROW = 6;
+
+	/**
+	 * Writes all library tables to a snapshot file. The file is
+	 * replaced atomically, so a crash never leaves a truncated snapshot.
+	 *
+	 * @param database the database file to export
+	 * @param file the file to write
+	 * @param schemaVersion the version of the database schema
+	 */
+	static void write(File database, File file, int schemaVersion) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+
+		// The export uses its own read-only connection: Android can only begin
+		// write transactions, so a plain (deferred) transaction is started using
+		// a savepoint, which must not leak into the connection pool of the library.
+		SQLiteDatabase dbh;
+		try {
+			dbh = SQLiteDatabase.openDatabase(database.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+		} catch (SQLiteException e) {
+			throw new IOException("failed to open "+database+": "+e);
+		}
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))))) {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(schemaVersion);
+
+			// Read everything in one transaction to get a consistent copy. This
+			// only holds a read lock: the scanner may keep committing meanwhile.
+			dbh.execSQL("SAVEPOINT snapshot");
+			try {
+				for (String table : TABLES) {
+					writeTable(dbh, table, out);
+				}
+			} finally {
+				dbh.execSQL("RELEASE snapshot");
+			}
+			out.writeUTF("");
+		} finally {
+			dbh.close();
+		}
+
+		if (!tmp.renameTo(file))
+			throw new IOException("failed to rename "+tmp+" to "+file);
+	}
+
+	/**
+	 * Writes a single table
+	 */
+	private static void writeTable(SQLiteDatabase dbh, String table, DataOutputStream out) throws IOException {
+		Cursor cursor = dbh.query(table, null, null, null, null, null, null);
+		try {
+			final int columns = cursor.getColumnCount();
+			out.writeUTF(table);
+			out.writeInt(columns);
+			for (String name : cursor.getColumnNames()) {
+				out.writeUTF(name);
+			}
+
+			while (cursor.moveToNext()) {
+				out.writeByte(TAG_ROW);
+				for (int i = 0; i < columns; i++) {
+					switch (cursor.getType(i)) {
+						case Cursor.FIELD_TYPE_INTEGER:
+							out.writeByte(TAG_LONG);
+							out.writeLong(cursor.getLong(i));
+							break;
+						case Cursor.FIELD_TYPE_FLOAT:
+							out.writeByte(TAG_DOUBLE);
+							out.writeDouble(cursor.getDouble(i));
+							break;
+						case Cursor.FIELD_TYPE_STRING:
+							out.writeByte(TAG_STRING);
+							out.writeUTF(cursor.getString(i));
+							break;
+						case Cursor.FIELD_TYPE_BLOB: {
+							byte[] blob = cursor.getBlob(i);
+							out.writeByte(TAG_BLOB);
+							out.writeInt(blob.length);
+							out.write(blob);
+							break;
+						}
+						default:
+							out.writeByte(TAG_NULL);
+					}
+				}
+			}
+			out.writeByte(TAG_END_OF_TABLE);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Loads a snapshot in one transaction. Nothing is imported if the
+	 * snapshot is damaged.
+	 *
+	 * Snapshots written by a different version of the schema are imported
+	 * column by column: columns unknown to the current schema are skipped,
+	 * missing columns get their default value and all sort keys are re-computed.
+	 *
+	 * @param dbh the database to import into
+	 * @param file the snapshot to read
+	 * @param schemaVersion the version of the database schema
+	 * @return the number of imported songs
+	 */
+	static int read(SQLiteDatabase dbh, File file, int schemaVersion) throws IOException {
+		int songs = 0;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+				throw new IOException("not a library snapshot: "+file);
+			final int snapshotVersion = in.readInt();
+
+			dbh.beginTransactionNonExclusive();
+			try {
+				String table;
+				while ((table = in.readUTF()).length() != 0) {
+					int rows = readTable(dbh, table, in);
+					if (MediaLibrary.TABLE_SONGS.equals(table))
+						songs = rows;
+				}
+				if (snapshotVersion != schemaVersion) {
+					MediaSchema.rebuildSortKeys(dbh);
+					MediaSchema.rebuildSearchKeys(dbh);
+				}
+				dbh.setTransactionSuccessful();
+			} finally {
+				dbh.endTransaction();
+			}
+		}
+		return songs;
+	}
+
+	/**
+	 * Reads a single table, skipping columns and tables which do not exist (anymore)
+	 *
+	 * @return the number of imported rows
+	 */
+	private static int readTable(SQLiteDatabase dbh, String table, DataInputStream in) throws IOException {
+		HashSet<String> known = new HashSet<>();
+		Cursor cursor = dbh.rawQuery("PRAGMA table_info("+table+")", null);
+		while (cursor.moveToNext()) {
+			known.add(cursor.getString(1));
+		}
+		cursor.close();
+		// an empty set makes us skip all rows of a table we do not know
+
+		final int columns = in.readInt();
+		int[] bindIndex = new int[columns];
+		ArrayList<String> names = new ArrayList<>();
+		for (int i = 0; i < columns; i++) {
+			String name = in.readUTF();
+			if (known.contains(name)) {
+				names.add(name);
+				bindIndex[i] = names.size();
+			}
+		}
+
+		StringBuilder sql = new StringBuilder("INSERT OR REPLACE INTO "+table+" (");
+		StringBuilder values = new StringBuilder();
+		for (int i = 0; i < names.size(); i++) {
+			sql.append(i == 0 ? "" : ", ").append(names.get(i));
+			values.append(i == 0 ? "?" : ", ?");
+		}
+		sql.append(") VALUES (").append(values).append(")");
+
+		int rows = 0;
+		SQLiteStatement stmt = (names.isEmpty() ? null : dbh.compileStatement(sql.toString()));
+		try {
+			int tag;
+			while ((tag = in.readByte()) == TAG_ROW) {
+				if (stmt != null)
+					stmt.clearBindings();
+				for (int i = 0; i < columns; i++) {
+					final int index = bindIndex[i];
+					switch (in.readByte()) {
+						case TAG_NULL:
+							break;
+						case TAG_LONG: {
+							long value = in.readLong();
+							if (index != 0)
+								stmt.bindLong(index, value);
+							break;
+						}
+						case TAG_DOUBLE: {
+							double value = in.readDouble();
+							if (index != 0)
+								stmt.bindDouble(index, value);
+							break;
+						}
+						case TAG_STRING: {
+							String value = in.readUTF();
+							if (index != 0)
+								stmt.bindString(index, value);
+							break;
+						}
+						case TAG_BLOB: {
+							byte[] value = new byte[in.readInt()];
+							in.readFully(value);
+							if (index != 0)
+								stmt.bindBlob(index, value);
+							break;
+						}
+						default:
+							throw new IOException("corrupt snapshot in table "+table);
+					}
+				}
+				if (stmt != null) {
+					stmt.executeInsert();
+					rows++;
+				}
+			}
+			if (tag != TAG_END_OF_TABLE)
+				throw new IOException("corrupt snapshot in table "+table);
+		} finally {
+			if (stmt != null)
+				stmt.close();
+		}
+		return rows;
+	}
+}
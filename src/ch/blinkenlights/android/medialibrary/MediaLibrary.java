@@ -20,13 +20,22 @@ package ch.blinkenlights.android.medialibrary;
 import android.content.Context;
 import android.content.ContentValues;
 import android.database.Cursor;
-import android.database.ContentObserver;
-import android.provider.MediaStore;
 import android.os.Build;
 import android.os.Environment;
 import android.util.Log;
+import android.util.LruCache;
 
+import java.text.Collator;
+import java.text.Normalizer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 import java.io.ObjectOutputStream;
 import java.io.ObjectInputStream;
@@ -44,6 +53,8 @@ public class MediaLibrary  {
 	public static final String TABLE_GENRES_SONGS             = "genres_songs";
 	public static final String TABLE_PLAYLISTS                = "playlists";
 	public static final String TABLE_PLAYLISTS_SONGS          = "playlists_songs";
+	public static final String TABLE_DIRECTORIES              = "directories";
+	public static final String TABLE_PLAY_EVENTS              = "play_events";
 	public static final String VIEW_ARTISTS                   = "_artists";
 	public static final String VIEW_ALBUMARTISTS              = "_albumartists";
 	public static final String VIEW_COMPOSERS                 = "_composers";
@@ -56,18 +67,198 @@ public class MediaLibrary  {
 	public static final int ROLE_COMPOSER                 = 1;
 	public static final int ROLE_ALBUMARTIST              = 2;
 
+	public static final int COVER_SOURCE_UNKNOWN          = 0;
+	public static final int COVER_SOURCE_FOLDER           = 1;
+	public static final int COVER_SOURCE_EMBEDDED         = 2;
+	public static final int COVER_SOURCE_NONE             = 3;
+
 	public static final String PREFERENCES_FILE = "_prefs-v1.obj";
 
+	/**
+	 * Distance between the positions of two playlist entries
+	 * at the time they are inserted (or rebalanced).
+	 */
+	static final long PLAYLIST_POSITION_GAP = 1 << 16;
+	/**
+	 * Priority-ordered list of possible cover names
+	 */
+	private static final Pattern[] COVER_MATCHES = { Pattern.compile("(?i).+/(COVER|ALBUM)\\.(JPE?G|PNG)$"), Pattern.compile("(?i).+/(CD|FRONT|ARTWORK)\\.(JPE?G|PNG)$"), Pattern.compile("(?i).+\\.(JPE?G|PNG)$") };
+	/**
+	 * The public downloads directory of this device
+	 */
+	private static final File sDownloadsDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+
 	/**
 	 * Options used by the MediaScanner class
 	 */
 	public static class Preferences implements Serializable {
+		/**
+		 * The implicit UID of the first version of this class: it must never
+		 * change, or existing preferences can not be read anymore
+		 */
+		private static final long serialVersionUID = -5334488210707433859L;
 		public boolean forceBastp;
 		public boolean groupAlbumsByFolder;
 		public ArrayList<String> mediaFolders;
 		public ArrayList<String> blacklistedFolders;
 		int _nativeLibraryCount;
 		int _nativeLastMtime;
+		boolean _albumsGroupedByFolder;
+		ArrayList<String> _indexedMediaFolders;
+		ArrayList<String> _indexedBlacklistedFolders;
+		String _sortLocale;
+	}
+
+	/**
+	 * Describes a change of the media library: the affected tables,
+	 * the kind of change and, if known, the affected ids.
+	 * For mapping tables (such as TABLE_PLAYLISTS_SONGS) the ids are the
+	 * ids of the parent entity, eg. the playlist id.
+	 */
+	public static class ChangeSet {
+		public static final int INSERT = 0x1;
+		public static final int UPDATE = 0x2;
+		public static final int DELETE = 0x4;
+		public static final int ANY    = INSERT | UPDATE | DELETE;
+		/**
+		 * Kinds of changes per table
+		 */
+		private final HashMap<String, Integer> mKinds = new HashMap<>();
+		/**
+		 * Affected ids per table, null if unknown
+		 */
+		private final HashMap<String, HashSet<Long>> mIds = new HashMap<>();
+
+		/**
+		 * Records a change of a single row
+		 *
+		 * @param table the affected table
+		 * @param kind the kind of change, one of INSERT, UPDATE or DELETE
+		 * @param id the affected id
+		 * @return this object
+		 */
+		ChangeSet add(String table, int kind, long id) {
+			HashSet<Long> ids = mIds.get(table);
+			if (ids == null && !mIds.containsKey(table)) {
+				ids = new HashSet<>();
+				mIds.put(table, ids);
+			}
+			if (ids != null)
+				ids.add(id);
+			addKind(table, kind);
+			return this;
+		}
+
+		/**
+		 * Records a change of an unknown set of rows
+		 *
+		 * @param table the affected table
+		 * @param kind the kind of change, one of INSERT, UPDATE or DELETE
+		 * @return this object
+		 */
+		ChangeSet add(String table, int kind) {
+			mIds.put(table, null);
+			addKind(table, kind);
+			return this;
+		}
+
+		/**
+		 * Adds all changes of another change set to this one
+		 *
+		 * @param other the change set to merge
+		 */
+		void merge(ChangeSet other) {
+			for (Map.Entry<String, HashSet<Long>> entry : other.mIds.entrySet()) {
+				final String table = entry.getKey();
+				final int kind = other.mKinds.get(table);
+				if (entry.getValue() == null) {
+					add(table, kind);
+				} else {
+					for (Long id : entry.getValue())
+						add(table, kind, id);
+				}
+			}
+		}
+
+		private void addKind(String table, int kind) {
+			Integer kinds = mKinds.get(table);
+			mKinds.put(table, kind | (kinds == null ? 0 : kinds));
+		}
+
+		/**
+		 * Returns true if nothing was recorded in this change set
+		 */
+		public boolean isEmpty() {
+			return mKinds.isEmpty();
+		}
+
+		/**
+		 * Returns true if given table was changed in any way
+		 *
+		 * @param table the table to check
+		 */
+		public boolean affects(String table) {
+			return affects(table, ANY);
+		}
+
+		/**
+		 * Returns true if given table had any changes of given kinds
+		 *
+		 * @param table the table to check
+		 * @param kinds bitmask of INSERT, UPDATE and DELETE
+		 */
+		public boolean affects(String table, int kinds) {
+			Integer changed = mKinds.get(table);
+			return changed != null && (changed & kinds) != 0;
+		}
+
+		/**
+		 * Returns the ids changed in given table
+		 *
+		 * @param table the table to check
+		 * @return the ids, null if the ids are unknown or the table was not changed
+		 */
+		public Set<Long> getIds(String table) {
+			HashSet<Long> ids = mIds.get(table);
+			return (ids == null ? null : Collections.unmodifiableSet(ids));
+		}
+	}
+
+	/**
+	 * Interface to receive changes of the media library
+	 */
+	public interface LibraryObserver {
+		/**
+		 * Called after the library was changed. This is called
+		 * on the thread which modified the library.
+		 *
+		 * @param changes describes what was changed
+		 */
+		void onLibraryChange(ChangeSet changes);
+	}
+
+	/**
+	 * Statistics of the query result cache
+	 */
+	public static class QueryCacheStatistics {
+		public int hits;
+		public int misses;
+		public int size;
+		public int maxSize;
+	}
+
+	/**
+	 * The cover of an album, as found by getAlbumCover()
+	 */
+	public static class AlbumCover {
+		/**
+		 * The image file next to the songs, null if there is none
+		 */
+		public String path;
+		/**
+		 * Where the cover of this album comes from, one of COVER_SOURCE_*
+		 */
+		public int source;
 	}
 
 	/**
@@ -97,11 +288,51 @@ public class MediaLibrary  {
 	/**
 	 * The observer to call-back during database changes
 	 */
-	private static ContentObserver sContentObserver;
+	private static LibraryObserver sLibraryObserver;
 	/**
 	 * The lock we are using during object creation
 	 */
 	private static final Object[] sWait = new Object[0];
+	/**
+	 * Cache of small query results, bound to sGeneration
+	 */
+	private static final QueryCache sQueryCache = new QueryCache(1024*1024);
+	/**
+	 * Play and skip events which were not yet written to the database
+	 */
+	private static final PlayEventBuffer sPlayEvents = new PlayEventBuffer(64);
+	/**
+	 * Maximum number of seconds a play event is kept in sPlayEvents
+	 */
+	private static final long PLAY_EVENTS_FLUSH_INTERVAL = 300;
+	/**
+	 * The locale of sCollator: the default locale when this class was loaded.
+	 * Sort keys of a different locale must be re-computed, see MediaScanner.checkSortKeys()
+	 */
+	private static final Locale sCollationLocale = Locale.getDefault();
+	/**
+	 * Collator used to create sort keys, guarded by sSortKeys
+	 */
+	private static final Collator sCollator = Collator.getInstance(sCollationLocale);
+	static {
+		sCollator.setStrength(Collator.PRIMARY);
+	}
+	/**
+	 * Matches the combining marks left over by decomposing accented characters
+	 */
+	private static final Pattern sCombiningMarks = Pattern.compile("\\p{Mn}+");
+	/**
+	 * Recently created sort keys
+	 */
+	private static final LruCache<String, byte[]> sSortKeys = new LruCache<String, byte[]>(1000);
+	/**
+	 * Characters which are ignored while sorting
+	 */
+	private static final Pattern sSortPunctuation = Pattern.compile("[\\[\\]\\(\\)\"'.,?!]");
+	/**
+	 * The library generation, increased on every broadcasted change
+	 */
+	private static volatile long sGeneration;
 
 	private static MediaLibraryBackend getBackend(Context context) {
 		if (sBackend == null) {
@@ -110,6 +341,8 @@ public class MediaLibrary  {
 				if (sBackend == null) {
 					sBackend = new MediaLibraryBackend(context);
 					sScanner = new MediaScanner(context, sBackend);
+					sScanner.restoreSnapshot();
+					sScanner.checkSortKeys();
 					sScanner.startQuickScan(50);
 				}
 			}
@@ -141,6 +374,14 @@ public class MediaLibrary  {
 			if (prefs.blacklistedFolders == null) // we allow this to be empty, but it must not be null.
 				prefs.blacklistedFolders = discoverDefaultBlacklistedPaths(context);
 
+			if (prefs._indexedMediaFolders == null || prefs._indexedBlacklistedFolders == null) {
+				// Written by a version which did not record the indexed state (or a new install):
+				// the library was built using the stored settings.
+				prefs._indexedMediaFolders = new ArrayList<>(prefs.mediaFolders);
+				prefs._indexedBlacklistedFolders = new ArrayList<>(prefs.blacklistedFolders);
+				prefs._albumsGroupedByFolder = prefs.groupAlbumsByFolder;
+			}
+
 			sPreferences = prefs; // cached for frequent access
 		}
 		return prefs;
@@ -217,6 +458,13 @@ public class MediaLibrary  {
 		}
 
 		sPreferences = prefs;
+
+		// The scanner re-keys all albums in the background and updates _albumsGroupedByFolder
+		if (prefs.groupAlbumsByFolder != prefs._albumsGroupedByFolder)
+			sScanner.regroupAlbums();
+		// Same for changed media folders, which are applied without a full rescan
+		if (!prefs.mediaFolders.equals(prefs._indexedMediaFolders) || !prefs.blacklistedFolders.equals(prefs._indexedBlacklistedFolders))
+			sScanner.applyFolderRules();
 	}
 
 	/**
@@ -262,25 +510,82 @@ public class MediaLibrary  {
 
 
 	/**
-	 * Registers a new content observer for the media library
+	 * Registers a new observer for the media library
 	 *
-	 * @param observer the content observer we are going to call on changes
+	 * @param observer the observer we are going to call on changes
 	 */
-	public static void registerContentObserver(ContentObserver observer) {
-		if (sContentObserver == null) {
-			sContentObserver = observer;
+	public static void registerLibraryObserver(LibraryObserver observer) {
+		if (sLibraryObserver == null) {
+			sLibraryObserver = observer;
 		} else {
-			throw new IllegalStateException("ContentObserver was already registered");
+			throw new IllegalStateException("LibraryObserver was already registered");
 		}
 	}
 
 	/**
 	 * Broadcasts a change to the observer, which will queue and dispatch
 	 * the event to any registered observer
+	 *
+	 * @param changes describes what was changed
 	 */
-	static void notifyObserver() {
-		if (sContentObserver != null)
-			sContentObserver.onChange(true);
+	static void notifyObserver(ChangeSet changes) {
+		bumpGeneration();
+		if (sLibraryObserver != null)
+			sLibraryObserver.onLibraryChange(changes);
+	}
+
+	/**
+	 * Returns the changes caused by MediaLibraryBackend.cleanOrphanedEntries()
+	 *
+	 * @param fullCleanup the value passed to cleanOrphanedEntries
+	 * @return a new change set
+	 */
+	static ChangeSet describeOrphanCleanup(boolean fullCleanup) {
+		ChangeSet changes = new ChangeSet()
+			.add(TABLE_ALBUMS, ChangeSet.DELETE)
+			.add(TABLE_GENRES_SONGS, ChangeSet.DELETE)
+			.add(TABLE_GENRES, ChangeSet.DELETE)
+			.add(TABLE_CONTRIBUTORS_SONGS, ChangeSet.DELETE)
+			.add(TABLE_CONTRIBUTORS, ChangeSet.DELETE)
+			.add(TABLE_DIRECTORIES, ChangeSet.DELETE);
+		if (fullCleanup) {
+			changes.add(TABLE_SONGS, ChangeSet.DELETE)
+				.add(TABLE_PLAYLISTS_SONGS, ChangeSet.DELETE);
+		}
+		return changes;
+	}
+
+	/**
+	 * Invalidates all cached query results
+	 */
+	private static void bumpGeneration() {
+		synchronized(sWait) {
+			sGeneration++;
+		}
+	}
+
+	/**
+	 * Returns the current library generation. The generation increases
+	 * each time the library reports a change.
+	 *
+	 * @return the generation number
+	 */
+	public static long getLibraryGeneration() {
+		return sGeneration;
+	}
+
+	/**
+	 * Returns hit and miss counters of the query result cache
+	 *
+	 * @return a MediaLibrary.QueryCacheStatistics object
+	 */
+	public static MediaLibrary.QueryCacheStatistics describeQueryCache() {
+		MediaLibrary.QueryCacheStatistics stats = new MediaLibrary.QueryCacheStatistics();
+		stats.hits = sQueryCache.getHitCount();
+		stats.misses = sQueryCache.getMissCount();
+		stats.size = sQueryCache.getSize();
+		stats.maxSize = sQueryCache.getMaxSize();
+		return stats;
 	}
 
 	/**
@@ -297,6 +602,77 @@ public class MediaLibrary  {
 		return getBackend(context).query(false, table, projection, selection, selectionArgs, null, null, orderBy, null);
 	}
 
+	/**
+	 * Perform a media query on the database, returning at most limit rows
+	 *
+	 * @param context the context to use
+	 * @param table the table to query, one of MediaLibrary.TABLE_*
+	 * @param projection the columns to returns in this query
+	 * @param selection the selection (WHERE) to use
+	 * @param selectionArgs arguments for the selection
+	 * @param orderBy how the result should be sorted
+	 * @param limit the maximum number of rows to return
+	 */
+	public static Cursor queryLibrary(Context context, String table, String[] projection, String selection, String[] selectionArgs, String orderBy, int limit) {
+		return getBackend(context).query(false, table, projection, selection, selectionArgs, null, null, orderBy, Integer.toString(limit));
+	}
+
+	/**
+	 * Perform a media query on the database, answering it from the cache if an
+	 * identical query was done since the last change of the library.
+	 * Small results are returned as a snapshot, so the returned cursor
+	 * might not be backed by the database.
+	 *
+	 * @param context the context to use
+	 * @param table the table to query, one of MediaLibrary.TABLE_*
+	 * @param projection the columns to returns in this query
+	 * @param selection the selection (WHERE) to use
+	 * @param selectionArgs arguments for the selection
+	 * @param orderBy how the result should be sorted
+	 */
+	public static Cursor queryLibraryCached(Context context, String table, String[] projection, String selection, String[] selectionArgs, String orderBy) {
+		final String key = QueryCache.buildKey(table, projection, selection, selectionArgs, orderBy);
+		final long generation = sGeneration; // must be read before running the query
+
+		Cursor cursor = sQueryCache.get(key, generation);
+		if (cursor == null) {
+			cursor = queryLibrary(context, table, projection, selection, selectionArgs, orderBy);
+			cursor = sQueryCache.put(key, generation, cursor);
+		}
+		return cursor;
+	}
+
+	/**
+	 * Perform a grouped media query on the database, returns a cursor
+	 *
+	 * @param context the context to use
+	 * @param table the table to query, one of MediaLibrary.TABLE_*
+	 * @param projection the columns to returns in this query
+	 * @param selection the selection (WHERE) to use
+	 * @param selectionArgs arguments for the selection
+	 * @param groupBy how the result should be grouped
+	 * @param orderBy how the result should be sorted
+	 */
+	public static Cursor queryLibrary(Context context, String table, String[] projection, String selection, String[] selectionArgs, String groupBy, String orderBy) {
+		return getBackend(context).query(false, table, projection, selection, selectionArgs, groupBy, null, orderBy, null);
+	}
+
+	/**
+	 * Perform a media query on the database, returns a cursor which fetches
+	 * its rows on demand in small windows. The returned cursor may contain
+	 * more columns than requested as it always includes the columns used by orderBy.
+	 *
+	 * @param context the context to use
+	 * @param table the table to query, one of MediaLibrary.TABLE_* or VIEW_*, must have an _id column
+	 * @param projection the columns to returns in this query
+	 * @param selection the selection (WHERE) to use
+	 * @param selectionArgs arguments for the selection
+	 * @param orderBy how the result should be sorted
+	 */
+	public static Cursor queryLibraryPaginated(Context context, String table, String[] projection, String selection, String[] selectionArgs, String orderBy) {
+		return new PaginatedCursor(getBackend(context), table, projection, selection, selectionArgs, orderBy);
+	}
+
 	/**
 	 * Removes a single song from the database
 	 *
@@ -305,25 +681,61 @@ public class MediaLibrary  {
 	 * @return the number of affected rows
 	 */
 	public static int removeSong(Context context, long id) {
-		int rows = getBackend(context).delete(TABLE_SONGS, SongColumns._ID+"="+id, null);
+		return removeSongs(context, Collections.singletonList(id));
+	}
 
+	/**
+	 * Removes songs from the database in one transaction and
+	 * broadcasts a single change
+	 *
+	 * @param context the context to use
+	 * @param ids the song ids to delete
+	 * @return the number of removed songs
+	 */
+	public static int removeSongs(Context context, Collection<Long> ids) {
+		if (ids.isEmpty())
+			return 0;
+
+		int rows = getBackend(context).removeSongs(ids);
 		if (rows > 0) {
-			getBackend(context).cleanOrphanedEntries(true);
-			notifyObserver();
+			ChangeSet changes = describeOrphanCleanup(false);
+			changes.add(TABLE_PLAYLISTS_SONGS, ChangeSet.DELETE);
+			for (Long id : ids)
+				changes.add(TABLE_SONGS, ChangeSet.DELETE, id);
+			notifyObserver(changes);
 		}
 		return rows;
 	}
 
 	/**
-	 * Updates the play or skipcount of a song
+	 * Updates the play or skipcount of a song. The event is buffered
+	 * and written to the database in batches.
 	 *
 	 * @param context the context to use
 	 * @param id the song id to update
+	 * @param played true if the song was played, false if it was skipped
 	 */
 	public static void updateSongPlayCounts(Context context, long id, boolean played) {
-		final String column = played ? MediaLibrary.SongColumns.PLAYCOUNT : MediaLibrary.SongColumns.SKIPCOUNT;
-		String selection = MediaLibrary.SongColumns._ID+"="+id;
-		getBackend(context).execSQL("UPDATE "+MediaLibrary.TABLE_SONGS+" SET "+column+"="+column+"+1 WHERE "+selection);
+		final long now = System.currentTimeMillis() / 1000;
+		boolean full = sPlayEvents.add(id, played, now);
+		if (full || now - sPlayEvents.getOldestTime() >= PLAY_EVENTS_FLUSH_INTERVAL)
+			flushPlayCounts(context);
+	}
+
+	/**
+	 * Writes all buffered play and skip events to the database.
+	 * Must be called before the process may go away.
+	 *
+	 * @param context the context to use
+	 */
+	public static void flushPlayCounts(Context context) {
+		PlayEventBuffer.Events events = sPlayEvents.drain();
+		if (events.size() == 0)
+			return;
+
+		getBackend(context).writePlayEvents(events);
+		// not broadcasted, but cached results might include the counts.
+		bumpGeneration();
 	}
 
 	/**
@@ -340,7 +752,7 @@ public class MediaLibrary  {
 		long id = getBackend(context).insert(MediaLibrary.TABLE_PLAYLISTS, null, v);
 
 		if (id != -1)
-			notifyObserver();
+			notifyObserver(new ChangeSet().add(TABLE_PLAYLISTS, ChangeSet.INSERT, id));
 		return id;
 	}
 
@@ -358,7 +770,7 @@ public class MediaLibrary  {
 		boolean removed = (rows > 0);
 
 		if (removed)
-			notifyObserver();
+			notifyObserver(new ChangeSet().add(TABLE_PLAYLISTS, ChangeSet.DELETE, id));
 		return removed;
 	}
 
@@ -371,32 +783,10 @@ public class MediaLibrary  {
 	 * @return the number of added items
 	 */
 	public static int addToPlaylist(Context context, long playlistId, ArrayList<Long> ids) {
-		long pos = 0;
-		// First we need to get the position of the last item
-		String[] projection = { MediaLibrary.PlaylistSongColumns.POSITION };
-		String selection = MediaLibrary.PlaylistSongColumns.PLAYLIST_ID+"="+playlistId;
-		String order = MediaLibrary.PlaylistSongColumns.POSITION+" DESC";
-		Cursor cursor = queryLibrary(context, MediaLibrary.TABLE_PLAYLISTS_SONGS, projection, selection, null, order);
-		if (cursor.moveToFirst())
-			pos = cursor.getLong(0) + 1;
-		cursor.close();
-
-		ArrayList<ContentValues> bulk = new ArrayList<>();
-		for (Long id : ids) {
-			if (getBackend(context).getColumnFromSongId(MediaLibrary.SongColumns.MTIME, id) == 0) // no mtime? song does not exist.
-				continue;
-
-			ContentValues v = new ContentValues();
-			v.put(MediaLibrary.PlaylistSongColumns.PLAYLIST_ID, playlistId);
-			v.put(MediaLibrary.PlaylistSongColumns.SONG_ID, id);
-			v.put(MediaLibrary.PlaylistSongColumns.POSITION, pos);
-			bulk.add(v);
-			pos++;
-		}
-		int rows = getBackend(context).bulkInsert(MediaLibrary.TABLE_PLAYLISTS_SONGS, null, bulk);
+		int rows = getBackend(context).addToPlaylist(playlistId, ids);
 
 		if (rows > 0)
-			notifyObserver();
+			notifyObserver(new ChangeSet().add(TABLE_PLAYLISTS_SONGS, ChangeSet.INSERT, playlistId));
 		return rows;
 	}
 
@@ -412,7 +802,7 @@ public class MediaLibrary  {
 		int rows = getBackend(context).delete(MediaLibrary.TABLE_PLAYLISTS_SONGS, selection, selectionArgs);
 
 		if (rows > 0)
-			notifyObserver();
+			notifyObserver(new ChangeSet().add(TABLE_PLAYLISTS_SONGS, ChangeSet.DELETE));
 		return rows;
 	}
 
@@ -435,7 +825,7 @@ public class MediaLibrary  {
 		}
 
 		if (newId != -1)
-			notifyObserver();
+			notifyObserver(new ChangeSet().add(TABLE_PLAYLISTS_SONGS, ChangeSet.UPDATE, newId));
 		return newId;
 	}
 
@@ -448,39 +838,22 @@ public class MediaLibrary  {
 	 * @param to the _id of the 'repressed' element
 	 */
 	public static void movePlaylistItem(Context context, long from, long to) {
-		long fromPos, toPos, playlistId;
-
-		String[] projection = { MediaLibrary.PlaylistSongColumns.POSITION, MediaLibrary.PlaylistSongColumns.PLAYLIST_ID };
-		String selection = MediaLibrary.PlaylistSongColumns._ID+"=";
-
-		// Get playlist id and position of the 'from' item
-		Cursor cursor = queryLibrary(context, MediaLibrary.TABLE_PLAYLISTS_SONGS, projection, selection+Long.toString(from), null, null);
-		cursor.moveToFirst();
-		fromPos = cursor.getLong(0);
-		playlistId = cursor.getLong(1);
-		cursor.close();
-
-		// Get position of the target item
-		cursor = queryLibrary(context, MediaLibrary.TABLE_PLAYLISTS_SONGS, projection, selection+Long.toString(to), null, null);
-		cursor.moveToFirst();
-		toPos = cursor.getLong(0);
-		cursor.close();
-
-		// Moving down -> We actually want to be below the target
-		if (toPos > fromPos)
-			toPos++;
-
-		// shift all rows +1
-		String setArg = MediaLibrary.PlaylistSongColumns.POSITION+"="+MediaLibrary.PlaylistSongColumns.POSITION+"+1";
-		selection = MediaLibrary.PlaylistSongColumns.PLAYLIST_ID+"="+playlistId+" AND "+MediaLibrary.PlaylistSongColumns.POSITION+" >= "+toPos;
-		getBackend(context).execSQL("UPDATE "+MediaLibrary.TABLE_PLAYLISTS_SONGS+" SET "+setArg+" WHERE "+selection);
+		movePlaylistItems(context, new long[]{ from }, new long[]{ to });
+	}
 
-		ContentValues v = new ContentValues();
-		v.put(MediaLibrary.PlaylistSongColumns.POSITION, toPos);
-		selection = MediaLibrary.PlaylistSongColumns._ID+"="+from;
-		getBackend(context).update(MediaLibrary.TABLE_PLAYLISTS_SONGS, v, selection, null);
+	/**
+	 * Performs a sequence of moves in a playlist, using a single
+	 * transaction and change notification.
+	 *
+	 * @param context the context to use
+	 * @param from the _ids of the 'dragged' elements
+	 * @param to the _ids of the 'repressed' elements, must have the same length as `from'
+	 */
+	public static void movePlaylistItems(Context context, long[] from, long[] to) {
+		long playlistId = getBackend(context).movePlaylistItems(from, to);
 
-		notifyObserver();
+		if (playlistId != -1)
+			notifyObserver(new ChangeSet().add(TABLE_PLAYLISTS_SONGS, ChangeSet.UPDATE, playlistId));
 	}
 
 	/**
@@ -499,13 +872,184 @@ public class MediaLibrary  {
 	}
 
 	/**
-	 * Returns the 'key' of given string used for sorting and searching
+	 * Returns the 'key' of given string used for sorting. Keys are binary
+	 * collation keys which ignore case, accents, punctuation and leading
+	 * articles, so they can be compared using plain memcmp() by SQLite.
 	 *
 	 * @param name the string to convert
 	 * @return the the key of given name
 	 */
-	public static String keyFor(String name) {
-		return MediaStore.Audio.keyFor(name);
+	public static byte[] keyFor(String name) {
+		if (name == null)
+			name = "";
+
+		// Names repeat a lot during a scan (one album and artist per song),
+		// so keys are only computed once per distinct name.
+		synchronized(sSortKeys) {
+			byte[] key = sSortKeys.get(name);
+			if (key == null) {
+				key = sCollator.getCollationKey(stripForSort(name)).toByteArray();
+				sSortKeys.put(name, key);
+			}
+			return key;
+		}
+	}
+
+	/**
+	 * Returns the locale used to create sort keys
+	 *
+	 * @return the name of the locale, as returned by Locale.toString()
+	 */
+	static String getCollationLocale() {
+		return sCollationLocale.toString();
+	}
+
+	/**
+	 * Returns the 'key' of given string used for searching. Search keys
+	 * are lower case and without accents, so a plain LIKE on them ignores
+	 * case and accents of all scripts, not just of ASCII characters.
+	 *
+	 * @param name the string to convert
+	 * @return the search key of given name
+	 */
+	public static String searchKeyFor(String name) {
+		if (name == null)
+			return "";
+		name = Normalizer.normalize(name, Normalizer.Form.NFD);
+		return sCombiningMarks.matcher(name).replaceAll("").toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Removes everything from given name which should not affect its sort order,
+	 * this follows what MediaStore.Audio.keyFor() does.
+	 *
+	 * @param name the string to strip
+	 * @return the stripped name
+	 */
+	private static String stripForSort(String name) {
+		name = name.trim().toLowerCase();
+		if (name.startsWith("the "))
+			name = name.substring(4);
+		if (name.startsWith("an "))
+			name = name.substring(3);
+		if (name.startsWith("a "))
+			name = name.substring(2);
+		if (name.endsWith(", the") || name.endsWith(",the") ||
+		    name.endsWith(", an") || name.endsWith(",an") ||
+		    name.endsWith(", a") || name.endsWith(",a"))
+			name = name.substring(0, name.lastIndexOf(','));
+		return sSortPunctuation.matcher(name).replaceAll("").trim();
+	}
+
+	/**
+	 * Returns a fingerprint of a directory which changes whenever
+	 * files are added to it, removed from it or renamed
+	 *
+	 * @param dir the directory
+	 * @return the fingerprint, never 0
+	 */
+	public static long getDirectoryFingerprint(File dir) {
+		long fingerprint = hash63(dir.getPath() + "\n" + dir.lastModified());
+		return (fingerprint == 0 ? 1 : fingerprint);
+	}
+
+	/**
+	 * Searches a directory for the image which is most likely the cover
+	 * of the songs in it. The result is not cached, use getAlbumCoverPath()
+	 *
+	 * @param dir the directory to search
+	 * @return the path of the image, null if none was found
+	 */
+	public static String findFolderCover(File dir) {
+		// Picking files from the public downloads folder would lead to a false positive in most cases
+		if (dir.equals(sDownloadsDir))
+			return null;
+
+		File[] entries = dir.listFiles();
+		if (entries == null)
+			return null;
+
+		String bestMatchPath = null;                 // The best cover-path we found
+		int bestMatchIndex   = COVER_MATCHES.length; // The best cover-index/priority found
+		int loopCount        = 0;                    // Directory items loop counter
+		for (final File entry : entries) {
+			for (int i=0; i < bestMatchIndex ; i++) {
+				// We are checking each file entry to see if it matches a known
+				// cover pattern. We abort on first hit as the Pattern array is sorted from good->meh
+				if (COVER_MATCHES[i].matcher(entry.toString()).matches()) {
+					bestMatchIndex = i;
+					bestMatchPath = entry.toString();
+					break;
+				}
+			}
+			// Stop loop if we found the best match or if we looped 150 times
+			if (loopCount++ > 150 || bestMatchIndex == 0)
+				break;
+		}
+		return bestMatchPath;
+	}
+
+	/**
+	 * Returns the cover of an album which was recorded by the scanner.
+	 * The directory is searched again if it changed since, and the scanner
+	 * is asked to record the new result.
+	 *
+	 * @param context the context to use
+	 * @param albumId the album to look up
+	 * @param file the song we need the cover for
+	 * @return the cover of the album, never null
+	 */
+	public static AlbumCover getAlbumCover(Context context, long albumId, File file) {
+		MediaLibraryBackend backend = getBackend(context);
+		final File dir = file.getAbsoluteFile().getParentFile();
+		final long fingerprint = getDirectoryFingerprint(dir);
+		final long dirId = getDirectoryId(dir.getPath());
+		AlbumCover cover = new AlbumCover();
+		boolean record = true;
+
+		Cursor cursor = backend.query(false, TABLE_ALBUMS, new String[]{ AlbumColumns.COVER_PATH, AlbumColumns.COVER_SOURCE, AlbumColumns.COVER_FINGERPRINT, AlbumColumns.COVER_DIR_ID },
+		                              AlbumColumns._ID+"="+albumId, null, null, null, null, "1");
+		try {
+			if (cursor.moveToFirst()) {
+				if (cursor.getLong(2) == fingerprint) {
+					cover.path = cursor.getString(0);
+					cover.source = cursor.getInt(1);
+					return cover;
+				}
+				// The songs of this album are spread over several directories: the
+				// recorded one is as good as ours, so do not replace it.
+				record = (cursor.getLong(2) == 0 || cursor.getLong(3) == dirId);
+			}
+		} finally {
+			cursor.close();
+		}
+
+		cover.path = findFolderCover(dir);
+		cover.source = (cover.path != null ? COVER_SOURCE_FOLDER : COVER_SOURCE_UNKNOWN);
+		// Writing from here could block behind a running scan: the scanner does it for us
+		if (record)
+			sScanner.refreshAlbumCover(albumId, file);
+		return cover;
+	}
+
+	/**
+	 * Returns the id of a directory in the directories table
+	 *
+	 * @param path the absolute path of the directory, with or without a trailing slash
+	 * @return the id of the directory, which may or may not exist in the table
+	 */
+	public static long getDirectoryId(String path) {
+		return hash63(toDirectoryPath(path));
+	}
+
+	/**
+	 * Returns the path of a directory as stored in the directories table
+	 *
+	 * @param path the absolute path of the directory, with or without a trailing slash
+	 * @return the path, ending with a slash
+	 */
+	public static String toDirectoryPath(String path) {
+		return path.endsWith("/") ? path : path + "/";
 	}
 
 	/**
@@ -540,6 +1084,10 @@ public class MediaLibrary  {
 		 * The sortable title of this song
 		 */
 		String TITLE_SORT = "title_sort";
+		/**
+		 * The searchable title of this song
+		 */
+		String TITLE_SEARCH = "title_search";
 		/**
 		 * The position in the album of this song
 		 */
@@ -572,6 +1120,10 @@ public class MediaLibrary  {
 		 * The path to the music file
 		 */
 		String PATH = "path";
+		/**
+		 * The directory containing the music file
+		 */
+		String DIR_ID = "dir_id";
 		/**
 		 * The mtime of this item
 		 */
@@ -592,6 +1144,10 @@ public class MediaLibrary  {
 		 * The sortable title of this album
 		 */
 		String ALBUM_SORT = "album_sort";
+		/**
+		 * The searchable title of this album
+		 */
+		String ALBUM_SEARCH = "album_search";
 		/**
 		 * The primary contributor / artist reference for this album
 		 */
@@ -600,6 +1156,22 @@ public class MediaLibrary  {
 		 * The year of this album
 		 */
 		String PRIMARY_ALBUM_YEAR = "primary_album_year";
+		/**
+		 * The best image file found next to the songs of this album, may be null
+		 */
+		String COVER_PATH = "cover_path";
+		/**
+		 * Fingerprint of the directory COVER_PATH was searched in, 0 if it was never searched
+		 */
+		String COVER_FINGERPRINT = "cover_fingerprint";
+		/**
+		 * Where the cover of this album comes from, one of MediaLibrary.COVER_SOURCE_*
+		 */
+		String COVER_SOURCE = "cover_source";
+		/**
+		 * The directory COVER_FINGERPRINT belongs to
+		 */
+		String COVER_DIR_ID = "cover_dir_id";
 		/**
 		 * The mtime of this item
 		 */
@@ -620,6 +1192,10 @@ public class MediaLibrary  {
 		 * The sortable title of this contributor
 		 */
 		String _CONTRIBUTOR_SORT = "_contributor_sort";
+		/**
+		 * The searchable title of this contributor
+		 */
+		String _CONTRIBUTOR_SEARCH = "_contributor_search";
 		/**
 		 * The mtime of this item
 		 */
@@ -633,6 +1209,10 @@ public class MediaLibrary  {
 		 * ONLY IN VIEWS - the artist_sort key
 		 */
 		String ARTIST_SORT = "artist_sort";
+		/**
+		 * ONLY IN VIEWS - the artist_search key
+		 */
+		String ARTIST_SEARCH = "artist_search";
 		/**
 		 * ONLY IN VIEWS - the artist id
 		 */
@@ -646,6 +1226,10 @@ public class MediaLibrary  {
 		 * ONLY IN VIEWS - the albumartist_sort key
 		 */
 		String ALBUMARTIST_SORT = "albumartist_sort";
+		/**
+		 * ONLY IN VIEWS - the albumartist_search key
+		 */
+		String ALBUMARTIST_SEARCH = "albumartist_search";
 		/**
 		 * ONLY IN VIEWS - the albumartist id
 		 */
@@ -659,6 +1243,10 @@ public class MediaLibrary  {
 		 * ONLY IN VIEWS - the composer_sort key
 		 */
 		String COMPOSER_SORT = "composer_sort";
+		/**
+		 * ONLY IN VIEWS - the composer_search key
+		 */
+		String COMPOSER_SEARCH = "composer_search";
 		/**
 		 * ONLY IN VIEWS - the composer id
 		 */
@@ -696,6 +1284,10 @@ public class MediaLibrary  {
 		 * The sortable title of this genre
 		 */
 		String _GENRE_SORT = "_genre_sort";
+		/**
+		 * The searchable title of this genre
+		 */
+		String _GENRE_SEARCH = "_genre_search";
 	}
 
 	// Songs <-> Contributor mapping
@@ -742,6 +1334,50 @@ public class MediaLibrary  {
 		String POSITION = "position";
 	}
 
+	// Log of play and skip events
+	public interface PlayEventColumns {
+		/**
+		 * The id of this event
+		 */
+		String _ID = SongColumns._ID;
+		/**
+		 * The song this event belongs to
+		 */
+		String SONG_ID = "song_id";
+		/**
+		 * 1 if the song was played, 0 if it was skipped
+		 */
+		String PLAYED = "played";
+		/**
+		 * The time of this event in unixtime
+		 */
+		String TIME = "time";
+	}
+
+	// Directories containing songs
+	public interface DirectoryColumns {
+		/**
+		 * The id of this directory, this is the hash of its path
+		 */
+		String _ID = SongColumns._ID;
+		/**
+		 * The id of the parent directory, 0 for the root
+		 */
+		String PARENT_ID = "parent_id";
+		/**
+		 * The name of this directory, without any slashes
+		 */
+		String NAME = "name";
+		/**
+		 * The absolute path of this directory, always ending with a slash
+		 */
+		String PATH = "path";
+		/**
+		 * The mtime of this directory when it was added
+		 */
+		String MTIME = "mtime";
+	}
+
 	// Preference keys
 	public interface PreferenceColumns {
 		/**
@@ -21,9 +21,15 @@ import android.content.Context;
 import android.content.ContentValues;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.database.Cursor;
+import android.os.Build;
 import android.util.Log;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -35,16 +41,25 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 	/**
 	 * The database version we are using
 	 */
-	private static final int DATABASE_VERSION = 20170619;
+	private static final int DATABASE_VERSION = 20170628;
 	/**
 	 * on-disk file to store the database
 	 */
 	private static final String DATABASE_NAME = "media-library.db";
+	/**
+	 * on-disk file to store the library snapshot
+	 */
+	private static final String SNAPSHOT_NAME = "media-library.snapshot";
 	/**
 	 * The magic mtime to use for songs which are in PENDING_DELETION state.
 	 * This is NOT 0 as the mtime is always expected to be > 0 for existing rows
 	 */
-	private static final int PENDING_DELETION_MTIME = 1;
+	static final int PENDING_DELETION_MTIME = 1;
+	/**
+	 * The magic mtime of songs imported from the media store. Such songs are
+	 * always re-read by the next scan, but must survive cleanOrphanedEntries(true)
+	 */
+	static final int NATIVE_IMPORT_MTIME = 2;
 	/**
 	 * Regexp to detect genre queries which we can optimize
 	 */
@@ -61,6 +76,15 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 	 * Regexp to detect costy composer_id queries which we can optimize
 	 */
 	private static final Pattern sQueryMatchComposerSearch = Pattern.compile("(^|.+ )"+MediaLibrary.ContributorColumns.COMPOSER_ID+"=(\\d+)$");
+	/**
+	 * Location of the library snapshot, private to this app
+	 */
+	private final File mSnapshotFile;
+	/**
+	 * True if the database was created by this instance and
+	 * might be restored from a snapshot
+	 */
+	private boolean mFreshlyCreated;
 
 	/**
 	* Constructor for the MediaLibraryBackend helper
@@ -68,7 +92,26 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 	* @param context the context to use
 	*/
 	MediaLibraryBackend(Context context) {
-		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+		this(context, DATABASE_NAME);
+	}
+
+	/**
+	* Constructor for a MediaLibraryBackend using its own database file,
+	* such as the synthetic library of the QueryPlanCheck
+	*
+	* @param context the context to use
+	* @param name the name of the database file
+	*/
+	MediaLibraryBackend(Context context, String name) {
+		super(context, name, null, DATABASE_VERSION);
+		mSnapshotFile = new File(context.getFilesDir(), SNAPSHOT_NAME);
+
+		// Use write-ahead logging if available: This allows the scanner to commit
+		// while readers (such as library tabs) keep querying the last committed state
+		// using their own connection out of androids pool of read connections.
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			setWriteAheadLoggingEnabled(true);
+		}
 	}
 
 	/**
@@ -79,6 +122,7 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 	@Override
 	public void onCreate(SQLiteDatabase dbh) {
 		MediaSchema.createDatabaseSchema(dbh);
+		mFreshlyCreated = true;
 	}
 
 	/**
@@ -94,6 +138,78 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 		MediaSchema.upgradeDatabaseSchema(dbh, oldVersion);
 	}
 
+	/**
+	 * Checkpoints the write-ahead log, if any, into the main database file.
+	 * This is a no-op if WAL is not in use.
+	 *
+	 * @param full if true, wait for readers to finish and restart the log. Otherwise
+	 *             only copy pages which are not in use by any reader (never blocks)
+	 */
+	void checkpoint(boolean full) {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN)
+			return;
+
+		SQLiteDatabase dbh = getWritableDatabase();
+		if (dbh.isWriteAheadLoggingEnabled() == false)
+			return;
+
+		// PRAGMA wal_checkpoint returns a row, so it must be run as a query.
+		Cursor cursor = dbh.rawQuery("PRAGMA wal_checkpoint("+(full ? "RESTART" : "PASSIVE")+")", null);
+		if (cursor != null) {
+			if (cursor.moveToFirst() && DEBUG)
+				Log.v("VanillaMusic", "wal_checkpoint: busy="+cursor.getInt(0)+", log="+cursor.getInt(1)+", checkpointed="+cursor.getInt(2));
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the library which can be used by restoreSnapshot()
+	 */
+	void exportSnapshot() {
+		final File database = new File(getWritableDatabase().getPath());
+		try {
+			LibrarySnapshot.write(database, mSnapshotFile, DATABASE_VERSION);
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Failed to write library snapshot: "+e);
+		}
+	}
+
+	/**
+	 * Loads the last snapshot if the database was just created.
+	 * Should be called on a background thread.
+	 *
+	 * @return the number of restored songs
+	 */
+	int restoreSnapshot() {
+		getWritableDatabase(); // creates the database if it does not exist yet
+		if (!mFreshlyCreated || !mSnapshotFile.exists())
+			return 0;
+
+		mFreshlyCreated = false;
+		int songs = 0;
+		try {
+			songs = LibrarySnapshot.read(getWritableDatabase(), mSnapshotFile, DATABASE_VERSION);
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Failed to restore library snapshot: "+e);
+		}
+		return songs;
+	}
+
+	/**
+	 * Re-computes all sort keys, eg. after the locale used to create them
+	 * was changed. Should be called on a background thread.
+	 */
+	void rebuildSortKeys() {
+		SQLiteDatabase dbh = getWritableDatabase();
+		dbh.beginTransactionNonExclusive();
+		try {
+			MediaSchema.rebuildSortKeys(dbh);
+			dbh.setTransactionSuccessful();
+		} finally {
+			dbh.endTransaction();
+		}
+	}
+
 	/**
 	 * Returns the `long' value stored in the column of the given id.
 	 *
@@ -164,6 +280,112 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 		return result;
 	}
 
+	/**
+	 * Inserts rows into (possibly) different tables in one transaction.
+	 * Rows which already exist are left alone.
+	 *
+	 * @param tables the table of each row
+	 * @param rows the rows to insert, same size as tables
+	 */
+	void insertBatch(ArrayList<String> tables, ArrayList<ContentValues> rows) {
+		SQLiteDatabase dbh = getWritableDatabase();
+
+		dbh.beginTransactionNonExclusive();
+		try {
+			for (int i = 0; i < rows.size(); i++) {
+				dbh.insertWithOnConflict(tables.get(i), null, rows.get(i), SQLiteDatabase.CONFLICT_IGNORE);
+			}
+			dbh.setTransactionSuccessful();
+		} finally {
+			dbh.endTransaction();
+		}
+	}
+
+	/**
+	 * Stores the cover found for an album
+	 *
+	 * @param albumId the album to update
+	 * @param path the path of the cover image, null if there is none
+	 * @param source where the cover comes from, one of MediaLibrary.COVER_SOURCE_*
+	 * @param dirId the id of the directory which was searched
+	 * @param fingerprint the fingerprint of the directory which was searched
+	 */
+	void setAlbumCover(long albumId, String path, int source, long dirId, long fingerprint) {
+		SQLiteDatabase dbh = getWritableDatabase();
+		SQLiteStatement stmt = dbh.compileStatement("UPDATE "+MediaLibrary.TABLE_ALBUMS+" SET "
+			+MediaLibrary.AlbumColumns.COVER_PATH+"=?, "+MediaLibrary.AlbumColumns.COVER_SOURCE+"=?, "
+			+MediaLibrary.AlbumColumns.COVER_DIR_ID+"=?, "+MediaLibrary.AlbumColumns.COVER_FINGERPRINT+"=? WHERE "
+			+MediaLibrary.AlbumColumns._ID+"=? AND "+MediaLibrary.AlbumColumns.COVER_FINGERPRINT+"!=?");
+		if (path != null)
+			stmt.bindString(1, path);
+		stmt.bindLong(2, source);
+		stmt.bindLong(3, dirId);
+		stmt.bindLong(4, fingerprint);
+		stmt.bindLong(5, albumId);
+		stmt.bindLong(6, fingerprint);
+		stmt.executeUpdateDelete();
+		stmt.close();
+	}
+
+	/**
+	 * Adds a directory and all of its missing parents to the directories table
+	 *
+	 * @param dir the directory to add
+	 * @return the id of the directory
+	 */
+	long insertDirectory(File dir) {
+		return insertDirectory(getWritableDatabase(), dir);
+	}
+
+	/**
+	 * Adds a directory and all of its missing parents to the directories table.
+	 * This is static as it is also used while upgrading the database.
+	 *
+	 * @param dbh the writeable database handle
+	 * @param dir the directory to add
+	 * @return the id of the directory
+	 */
+	static long insertDirectory(SQLiteDatabase dbh, File dir) {
+		final long dirId = MediaLibrary.getDirectoryId(dir.getAbsolutePath());
+		ContentValues v = new ContentValues();
+
+		for (File entry = dir; entry != null; entry = entry.getParentFile()) {
+			final String path = MediaLibrary.toDirectoryPath(entry.getAbsolutePath());
+			final long id = MediaLibrary.hash63(path);
+
+			Cursor cursor = dbh.query(MediaLibrary.TABLE_DIRECTORIES, new String[]{ MediaLibrary.DirectoryColumns._ID },
+			                          MediaLibrary.DirectoryColumns._ID+"="+id, null, null, null, null);
+			boolean exists = cursor.moveToFirst();
+			cursor.close();
+			if (exists)
+				break; // so do all of its parents.
+
+			File parent = entry.getParentFile();
+			v.clear();
+			v.put(MediaLibrary.DirectoryColumns._ID,       id);
+			v.put(MediaLibrary.DirectoryColumns.PARENT_ID, parent == null ? 0 : MediaLibrary.getDirectoryId(parent.getAbsolutePath()));
+			v.put(MediaLibrary.DirectoryColumns.NAME,      entry.getName());
+			v.put(MediaLibrary.DirectoryColumns.PATH,      path);
+			v.put(MediaLibrary.DirectoryColumns.MTIME,     entry.lastModified() / 1000);
+			dbh.insert(MediaLibrary.TABLE_DIRECTORIES, null, v);
+		}
+		return dirId;
+	}
+
+	/**
+	 * Removes directories without any songs or child directories
+	 *
+	 * @param dbh the writeable database handle
+	 */
+	private void pruneDirectories(SQLiteDatabase dbh) {
+		SQLiteStatement stmt = dbh.compileStatement("DELETE FROM "+MediaLibrary.TABLE_DIRECTORIES+" WHERE "
+			+MediaLibrary.DirectoryColumns._ID+" NOT IN (SELECT "+MediaLibrary.SongColumns.DIR_ID+" FROM "+MediaLibrary.TABLE_SONGS+") AND "
+			+MediaLibrary.DirectoryColumns._ID+" NOT IN (SELECT "+MediaLibrary.DirectoryColumns.PARENT_ID+" FROM "+MediaLibrary.TABLE_DIRECTORIES+")");
+		// Each run removes one level of empty leaf directories.
+		while (stmt.executeUpdateDelete() > 0);
+		stmt.close();
+	}
+
 	/**
 	 * Marks all songs as 'deleteable' - but doesn't delete them yet.
 	 * Calling cleanOrphanedEntries() would take care of the actual deletion.
@@ -174,6 +396,26 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 		dbh.execSQL("UPDATE "+MediaLibrary.TABLE_SONGS+" SET "+MediaLibrary.SongColumns.MTIME+"="+PENDING_DELETION_MTIME);
 	}
 
+	/**
+	 * Removes a song row together with its contributor and genre links.
+	 * Albums, contributors and genres which became orphaned are left
+	 * for the next cleanOrphanedEntries() call.
+	 *
+	 * @param songId the song to remove
+	 */
+	void removeSongRow(long songId) {
+		SQLiteDatabase dbh = getWritableDatabase();
+		dbh.beginTransactionNonExclusive();
+		try {
+			dbh.delete(MediaLibrary.TABLE_SONGS, MediaLibrary.SongColumns._ID+"="+songId, null);
+			dbh.delete(MediaLibrary.TABLE_CONTRIBUTORS_SONGS, MediaLibrary.ContributorSongColumns.SONG_ID+"="+songId, null);
+			dbh.delete(MediaLibrary.TABLE_GENRES_SONGS, MediaLibrary.GenreSongColumns.SONG_ID+"="+songId, null);
+			dbh.setTransactionSuccessful();
+		} finally {
+			dbh.endTransaction();
+		}
+	}
+
 	/**
 	 * Purges orphaned entries from the media library
 	 *
@@ -194,6 +436,71 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 		dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_GENRES+" WHERE "+MediaLibrary.GenreColumns._ID+" NOT IN (SELECT "+MediaLibrary.GenreSongColumns._GENRE_ID+" FROM "+MediaLibrary.TABLE_GENRES_SONGS+");");
 		dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" WHERE "+MediaLibrary.ContributorSongColumns.SONG_ID+" NOT IN (SELECT "+MediaLibrary.SongColumns._ID+" FROM "+MediaLibrary.TABLE_SONGS+");");
 		dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_CONTRIBUTORS+" WHERE "+MediaLibrary.ContributorColumns._ID+" NOT IN (SELECT "+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+" FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+");");
+		pruneDirectories(dbh);
+	}
+
+	/**
+	 * Removes songs and everything only they referenced in one transaction.
+	 * Unlike cleanOrphanedEntries(), this only checks the albums, genres and
+	 * contributors of the removed songs instead of scanning all tables.
+	 *
+	 * @param ids the song ids to remove
+	 * @return the number of removed songs
+	 */
+	int removeSongs(Collection<Long> ids) {
+		final String stage = "temp._delete_stage";
+		final String staged = " IN (SELECT song_id FROM "+stage+")";
+		SQLiteDatabase dbh = getWritableDatabase();
+		int count = 0;
+
+		dbh.beginTransactionNonExclusive();
+		try {
+			dbh.execSQL("CREATE TEMP TABLE IF NOT EXISTS _delete_stage (song_id INTEGER PRIMARY KEY)");
+			dbh.execSQL("DELETE FROM "+stage);
+			SQLiteStatement stmt = dbh.compileStatement("INSERT OR IGNORE INTO "+stage+" (song_id) VALUES (?)");
+			for (Long id : ids) {
+				stmt.bindLong(1, id);
+				stmt.executeInsert();
+			}
+			stmt.close();
+
+			// Remember what the songs referenced before they are gone.
+			final String albums = "SELECT "+MediaLibrary.SongColumns.ALBUM_ID+" FROM "+MediaLibrary.TABLE_SONGS
+				+" WHERE "+MediaLibrary.SongColumns._ID+staged;
+			final String genres = "SELECT "+MediaLibrary.GenreSongColumns._GENRE_ID+" FROM "+MediaLibrary.TABLE_GENRES_SONGS
+				+" WHERE "+MediaLibrary.GenreSongColumns.SONG_ID+staged;
+			final String contributors = "SELECT "+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+" FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS
+				+" WHERE "+MediaLibrary.ContributorSongColumns.SONG_ID+staged;
+			dbh.execSQL("CREATE TEMP TABLE IF NOT EXISTS _delete_parents (tbl INTEGER NOT NULL, parent_id INTEGER NOT NULL, PRIMARY KEY(tbl, parent_id))");
+			dbh.execSQL("DELETE FROM temp._delete_parents");
+			dbh.execSQL("INSERT OR IGNORE INTO temp._delete_parents SELECT 1, * FROM ("+albums+")");
+			dbh.execSQL("INSERT OR IGNORE INTO temp._delete_parents SELECT 2, * FROM ("+genres+")");
+			dbh.execSQL("INSERT OR IGNORE INTO temp._delete_parents SELECT 3, * FROM ("+contributors+")");
+
+			stmt = dbh.compileStatement("DELETE FROM "+MediaLibrary.TABLE_SONGS+" WHERE "+MediaLibrary.SongColumns._ID+staged);
+			count = stmt.executeUpdateDelete();
+			stmt.close();
+
+			dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_PLAYLISTS_SONGS+" WHERE "+MediaLibrary.PlaylistSongColumns.SONG_ID+staged);
+			dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_GENRES_SONGS+" WHERE "+MediaLibrary.GenreSongColumns.SONG_ID+staged);
+			dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" WHERE "+MediaLibrary.ContributorSongColumns.SONG_ID+staged);
+
+			dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_ALBUMS+" WHERE "+MediaLibrary.AlbumColumns._ID+" IN (SELECT parent_id FROM temp._delete_parents WHERE tbl=1)"
+				+" AND NOT EXISTS (SELECT 1 FROM "+MediaLibrary.TABLE_SONGS+" WHERE "+MediaLibrary.SongColumns.ALBUM_ID+"="+MediaLibrary.TABLE_ALBUMS+"."+MediaLibrary.AlbumColumns._ID+")");
+			dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_GENRES+" WHERE "+MediaLibrary.GenreColumns._ID+" IN (SELECT parent_id FROM temp._delete_parents WHERE tbl=2)"
+				+" AND NOT EXISTS (SELECT 1 FROM "+MediaLibrary.TABLE_GENRES_SONGS+" WHERE "+MediaLibrary.GenreSongColumns._GENRE_ID+"="+MediaLibrary.TABLE_GENRES+"."+MediaLibrary.GenreColumns._ID+")");
+			dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_CONTRIBUTORS+" WHERE "+MediaLibrary.ContributorColumns._ID+" IN (SELECT parent_id FROM temp._delete_parents WHERE tbl=3)"
+				+" AND NOT EXISTS (SELECT 1 FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" WHERE "+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+"="+MediaLibrary.TABLE_CONTRIBUTORS+"."+MediaLibrary.ContributorColumns._ID+")");
+
+			pruneDirectories(dbh);
+
+			dbh.execSQL("DELETE FROM "+stage);
+			dbh.execSQL("DELETE FROM temp._delete_parents");
+			dbh.setTransactionSuccessful();
+		} finally {
+			dbh.endTransaction();
+		}
+		return count;
 	}
 
 	/**
@@ -229,79 +536,301 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 	}
 
 	/**
-	 * Wrappr for SQLiteDatabase.query() function
+	 * Appends songs to a playlist in one transaction. Song ids which do
+	 * not exist in the library are silently skipped.
+	 *
+	 * @param playlistId the id of the playlist parent
+	 * @param ids the song ids to add, in order
+	 * @return the number of added items
 	 */
-	Cursor query (boolean distinct, String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy, String limit) {
+	int addToPlaylist(long playlistId, ArrayList<Long> ids) {
+		final String stage = "temp._playlist_stage";
+		SQLiteDatabase dbh = getWritableDatabase();
+		int count = 0;
 
-		if (MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE.equals(table)) {
-			Log.v("VanillaMusic", "+++ warning : using HUGE table in genquery!");
+		dbh.beginTransactionNonExclusive();
+		try {
+			// Stage all ids, so that existence checks and positions can be done in a single statement.
+			dbh.execSQL("CREATE TEMP TABLE IF NOT EXISTS _playlist_stage (ord INTEGER PRIMARY KEY, song_id INTEGER NOT NULL)");
+			dbh.execSQL("DELETE FROM "+stage);
+			SQLiteStatement stmt = dbh.compileStatement("INSERT INTO "+stage+" (ord, song_id) VALUES (?, ?)");
+			for (int i = 0; i < ids.size(); i++) {
+				stmt.bindLong(1, i + 1);
+				stmt.bindLong(2, ids.get(i));
+				stmt.executeInsert();
+			}
+			stmt.close();
+
+			long basePos = -MediaLibrary.PLAYLIST_POSITION_GAP;
+			Cursor cursor = dbh.query(MediaLibrary.TABLE_PLAYLISTS_SONGS, new String[]{ "MAX("+MediaLibrary.PlaylistSongColumns.POSITION+")" },
+			                          MediaLibrary.PlaylistSongColumns.PLAYLIST_ID+"="+playlistId, null, null, null, null);
+			if (cursor.moveToFirst() && !cursor.isNull(0))
+				basePos = cursor.getLong(0);
+			cursor.close();
+
+			// Missing songs simply leave a larger gap between their neighbours.
+			stmt = dbh.compileStatement("INSERT INTO "+MediaLibrary.TABLE_PLAYLISTS_SONGS+" ("
+			         +MediaLibrary.PlaylistSongColumns.PLAYLIST_ID+", "+MediaLibrary.PlaylistSongColumns.SONG_ID+", "+MediaLibrary.PlaylistSongColumns.POSITION+")"
+			         +" SELECT "+playlistId+", _stage.song_id, "+basePos+" + _stage.ord * "+MediaLibrary.PLAYLIST_POSITION_GAP
+			         +" FROM "+stage+" AS _stage JOIN "+MediaLibrary.TABLE_SONGS+" ON "+MediaLibrary.TABLE_SONGS+"."+MediaLibrary.SongColumns._ID+" = _stage.song_id"
+			         +" ORDER BY _stage.ord");
+			count = stmt.executeUpdateDelete();
+			stmt.close();
+
+			dbh.execSQL("DELETE FROM "+stage);
+			dbh.setTransactionSuccessful();
+		} finally {
+			dbh.endTransaction();
 		}
+		return count;
+	}
 
-		if (selection != null) {
-			if (MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS.equals(table)) {
-				// artist matches in the song-view are costy: try to give sqlite a hint
-				String[] contributorMatch = extractVirtualColumn(selection);
-				if (contributorMatch != null) {
-					selection = contributorMatch[0];
-					final String contributorId = contributorMatch[1];
-					final String contributorRole = contributorMatch[2];
-
-					selection += MediaLibrary.SongColumns._ID+" IN (SELECT "+MediaLibrary.ContributorSongColumns.SONG_ID+" FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" WHERE "
-					          + MediaLibrary.ContributorSongColumns.ROLE+"="+contributorRole+" AND "+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+"="+contributorId+")";
-				}
+	/**
+	 * Appends play events to the event log and updates the
+	 * play and skip counts of the songs in one transaction
+	 *
+	 * @param events the events to write
+	 */
+	void writePlayEvents(PlayEventBuffer.Events events) {
+		SQLiteDatabase dbh = getWritableDatabase();
+
+		dbh.beginTransactionNonExclusive();
+		try {
+			SQLiteStatement log = dbh.compileStatement("INSERT INTO "+MediaLibrary.TABLE_PLAY_EVENTS+" ("
+			         +MediaLibrary.PlayEventColumns.SONG_ID+", "+MediaLibrary.PlayEventColumns.PLAYED+", "+MediaLibrary.PlayEventColumns.TIME+") VALUES (?, ?, ?)");
+			SQLiteStatement played = dbh.compileStatement("UPDATE "+MediaLibrary.TABLE_SONGS+" SET "
+			         +MediaLibrary.SongColumns.PLAYCOUNT+"="+MediaLibrary.SongColumns.PLAYCOUNT+"+1 WHERE "+MediaLibrary.SongColumns._ID+"=?");
+			SQLiteStatement skipped = dbh.compileStatement("UPDATE "+MediaLibrary.TABLE_SONGS+" SET "
+			         +MediaLibrary.SongColumns.SKIPCOUNT+"="+MediaLibrary.SongColumns.SKIPCOUNT+"+1 WHERE "+MediaLibrary.SongColumns._ID+"=?");
+
+			for (int i = 0; i < events.size(); i++) {
+				log.bindLong(1, events.songIds[i]);
+				log.bindLong(2, events.played[i] ? 1 : 0);
+				log.bindLong(3, events.times[i]);
+				log.executeInsert();
+
+				SQLiteStatement counter = (events.played[i] ? played : skipped);
+				counter.bindLong(1, events.songIds[i]);
+				counter.executeUpdateDelete();
 			}
+			log.close();
+			played.close();
+			skipped.close();
+			dbh.setTransactionSuccessful();
+		} finally {
+			dbh.endTransaction();
+		}
+	}
 
-			if (MediaLibrary.VIEW_ALBUMS_ARTISTS.equals(table)) {
-				// looking up artists by albums will magically return every album where this
-				// artist has at least one item (while still using the primary_artist_id as the artist key)
-				String[] contributorMatch = extractVirtualColumn(selection);
-				if (contributorMatch != null) {
-					selection = contributorMatch[0];
-					final String contributorId = contributorMatch[1];
-					final String contributorRole = contributorMatch[2];
-
-					selection += MediaLibrary.SongColumns._ID+" IN (SELECT DISTINCT "+MediaLibrary.SongColumns.ALBUM_ID+" FROM "+MediaLibrary.TABLE_SONGS+" WHERE "
-					          + MediaLibrary.SongColumns._ID+" IN (SELECT "+MediaLibrary.ContributorSongColumns.SONG_ID+" FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" WHERE "
-					          + MediaLibrary.ContributorSongColumns.ROLE+"="+contributorRole+" AND "+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+"="+contributorId+"))";
+	/**
+	 * Moves all songs to the albums they belong to using the given grouping.
+	 * Album ids only depend on the album name and (if grouped by folder) the
+	 * directory of the song, so this does not need to read any file.
+	 *
+	 * @param byFolder true if albums should be grouped by folder
+	 * @return the number of songs which were moved to a different album
+	 */
+	int regroupAlbums(boolean byFolder) {
+		SQLiteDatabase dbh = getWritableDatabase();
+		int count = 0;
+
+		dbh.beginTransactionNonExclusive();
+		try {
+			dbh.execSQL("CREATE TEMP TABLE IF NOT EXISTS _album_regroup (old_id INTEGER NOT NULL, dir_id INTEGER NOT NULL, new_id INTEGER NOT NULL, PRIMARY KEY(old_id, dir_id))");
+			dbh.execSQL("DELETE FROM temp._album_regroup");
+
+			// Every song of an album in the same directory ends up in the same album,
+			// so we only have to look at each (album, directory) pair once.
+			final String sql = "SELECT DISTINCT s."+MediaLibrary.SongColumns.ALBUM_ID+", s."+MediaLibrary.SongColumns.DIR_ID+", d."+MediaLibrary.DirectoryColumns.PATH
+				+", a."+MediaLibrary.AlbumColumns.ALBUM+", a."+MediaLibrary.AlbumColumns.ALBUM_SORT
+				+", a."+MediaLibrary.AlbumColumns.PRIMARY_ARTIST_ID+", a."+MediaLibrary.AlbumColumns.PRIMARY_ALBUM_YEAR
+				+", a."+MediaLibrary.AlbumColumns.ALBUM_SEARCH
+				+" FROM "+MediaLibrary.TABLE_SONGS+" AS s"
+				+" JOIN "+MediaLibrary.TABLE_ALBUMS+" AS a ON a."+MediaLibrary.AlbumColumns._ID+"=s."+MediaLibrary.SongColumns.ALBUM_ID
+				+" LEFT JOIN "+MediaLibrary.TABLE_DIRECTORIES+" AS d ON d."+MediaLibrary.DirectoryColumns._ID+"=s."+MediaLibrary.SongColumns.DIR_ID
+				+" ORDER BY 1, 2";
+			SQLiteStatement mapping = dbh.compileStatement("INSERT OR IGNORE INTO temp._album_regroup (old_id, dir_id, new_id) VALUES (?, ?, ?)");
+			SQLiteStatement album = dbh.compileStatement("INSERT OR IGNORE INTO "+MediaLibrary.TABLE_ALBUMS+" ("
+				+MediaLibrary.AlbumColumns._ID+", "+MediaLibrary.AlbumColumns.ALBUM+", "+MediaLibrary.AlbumColumns.ALBUM_SORT+", "
+				+MediaLibrary.AlbumColumns.PRIMARY_ARTIST_ID+", "+MediaLibrary.AlbumColumns.PRIMARY_ALBUM_YEAR+", "
+				+MediaLibrary.AlbumColumns.ALBUM_SEARCH+") VALUES (?, ?, ?, ?, ?, ?)");
+
+			Cursor cursor = dbh.rawQuery(sql, null);
+			while (cursor.moveToNext()) {
+				final long oldId = cursor.getLong(0);
+				final String name = cursor.getString(3);
+				long newId = MediaLibrary.hash63(name);
+
+				if (byFolder) {
+					if (cursor.isNull(2))
+						continue; // directory is unknown: leave this album alone.
+					// Same as File.getParent() of the song, which is what the scanner uses.
+					String dir = cursor.getString(2);
+					if (dir.length() > 1)
+						dir = dir.substring(0, dir.length() - 1);
+					newId = MediaLibrary.hash63(name + "\n" + dir);
 				}
+
+				if (newId == oldId)
+					continue;
+
+				mapping.bindLong(1, oldId);
+				mapping.bindLong(2, cursor.getLong(1));
+				mapping.bindLong(3, newId);
+				mapping.executeInsert();
+
+				album.clearBindings();
+				album.bindLong(1, newId);
+				album.bindString(2, name);
+				album.bindBlob(3, cursor.getBlob(4));
+				album.bindLong(4, cursor.getLong(5));
+				if (!cursor.isNull(6))
+					album.bindLong(5, cursor.getLong(6));
+				album.bindString(6, cursor.getString(7));
+				album.executeInsert();
 			}
+			cursor.close();
+			mapping.close();
+			album.close();
 
-			// Genre queries are a special beast: 'optimize' all of them
-			Matcher genreMatch = sQueryMatchGenreSearch.matcher(selection);
-			if (genreMatch.matches()) {
-				selection = genreMatch.group(1); // keep the non-genre search part of the query
-				final String genreId = genreMatch.group(2); // and extract the searched genre id
-				final String songsQuery = buildSongIdFromGenreSelect(genreId);
+			final String match = " FROM temp._album_regroup AS r WHERE r.old_id="+MediaLibrary.TABLE_SONGS+"."+MediaLibrary.SongColumns.ALBUM_ID
+				+" AND r.dir_id="+MediaLibrary.TABLE_SONGS+"."+MediaLibrary.SongColumns.DIR_ID;
+			SQLiteStatement move = dbh.compileStatement("UPDATE "+MediaLibrary.TABLE_SONGS+" SET "+MediaLibrary.SongColumns.ALBUM_ID+"=(SELECT r.new_id"+match+")"
+				+" WHERE EXISTS (SELECT 1"+match+")");
+			count = move.executeUpdateDelete();
+			move.close();
 
-				if(table.equals(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS)      ||
-				   table.equals(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE) ) {
-					selection += MediaLibrary.SongColumns._ID+" IN ("+songsQuery+") ";
-				}
+			dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_ALBUMS+" WHERE "+MediaLibrary.AlbumColumns._ID+" IN (SELECT old_id FROM temp._album_regroup)"
+				+" AND NOT EXISTS (SELECT 1 FROM "+MediaLibrary.TABLE_SONGS+" WHERE "+MediaLibrary.SongColumns.ALBUM_ID+"="+MediaLibrary.TABLE_ALBUMS+"."+MediaLibrary.AlbumColumns._ID+")");
+			dbh.execSQL("DELETE FROM temp._album_regroup");
+			dbh.setTransactionSuccessful();
+		} finally {
+			dbh.endTransaction();
+		}
+		return count;
+	}
 
-				if (table.equals(MediaLibrary.VIEW_ALBUMS_ARTISTS)) {
-					selection += MediaLibrary.AlbumColumns._ID+" IN ("+
-						buildSongIdFromGenreSelect(MediaLibrary.SongColumns.ALBUM_ID, MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, songsQuery)+") ";
-				}
+	/**
+	 * Moves playlist items in one transaction
+	 *
+	 * @param from the _ids of the 'dragged' elements
+	 * @param to the _ids of the 'repressed' elements
+	 * @return the id of the modified playlist, -1 if nothing was moved
+	 */
+	long movePlaylistItems(long[] from, long[] to) {
+		SQLiteDatabase dbh = getWritableDatabase();
+		long playlistId = -1;
 
-				if (table.equals(MediaLibrary.VIEW_ARTISTS)) {
-					selection += MediaLibrary.ContributorColumns.ARTIST_ID+" IN ("+
-						buildSongIdFromGenreSelect(MediaLibrary.ContributorColumns.ARTIST_ID, MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, songsQuery)+") ";
-				}
+		dbh.beginTransactionNonExclusive();
+		try {
+			for (int i = 0; i < from.length; i++) {
+				long moved = movePlaylistItem(dbh, from[i], to[i], true);
+				if (moved != -1)
+					playlistId = moved;
+			}
+			dbh.setTransactionSuccessful();
+		} finally {
+			dbh.endTransaction();
+		}
+		return playlistId;
+	}
 
-				if (table.equals(MediaLibrary.VIEW_ALBUMARTISTS)) {
-					selection += MediaLibrary.ContributorColumns.ALBUMARTIST_ID+" IN ("+
-						buildSongIdFromGenreSelect(MediaLibrary.ContributorColumns.ALBUMARTIST_ID, MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE, songsQuery)+") ";
-					Log.v("VanillaMusic", "+++ warning: huge genrequery for albumartist!");
-				}
+	/**
+	 * Moves a single playlist item by placing it in the middle of the gap
+	 * next to the target. This only needs to update a single row, unless
+	 * there is no gap left: the playlist is rebalanced in this case.
+	 *
+	 * @param dbh the writable database handle, inside a transaction
+	 * @param from the _id of the 'dragged' element
+	 * @param to the _id of the 'repressed' element
+	 * @param mayRebalance rebalance the playlist if no gap is left
+	 * @return the id of the modified playlist, -1 on error
+	 */
+	private long movePlaylistItem(SQLiteDatabase dbh, long from, long to, boolean mayRebalance) {
+		long fromPos = 0, toPos = 0, playlistId = -1;
+		int found = 0;
 
-				if (table.equals(MediaLibrary.VIEW_COMPOSERS)) {
-					selection += MediaLibrary.ContributorColumns.COMPOSER_ID+" IN ("+
-						buildSongIdFromGenreSelect(MediaLibrary.ContributorColumns.COMPOSER_ID, MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE, songsQuery)+") ";
-					Log.v("VanillaMusic", "+++ warning: huge genrequery composer!");
-				}
+		String[] projection = { MediaLibrary.PlaylistSongColumns._ID, MediaLibrary.PlaylistSongColumns.POSITION, MediaLibrary.PlaylistSongColumns.PLAYLIST_ID };
+		String selection = MediaLibrary.PlaylistSongColumns._ID+" IN ("+from+","+to+")";
+		Cursor cursor = dbh.query(MediaLibrary.TABLE_PLAYLISTS_SONGS, projection, selection, null, null, null, null);
+		while (cursor.moveToNext()) {
+			if (cursor.getLong(0) == from) {
+				fromPos = cursor.getLong(1);
+				playlistId = cursor.getLong(2);
+				found++;
+			}
+			if (cursor.getLong(0) == to) {
+				toPos = cursor.getLong(1);
+				found++;
+			}
+		}
+		cursor.close();
 
+		if (found != 2 || from == to)
+			return -1;
+
+		// Moving down -> We actually want to be below the target
+		final boolean down = toPos > fromPos;
+		selection = MediaLibrary.PlaylistSongColumns.PLAYLIST_ID+"="+playlistId+" AND "
+		          + MediaLibrary.PlaylistSongColumns.POSITION+(down ? " > " : " < ")+toPos;
+		String neighbour = (down ? "MIN(" : "MAX(")+MediaLibrary.PlaylistSongColumns.POSITION+")";
+
+		long newPos = toPos + (down ? MediaLibrary.PLAYLIST_POSITION_GAP : -MediaLibrary.PLAYLIST_POSITION_GAP);
+		cursor = dbh.query(MediaLibrary.TABLE_PLAYLISTS_SONGS, new String[]{ neighbour }, selection, null, null, null, null);
+		if (cursor.moveToFirst() && !cursor.isNull(0)) {
+			final long neighbourPos = cursor.getLong(0);
+			newPos = toPos + (neighbourPos - toPos) / 2;
+			if (newPos == toPos) {
+				cursor.close();
+				if (!mayRebalance)
+					return -1;
+				// No gap left between both items.
+				rebalancePlaylist(dbh, playlistId);
+				return movePlaylistItem(dbh, from, to, false);
 			}
 		}
+		cursor.close();
+
+		ContentValues v = new ContentValues();
+		v.put(MediaLibrary.PlaylistSongColumns.POSITION, newPos);
+		dbh.update(MediaLibrary.TABLE_PLAYLISTS_SONGS, v, MediaLibrary.PlaylistSongColumns._ID+"="+from, null);
+		return playlistId;
+	}
+
+	/**
+	 * Evenly spreads the positions of all items of a playlist,
+	 * restoring the gap between all of them.
+	 *
+	 * @param dbh the writable database handle, inside a transaction
+	 * @param playlistId the playlist to rebalance
+	 */
+	private void rebalancePlaylist(SQLiteDatabase dbh, long playlistId) {
+		String[] projection = { MediaLibrary.PlaylistSongColumns._ID };
+		String selection = MediaLibrary.PlaylistSongColumns.PLAYLIST_ID+"="+playlistId;
+		String order = MediaLibrary.PlaylistSongColumns.POSITION+", "+MediaLibrary.PlaylistSongColumns._ID;
+		Cursor cursor = dbh.query(MediaLibrary.TABLE_PLAYLISTS_SONGS, projection, selection, null, null, null, order);
+
+		ContentValues v = new ContentValues();
+		long pos = 0;
+		while (cursor.moveToNext()) {
+			v.put(MediaLibrary.PlaylistSongColumns.POSITION, pos);
+			dbh.update(MediaLibrary.TABLE_PLAYLISTS_SONGS, v, MediaLibrary.PlaylistSongColumns._ID+"="+cursor.getLong(0), null);
+			pos += MediaLibrary.PLAYLIST_POSITION_GAP;
+		}
+		cursor.close();
+	}
+
+	/**
+	 * Wrappr for SQLiteDatabase.query() function
+	 */
+	Cursor query (boolean distinct, String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy, String limit) {
+
+		if (MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE.equals(table)) {
+			Log.v("VanillaMusic", "+++ warning : using HUGE table in genquery!");
+		}
+
+		if (selection != null)
+			selection = optimizeSelection(table, selection);
 
 		if (DEBUG)
 			debugQuery(distinct, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit);
@@ -318,6 +847,81 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 		return cursor;
 	}
 
+	/**
+	 * Rewrites costly selections into something SQLite can answer using an index
+	 *
+	 * @param table the table or view which is going to be queried
+	 * @param selection the selection to optimize, must not be null
+	 * @return the selection to use instead
+	 */
+	private String optimizeSelection(String table, String selection) {
+		if (MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS.equals(table) ||
+		    MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE.equals(table)) {
+			// artist matches in the song-view are costy: try to give sqlite a hint
+			String[] contributorMatch = extractVirtualColumn(selection);
+			if (contributorMatch != null) {
+				selection = contributorMatch[0];
+				final String contributorId = contributorMatch[1];
+				final String contributorRole = contributorMatch[2];
+
+				selection += MediaLibrary.SongColumns._ID+" IN (SELECT "+MediaLibrary.ContributorSongColumns.SONG_ID+" FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" WHERE "
+				          + MediaLibrary.ContributorSongColumns.ROLE+"="+contributorRole+" AND "+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+"="+contributorId+")";
+			}
+		}
+
+		if (MediaLibrary.VIEW_ALBUMS_ARTISTS.equals(table)) {
+			// looking up artists by albums will magically return every album where this
+			// artist has at least one item (while still using the primary_artist_id as the artist key)
+			String[] contributorMatch = extractVirtualColumn(selection);
+			if (contributorMatch != null) {
+				selection = contributorMatch[0];
+				final String contributorId = contributorMatch[1];
+				final String contributorRole = contributorMatch[2];
+
+				selection += MediaLibrary.SongColumns._ID+" IN (SELECT DISTINCT "+MediaLibrary.SongColumns.ALBUM_ID+" FROM "+MediaLibrary.TABLE_SONGS+" WHERE "
+				          + MediaLibrary.SongColumns._ID+" IN (SELECT "+MediaLibrary.ContributorSongColumns.SONG_ID+" FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" WHERE "
+				          + MediaLibrary.ContributorSongColumns.ROLE+"="+contributorRole+" AND "+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+"="+contributorId+"))";
+			}
+		}
+
+		// Genre queries are a special beast: 'optimize' all of them
+		Matcher genreMatch = sQueryMatchGenreSearch.matcher(selection);
+		if (genreMatch.matches()) {
+			selection = genreMatch.group(1); // keep the non-genre search part of the query
+			final String genreId = genreMatch.group(2); // and extract the searched genre id
+			final String songsQuery = buildSongIdFromGenreSelect(genreId);
+
+			if(table.equals(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS)      ||
+			   table.equals(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE) ) {
+				selection += MediaLibrary.SongColumns._ID+" IN ("+songsQuery+") ";
+			}
+
+			if (table.equals(MediaLibrary.VIEW_ALBUMS_ARTISTS)) {
+				selection += MediaLibrary.AlbumColumns._ID+" IN ("+
+					buildSongIdFromGenreSelect(MediaLibrary.SongColumns.ALBUM_ID, MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, songsQuery)+") ";
+			}
+
+			if (table.equals(MediaLibrary.VIEW_ARTISTS)) {
+				selection += MediaLibrary.ContributorColumns.ARTIST_ID+" IN ("+
+					buildSongIdFromGenreSelect(MediaLibrary.ContributorColumns.ARTIST_ID, MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, songsQuery)+") ";
+			}
+
+			if (table.equals(MediaLibrary.VIEW_ALBUMARTISTS)) {
+				selection += MediaLibrary.ContributorColumns.ALBUMARTIST_ID+" IN ("+
+					buildSongIdFromGenreSelect(MediaLibrary.ContributorColumns.ALBUMARTIST_ID, MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE, songsQuery)+") ";
+				Log.v("VanillaMusic", "+++ warning: huge genrequery for albumartist!");
+			}
+
+			if (table.equals(MediaLibrary.VIEW_COMPOSERS)) {
+				selection += MediaLibrary.ContributorColumns.COMPOSER_ID+" IN ("+
+					buildSongIdFromGenreSelect(MediaLibrary.ContributorColumns.COMPOSER_ID, MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE, songsQuery)+") ";
+				Log.v("VanillaMusic", "+++ warning: huge genrequery composer!");
+			}
+
+		}
+		return selection;
+	}
+
 	/**
 	 * Detects queries for artists, composers and albumartists and returns the
 	 * role of the contributor.
@@ -362,6 +966,21 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 		                +MediaLibrary.SongColumns._ID+" IN ("+genreSelect+") GROUP BY "+target;
 	}
 
+	/**
+	 * Returns the plan SQLite is going to use for a query, after optimizing
+	 * its selection just like query() does.
+	 * The detail of each step is found in the last column of the cursor.
+	 *
+	 * @return the result of EXPLAIN QUERY PLAN
+	 */
+	Cursor explainQuery(boolean distinct, String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy, String limit) {
+		if (selection != null)
+			selection = optimizeSelection(table, selection);
+
+		String sql = SQLiteQueryBuilder.buildQueryString(distinct, table, columns, selection, groupBy, having, orderBy, limit);
+		return getReadableDatabase().rawQuery("EXPLAIN QUERY PLAN "+sql, selectionArgs);
+	}
+
 	/**
 	 * Debug function to print and benchmark queries
 	 */
@@ -384,6 +1003,16 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 
 		Log.v(LT, "DBH = "+getReadableDatabase());
 
+		// Print the query plan and point out full scans and sorts which could not use an index.
+		String sql = SQLiteQueryBuilder.buildQueryString(distinct, table, columns, selection, groupBy, having, orderBy, limit);
+		Cursor plan = getReadableDatabase().rawQuery("EXPLAIN QUERY PLAN "+sql, selectionArgs);
+		while (plan.moveToNext()) {
+			String detail = plan.getString(plan.getColumnCount() - 1);
+			boolean suspicious = (detail.startsWith("SCAN") && !detail.contains("INDEX")) || detail.contains("TEMP B-TREE");
+			Log.v(LT, (suspicious ? " !! " : "    ")+detail);
+		}
+		plan.close();
+
 		Cursor dryRun = getReadableDatabase().query(distinct, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit);
 		long results = 0;
 		long startAt = System.currentTimeMillis();
@@ -27,6 +27,7 @@ import android.content.ContentValues;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.ContentObserver;
+import android.media.MediaMetadataRetriever;
 import android.util.Log;
 import android.provider.MediaStore;
 import android.os.Handler;
@@ -38,6 +39,7 @@ import android.os.SystemClock;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.regex.Pattern;
 
 public class MediaScanner implements Handler.Callback {
@@ -74,10 +76,46 @@ public class MediaScanner implements Handler.Callback {
 	 * Timestamp in half-seconds since last notification
 	 */
 	private int mLastNotification;
+	/**
+	 * Changes which were not yet broadcasted
+	 */
+	private MediaLibrary.ChangeSet mPendingChanges = new MediaLibrary.ChangeSet();
+	/**
+	 * True if the library changed since the last snapshot was written
+	 */
+	private boolean mSnapshotOutdated;
+	/**
+	 * Fingerprint of the directory which was last searched for a cover
+	 */
+	private long mCoverDirFingerprint;
+	/**
+	 * The cover found in the directory of mCoverDirFingerprint, may be null
+	 */
+	private String mCoverDirPath;
+	/**
+	 * The album which was last checked for an embedded cover, -1 if none
+	 */
+	private long mCoverAlbumId = -1;
+	/**
+	 * The cover source of mCoverAlbumId, if the directory has no cover image
+	 */
+	private int mCoverAlbumSource;
+	/**
+	 * Number of changed files since the last WAL checkpoint
+	 */
+	private int mChangesSinceCheckpoint;
 	/**
 	 * The id we are using for the scan notification
 	 */
 	private static final int NOTIFICATION_ID = 56162;
+	/**
+	 * Run a passive WAL checkpoint after this many changed files
+	 */
+	private static final int CHECKPOINT_INTERVAL = 250;
+	/**
+	 * Number of songs inserted per transaction while importing the media store
+	 */
+	private static final int NATIVE_IMPORT_BATCH = 500;
 
 	MediaScanner(Context context, MediaLibraryBackend backend) {
 		mContext = context;
@@ -133,6 +171,30 @@ public class MediaScanner implements Handler.Callback {
 		}
 	}
 
+	/**
+	 * Restores the library from its last snapshot if the database
+	 * had to be re-created. The restored songs are verified by a normal scan.
+	 */
+	public void restoreSnapshot() {
+		mHandler.sendMessage(mHandler.obtainMessage(MSG_RESTORE_SNAPSHOT));
+	}
+
+	/**
+	 * Applies changed mediaFolders and blacklistedFolders to the library:
+	 * songs in newly excluded folders are removed and only newly included
+	 * folders get scanned.
+	 */
+	public void applyFolderRules() {
+		mHandler.sendEmptyMessage(MSG_APPLY_FOLDER_RULES);
+	}
+
+	/**
+	 * Moves all songs to their albums after groupAlbumsByFolder was changed
+	 */
+	public void regroupAlbums() {
+		mHandler.sendEmptyMessage(MSG_REGROUP_ALBUMS);
+	}
+
 	/**
 	 * Stops a running scan
 	 */
@@ -144,14 +206,33 @@ public class MediaScanner implements Handler.Callback {
 
 	/**
 	 * Prepares a flush of the databse.
+	 * Must be followed by a scan, which verifies every song.
 	 */
 	public void flushDatabase() {
-		mBackend.setPendingDeletion();
-		mPendingCleanup = true;
+		mHandler.sendEmptyMessage(MSG_FLUSH_DATABASE);
+	}
 
-		MediaLibrary.Preferences prefs = MediaLibrary.getPreferences(mContext);
-		prefs._nativeLastMtime = 0;
-		MediaLibrary.setPreferences(mContext, prefs);
+	/**
+	 * Re-computes all sort keys if the locale changed since they
+	 * were created.
+	 */
+	public void checkSortKeys() {
+		mHandler.sendEmptyMessage(MSG_CHECK_SORT_KEYS);
+	}
+
+	/**
+	 * Records the cover of an album again, as its directory changed
+	 *
+	 * @param albumId the album to update
+	 * @param file a song of this album
+	 */
+	public void refreshAlbumCover(final long albumId, final File file) {
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				updateAlbumCover(albumId, file);
+			}
+		});
 	}
 
 	/**
@@ -177,6 +258,11 @@ public class MediaScanner implements Handler.Callback {
 	private static final int MSG_SCAN_FINISHED    = 1;
 	private static final int MSG_NOTIFY_CHANGE    = 2;
 	private static final int MSG_GUESS_QUICKSCAN  = 3;
+	private static final int MSG_RESTORE_SNAPSHOT = 4;
+	private static final int MSG_REGROUP_ALBUMS   = 5;
+	private static final int MSG_APPLY_FOLDER_RULES = 6;
+	private static final int MSG_FLUSH_DATABASE   = 7;
+	private static final int MSG_CHECK_SORT_KEYS  = 8;
 	private static final int RPC_KICKSTART        = 100;
 	private static final int RPC_READ_DIR         = 101;
 	private static final int RPC_INSPECT_FILE     = 102;
@@ -189,7 +275,10 @@ public class MediaScanner implements Handler.Callback {
 
 		switch (rpc) {
 			case MSG_NOTIFY_CHANGE: {
-				MediaLibrary.notifyObserver();
+				MediaLibrary.ChangeSet changes = mPendingChanges;
+				mPendingChanges = new MediaLibrary.ChangeSet();
+				if (!changes.isEmpty())
+					MediaLibrary.notifyObserver(changes);
 				break;
 			}
 			case MSG_SCAN_FINISHED: {
@@ -200,7 +289,17 @@ public class MediaScanner implements Handler.Callback {
 				if (mPendingCleanup) {
 					mPendingCleanup = false;
 					mBackend.cleanOrphanedEntries(true);
+					mPendingChanges.merge(MediaLibrary.describeOrphanCleanup(true));
+					mSnapshotOutdated = true;
+				}
+				if (mSnapshotOutdated) {
+					mSnapshotOutdated = false;
+					mBackend.exportSnapshot();
 				}
+				// Fold the write-ahead log back into the database: this waits for
+				// active readers, which is fine as the scan is done anyway.
+				mChangesSinceCheckpoint = 0;
+				mBackend.checkpoint(true);
 				// make sure to notify about changes which cleanOrphanedEntries
 				// might have caused
 				mHandler.sendEmptyMessage(MSG_NOTIFY_CHANGE);
@@ -211,10 +310,79 @@ public class MediaScanner implements Handler.Callback {
 				guessQuickScanPlan();
 				break;
 			}
+			case MSG_RESTORE_SNAPSHOT: {
+				int songs = mBackend.restoreSnapshot();
+				if (songs > 0) {
+					Log.v("VanillaMusic", "Restored "+songs+" songs from library snapshot");
+					addSnapshotChanges(MediaLibrary.ChangeSet.INSERT);
+					mHandler.sendEmptyMessage(MSG_NOTIFY_CHANGE);
+
+					// Every file has to be checked again, but unchanged files
+					// only cost a stat() as their mtime is known.
+					MediaLibrary.Preferences prefs = MediaLibrary.getPreferences(mContext);
+					prefs._nativeLastMtime = 0;
+					MediaLibrary.setPreferences(mContext, prefs);
+					mHandler.removeMessages(MSG_GUESS_QUICKSCAN);
+					startNormalScan();
+				}
+				break;
+			}
+			case MSG_FLUSH_DATABASE: {
+				// Every song is marked for deletion, so the next scan parses
+				// all files again, eg. using a different tag reader.
+				mBackend.setPendingDeletion();
+				mPendingCleanup = true;
+
+				MediaLibrary.Preferences prefs = MediaLibrary.getPreferences(mContext);
+				prefs._nativeLastMtime = 0;
+				MediaLibrary.setPreferences(mContext, prefs);
+				break;
+			}
+			case MSG_CHECK_SORT_KEYS: {
+				MediaLibrary.Preferences prefs = MediaLibrary.getPreferences(mContext);
+				final String locale = MediaLibrary.getCollationLocale();
+				if (!locale.equals(prefs._sortLocale)) {
+					if (!isLibraryEmpty()) {
+						Log.v("VanillaMusic", "Collation locale changed to "+locale+", rebuilding sort keys");
+						mBackend.rebuildSortKeys();
+						mPendingChanges.add(MediaLibrary.TABLE_SONGS, MediaLibrary.ChangeSet.UPDATE)
+							.add(MediaLibrary.TABLE_ALBUMS, MediaLibrary.ChangeSet.UPDATE)
+							.add(MediaLibrary.TABLE_CONTRIBUTORS, MediaLibrary.ChangeSet.UPDATE)
+							.add(MediaLibrary.TABLE_GENRES, MediaLibrary.ChangeSet.UPDATE);
+						mHandler.sendEmptyMessage(MSG_NOTIFY_CHANGE);
+						mBackend.exportSnapshot();
+					}
+					prefs._sortLocale = locale;
+					MediaLibrary.setPreferences(mContext, prefs);
+				}
+				break;
+			}
+			case MSG_REGROUP_ALBUMS: {
+				MediaLibrary.Preferences prefs = MediaLibrary.getPreferences(mContext);
+				if (prefs.groupAlbumsByFolder != prefs._albumsGroupedByFolder) {
+					final boolean byFolder = prefs.groupAlbumsByFolder;
+					int moved = mBackend.regroupAlbums(byFolder);
+					prefs._albumsGroupedByFolder = byFolder;
+					MediaLibrary.setPreferences(mContext, prefs);
+					if (moved > 0) {
+						mPendingChanges.add(MediaLibrary.TABLE_SONGS, MediaLibrary.ChangeSet.UPDATE)
+							.add(MediaLibrary.TABLE_ALBUMS, MediaLibrary.ChangeSet.INSERT | MediaLibrary.ChangeSet.DELETE);
+						mHandler.sendEmptyMessage(MSG_NOTIFY_CHANGE);
+						mBackend.exportSnapshot();
+					}
+				}
+				break;
+			}
+			case MSG_APPLY_FOLDER_RULES: {
+				updateFolderRules();
+				break;
+			}
 			case RPC_KICKSTART: {
 				// a new scan was triggered: check if this is a 'initial / from scratch' scan
 				if (!mIsInitialScan && MediaLibrary.getPreferences(mContext)._nativeLastMtime == 0) {
 					mIsInitialScan = true;
+					if (isLibraryEmpty())
+						importNativeLibrary();
 				}
 				break;
 			}
@@ -222,9 +390,15 @@ public class MediaScanner implements Handler.Callback {
 				final File file = (File)message.obj;
 				boolean changed = rpcInspectFile(file);
 				mScanPlan.registerProgress(file.toString(), changed);
+				mSnapshotOutdated |= changed;
 				if (changed && !mHandler.hasMessages(MSG_NOTIFY_CHANGE)) {
 					mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_NOTIFY_CHANGE), 500);
 				}
+				if (changed && ++mChangesSinceCheckpoint >= CHECKPOINT_INTERVAL) {
+					// keep the log small without ever blocking readers
+					mChangesSinceCheckpoint = 0;
+					mBackend.checkpoint(false);
+				}
 				updateNotification(true);
 				break;
 			}
@@ -258,6 +432,23 @@ public class MediaScanner implements Handler.Callback {
 		return true;
 	}
 
+	/**
+	 * Records a change of every table included in library snapshots
+	 *
+	 * @param flags the ChangeSet flags to add
+	 */
+	private void addSnapshotChanges(int flags) {
+		mPendingChanges.add(MediaLibrary.TABLE_SONGS, flags)
+			.add(MediaLibrary.TABLE_ALBUMS, flags)
+			.add(MediaLibrary.TABLE_CONTRIBUTORS, flags)
+			.add(MediaLibrary.TABLE_CONTRIBUTORS_SONGS, flags)
+			.add(MediaLibrary.TABLE_GENRES, flags)
+			.add(MediaLibrary.TABLE_GENRES_SONGS, flags)
+			.add(MediaLibrary.TABLE_PLAYLISTS, flags)
+			.add(MediaLibrary.TABLE_PLAYLISTS_SONGS, flags)
+			.add(MediaLibrary.TABLE_DIRECTORIES, flags);
+	}
+
 	/**
 	 * Triggers an update to the scan progress notification
 	 *
@@ -372,6 +563,176 @@ public class MediaScanner implements Handler.Callback {
 		}
 	}
 
+	/**
+	 * Fills an empty library with the songs known to the android
+	 * media store, so it is usable before we parsed a single file.
+	 * All imported songs get an mtime in the past, which makes the
+	 * following scan replace them with the result of our own parser.
+	 *
+	 * @return the number of imported songs
+	 */
+	private int importNativeLibrary() {
+		MediaLibrary.Preferences prefs = MediaLibrary.getPreferences(mContext);
+		String selection = MediaStore.Audio.Media.IS_MUSIC + "!= 0";
+		String[] projection = { MediaStore.MediaColumns.DATA, MediaStore.MediaColumns.TITLE, MediaStore.Audio.AudioColumns.ARTIST,
+		                        MediaStore.Audio.AudioColumns.ALBUM, MediaStore.Audio.AudioColumns.COMPOSER, MediaStore.Audio.AudioColumns.TRACK,
+		                        MediaStore.Audio.AudioColumns.YEAR, MediaStore.Audio.AudioColumns.DURATION, "album_artist" };
+		Cursor cursor = null;
+		try {
+			cursor = mContext.getContentResolver().query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, projection, selection, null, null);
+		} catch (SecurityException e) {
+			Log.e("VanillaMusic", "importNativeLibrary failed: "+e);
+		} catch (RuntimeException e) {
+			// album_artist is not a public column on all versions
+			projection[projection.length - 1] = "NULL";
+			try {
+				cursor = mContext.getContentResolver().query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, projection, selection, null, null);
+			} catch (RuntimeException retryException) {
+				Log.e("VanillaMusic", "importNativeLibrary failed: "+retryException);
+				return 0;
+			}
+		}
+
+		if (cursor == null)
+			return 0;
+
+		HashMap<String, Long> dirIds = new HashMap<>();
+		ArrayList<String> tables = new ArrayList<>();
+		ArrayList<ContentValues> rows = new ArrayList<>();
+		int count = 0;
+
+		while (cursor.moveToNext()) {
+			final String path = cursor.getString(0);
+			if (path == null)
+				continue;
+
+			final File file = new File(path);
+			if (isBlacklisted(file))
+				continue;
+
+			String title = cursor.getString(1);
+			if (title == null)
+				title = file.getName();
+
+			String artist = cursor.getString(2);
+			if (artist == null || MediaStore.UNKNOWN_STRING.equals(artist))
+				artist = "<No Artist>";
+
+			String album = cursor.getString(3);
+			if (album == null || MediaStore.UNKNOWN_STRING.equals(album))
+				album = "<No Album>";
+
+			// The media store encodes the disc number in the track number
+			final int track = cursor.getInt(5);
+			final int disc = (track >= 1000 ? track / 1000 : 1);
+
+			final String parent = file.getParent();
+			Long dirId = dirIds.get(parent);
+			if (dirId == null) {
+				dirId = mBackend.insertDirectory(file.getAbsoluteFile().getParentFile());
+				dirIds.put(parent, dirId);
+			}
+
+			final long songId = MediaLibrary.hash63(path);
+			final long artistId = MediaLibrary.hash63(artist);
+			long albumId = MediaLibrary.hash63(album);
+			if (prefs.groupAlbumsByFolder) {
+				albumId = MediaLibrary.hash63(album + "\n" + parent);
+			}
+
+			ContentValues v = new ContentValues();
+			v.put(MediaLibrary.SongColumns._ID,         songId);
+			v.put(MediaLibrary.SongColumns.TITLE,       title);
+			v.put(MediaLibrary.SongColumns.TITLE_SORT,  MediaLibrary.keyFor(title));
+			v.put(MediaLibrary.SongColumns.TITLE_SEARCH, MediaLibrary.searchKeyFor(title));
+			v.put(MediaLibrary.SongColumns.ALBUM_ID,    albumId);
+			v.put(MediaLibrary.SongColumns.DURATION,    cursor.getLong(7));
+			v.put(MediaLibrary.SongColumns.SONG_NUMBER, track % 1000);
+			v.put(MediaLibrary.SongColumns.DISC_NUMBER, disc);
+			if (cursor.getInt(6) > 0)
+				v.put(MediaLibrary.SongColumns.YEAR,    cursor.getInt(6));
+			v.put(MediaLibrary.SongColumns.MTIME,       MediaLibraryBackend.NATIVE_IMPORT_MTIME); // always older than the file: re-read by the next scan
+			v.put(MediaLibrary.SongColumns.PATH,        path);
+			v.put(MediaLibrary.SongColumns.DIR_ID,      dirId);
+			tables.add(MediaLibrary.TABLE_SONGS);
+			rows.add(v);
+
+			v = new ContentValues();
+			v.put(MediaLibrary.AlbumColumns._ID,               albumId);
+			v.put(MediaLibrary.AlbumColumns.ALBUM,             album);
+			v.put(MediaLibrary.AlbumColumns.ALBUM_SORT,        MediaLibrary.keyFor(album));
+			v.put(MediaLibrary.AlbumColumns.ALBUM_SEARCH,      MediaLibrary.searchKeyFor(album));
+			v.put(MediaLibrary.AlbumColumns.PRIMARY_ARTIST_ID, artistId);
+			if (cursor.getInt(6) > 0)
+				v.put(MediaLibrary.AlbumColumns.PRIMARY_ALBUM_YEAR, cursor.getInt(6));
+			tables.add(MediaLibrary.TABLE_ALBUMS);
+			rows.add(v);
+
+			addNativeContributor(tables, rows, songId, artist, MediaLibrary.ROLE_ARTIST);
+			if (cursor.getString(4) != null)
+				addNativeContributor(tables, rows, songId, cursor.getString(4), MediaLibrary.ROLE_COMPOSER);
+			if (cursor.getString(8) != null)
+				addNativeContributor(tables, rows, songId, cursor.getString(8), MediaLibrary.ROLE_ALBUMARTIST);
+
+			if (++count % NATIVE_IMPORT_BATCH == 0) {
+				mBackend.insertBatch(tables, rows);
+				tables.clear();
+				rows.clear();
+			}
+		}
+		cursor.close();
+		mBackend.insertBatch(tables, rows);
+
+		if (count > 0) {
+			mPendingChanges.add(MediaLibrary.TABLE_SONGS, MediaLibrary.ChangeSet.INSERT)
+				.add(MediaLibrary.TABLE_ALBUMS, MediaLibrary.ChangeSet.INSERT)
+				.add(MediaLibrary.TABLE_CONTRIBUTORS, MediaLibrary.ChangeSet.INSERT)
+				.add(MediaLibrary.TABLE_CONTRIBUTORS_SONGS, MediaLibrary.ChangeSet.INSERT)
+				.add(MediaLibrary.TABLE_DIRECTORIES, MediaLibrary.ChangeSet.INSERT);
+			mHandler.sendEmptyMessage(MSG_NOTIFY_CHANGE);
+		}
+		Log.v("VanillaMusic", "Imported "+count+" songs from the media store");
+		return count;
+	}
+
+	/**
+	 * Returns true if our library does not contain a single song
+	 */
+	private boolean isLibraryEmpty() {
+		Cursor cursor = mBackend.query(false, MediaLibrary.TABLE_SONGS, new String[]{ MediaLibrary.SongColumns._ID }, null, null, null, null, null, "1");
+		boolean empty = !cursor.moveToFirst();
+		cursor.close();
+		return empty;
+	}
+
+	/**
+	 * Queues a contributor and its link to a song for insertion
+	 *
+	 * @param tables the tables to add to
+	 * @param rows the rows to add to
+	 * @param songId the song to link
+	 * @param name the name of the contributor
+	 * @param role the role of the contributor
+	 */
+	private static void addNativeContributor(ArrayList<String> tables, ArrayList<ContentValues> rows, long songId, String name, int role) {
+		final long id = MediaLibrary.hash63(name);
+
+		ContentValues v = new ContentValues();
+		v.put(MediaLibrary.ContributorColumns._ID,               id);
+		v.put(MediaLibrary.ContributorColumns._CONTRIBUTOR,      name);
+		v.put(MediaLibrary.ContributorColumns._CONTRIBUTOR_SORT, MediaLibrary.keyFor(name));
+		v.put(MediaLibrary.ContributorColumns._CONTRIBUTOR_SEARCH, MediaLibrary.searchKeyFor(name));
+		tables.add(MediaLibrary.TABLE_CONTRIBUTORS);
+		rows.add(v);
+
+		v = new ContentValues();
+		v.put(MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID, id);
+		v.put(MediaLibrary.ContributorSongColumns.SONG_ID,         songId);
+		v.put(MediaLibrary.ContributorSongColumns.ROLE,            role);
+		tables.add(MediaLibrary.TABLE_CONTRIBUTORS_SONGS);
+		rows.add(v);
+	}
+
 	/**
 	 * Scans every file in our own library and checks for changes
 	 *
@@ -438,7 +799,16 @@ public class MediaScanner implements Handler.Callback {
 			return false; // on-disk mtime is older than db mtime and it still exists -> nothing to do
 		}
 
-		if (dbEntryMtime != 0) {
+		if (dbEntryMtime == MediaLibraryBackend.NATIVE_IMPORT_MTIME * 1000L) {
+			// Imported from the media store: the row is replaced by our own parser below.
+			// Only drop the song and its links, orphans are removed once the scan finished.
+			playCount = mBackend.getColumnFromSongId(MediaLibrary.SongColumns.PLAYCOUNT, songId);
+			skipCount = mBackend.getColumnFromSongId(MediaLibrary.SongColumns.SKIPCOUNT, songId);
+			mBackend.removeSongRow(songId);
+			mPendingChanges.add(MediaLibrary.TABLE_SONGS, MediaLibrary.ChangeSet.DELETE, songId);
+			mPendingCleanup = true;
+			hasChanged = true;
+		} else if (dbEntryMtime != 0) {
 			// DB entry exists but is outdated - drop current entry and maybe re-insert it
 			// this tries to preserve play and skipcounts of the song
 			playCount = mBackend.getColumnFromSongId(MediaLibrary.SongColumns.PLAYCOUNT, songId);
@@ -447,6 +817,8 @@ public class MediaScanner implements Handler.Callback {
 			// playlist references to it.
 			mBackend.delete(MediaLibrary.TABLE_SONGS, MediaLibrary.SongColumns._ID+"="+songId, null);
 			mBackend.cleanOrphanedEntries(false);
+			mPendingChanges.add(MediaLibrary.TABLE_SONGS, MediaLibrary.ChangeSet.DELETE, songId);
+			mPendingChanges.merge(MediaLibrary.describeOrphanCleanup(false));
 			mPendingCleanup = true; // Ensure that we run a full cleanup after all scans finished, to get rid of orphaned playlist entries.
 			hasChanged = true; // notify caller about change even if we are not going to re-insert this file.
 		}
@@ -488,6 +860,7 @@ public class MediaScanner implements Handler.Callback {
 			v.put(MediaLibrary.SongColumns._ID,         songId);
 			v.put(MediaLibrary.SongColumns.TITLE,       title);
 			v.put(MediaLibrary.SongColumns.TITLE_SORT,  MediaLibrary.keyFor(title));
+			v.put(MediaLibrary.SongColumns.TITLE_SEARCH, MediaLibrary.searchKeyFor(title));
 			v.put(MediaLibrary.SongColumns.ALBUM_ID,    albumId);
 			v.put(MediaLibrary.SongColumns.DURATION,    tags.getFirst(MediaMetadataExtractor.DURATION));
 			v.put(MediaLibrary.SongColumns.SONG_NUMBER, tags.getFirst(MediaMetadataExtractor.TRACK_NUMBER));
@@ -496,20 +869,26 @@ public class MediaScanner implements Handler.Callback {
 			v.put(MediaLibrary.SongColumns.PLAYCOUNT,   playCount);
 			v.put(MediaLibrary.SongColumns.SKIPCOUNT,   skipCount);
 			v.put(MediaLibrary.SongColumns.PATH,        path);
+			v.put(MediaLibrary.SongColumns.DIR_ID,      mBackend.insertDirectory(file.getAbsoluteFile().getParentFile()));
 			mBackend.insert(MediaLibrary.TABLE_SONGS, null, v);
+			mPendingChanges.add(MediaLibrary.TABLE_SONGS, MediaLibrary.ChangeSet.INSERT, songId);
 
 			v.clear();
 			v.put(MediaLibrary.AlbumColumns._ID,               albumId);
 			v.put(MediaLibrary.AlbumColumns.ALBUM,             album);
 			v.put(MediaLibrary.AlbumColumns.ALBUM_SORT,        MediaLibrary.keyFor(album));
+			v.put(MediaLibrary.AlbumColumns.ALBUM_SEARCH,      MediaLibrary.searchKeyFor(album));
 			v.put(MediaLibrary.AlbumColumns.PRIMARY_ARTIST_ID, artistId);
 			v.put(MediaLibrary.AlbumColumns.PRIMARY_ALBUM_YEAR,tags.getFirst(MediaMetadataExtractor.YEAR));
 			mBackend.insert(MediaLibrary.TABLE_ALBUMS, null, v);
+			mPendingChanges.add(MediaLibrary.TABLE_ALBUMS, MediaLibrary.ChangeSet.INSERT, albumId);
+			updateAlbumCover(albumId, file);
 
 			v.clear();
 			v.put(MediaLibrary.ContributorColumns._ID,               artistId);
 			v.put(MediaLibrary.ContributorColumns._CONTRIBUTOR,      artist);
 			v.put(MediaLibrary.ContributorColumns._CONTRIBUTOR_SORT, MediaLibrary.keyFor(artist));
+			v.put(MediaLibrary.ContributorColumns._CONTRIBUTOR_SEARCH, MediaLibrary.searchKeyFor(artist));
 			mBackend.insert(MediaLibrary.TABLE_CONTRIBUTORS, null, v);
 
 			v.clear();
@@ -517,6 +896,8 @@ public class MediaScanner implements Handler.Callback {
 			v.put(MediaLibrary.ContributorSongColumns.SONG_ID,         songId);
 			v.put(MediaLibrary.ContributorSongColumns.ROLE,            MediaLibrary.ROLE_ARTIST);
 			mBackend.insert(MediaLibrary.TABLE_CONTRIBUTORS_SONGS, null, v);
+			mPendingChanges.add(MediaLibrary.TABLE_CONTRIBUTORS, MediaLibrary.ChangeSet.INSERT, artistId);
+			mPendingChanges.add(MediaLibrary.TABLE_CONTRIBUTORS_SONGS, MediaLibrary.ChangeSet.INSERT, artistId);
 
 			// Composers are optional: only add if we found it
 			String composer = tags.getFirst(MediaMetadataExtractor.COMPOSER);
@@ -526,6 +907,7 @@ public class MediaScanner implements Handler.Callback {
 				v.put(MediaLibrary.ContributorColumns._ID,               composerId);
 				v.put(MediaLibrary.ContributorColumns._CONTRIBUTOR,      composer);
 				v.put(MediaLibrary.ContributorColumns._CONTRIBUTOR_SORT, MediaLibrary.keyFor(composer));
+				v.put(MediaLibrary.ContributorColumns._CONTRIBUTOR_SEARCH, MediaLibrary.searchKeyFor(composer));
 				mBackend.insert(MediaLibrary.TABLE_CONTRIBUTORS, null, v);
 
 				v.clear();
@@ -533,6 +915,8 @@ public class MediaScanner implements Handler.Callback {
 				v.put(MediaLibrary.ContributorSongColumns.SONG_ID,         songId);
 				v.put(MediaLibrary.ContributorSongColumns.ROLE,            MediaLibrary.ROLE_COMPOSER);
 				mBackend.insert(MediaLibrary.TABLE_CONTRIBUTORS_SONGS, null, v);
+				mPendingChanges.add(MediaLibrary.TABLE_CONTRIBUTORS, MediaLibrary.ChangeSet.INSERT, composerId);
+				mPendingChanges.add(MediaLibrary.TABLE_CONTRIBUTORS_SONGS, MediaLibrary.ChangeSet.INSERT, composerId);
 			}
 
 			// Same as with composer: albumartist is an optional tag
@@ -543,6 +927,7 @@ public class MediaScanner implements Handler.Callback {
 				v.put(MediaLibrary.ContributorColumns._ID,               albumartistId);
 				v.put(MediaLibrary.ContributorColumns._CONTRIBUTOR,      albumartist);
 				v.put(MediaLibrary.ContributorColumns._CONTRIBUTOR_SORT, MediaLibrary.keyFor(albumartist));
+				v.put(MediaLibrary.ContributorColumns._CONTRIBUTOR_SEARCH, MediaLibrary.searchKeyFor(albumartist));
 				mBackend.insert(MediaLibrary.TABLE_CONTRIBUTORS, null, v);
 
 				v.clear();
@@ -550,6 +935,8 @@ public class MediaScanner implements Handler.Callback {
 				v.put(MediaLibrary.ContributorSongColumns.SONG_ID,         songId);
 				v.put(MediaLibrary.ContributorSongColumns.ROLE,            MediaLibrary.ROLE_ALBUMARTIST);
 				mBackend.insert(MediaLibrary.TABLE_CONTRIBUTORS_SONGS, null, v);
+				mPendingChanges.add(MediaLibrary.TABLE_CONTRIBUTORS, MediaLibrary.ChangeSet.INSERT, albumartistId);
+				mPendingChanges.add(MediaLibrary.TABLE_CONTRIBUTORS_SONGS, MediaLibrary.ChangeSet.INSERT, albumartistId);
 			}
 
 			// A song might be in multiple genres
@@ -561,12 +948,15 @@ public class MediaScanner implements Handler.Callback {
 					v.put(MediaLibrary.GenreColumns._ID,         genreId);
 					v.put(MediaLibrary.GenreColumns._GENRE,      genre);
 					v.put(MediaLibrary.GenreColumns._GENRE_SORT, MediaLibrary.keyFor(genre));
+					v.put(MediaLibrary.GenreColumns._GENRE_SEARCH, MediaLibrary.searchKeyFor(genre));
 					mBackend.insert(MediaLibrary.TABLE_GENRES, null, v);
 
 					v.clear();
 					v.put(MediaLibrary.GenreSongColumns._GENRE_ID, genreId);
 					v.put(MediaLibrary.GenreSongColumns.SONG_ID, songId);
 					mBackend.insert(MediaLibrary.TABLE_GENRES_SONGS, null, v);
+					mPendingChanges.add(MediaLibrary.TABLE_GENRES, MediaLibrary.ChangeSet.INSERT, genreId);
+					mPendingChanges.add(MediaLibrary.TABLE_GENRES_SONGS, MediaLibrary.ChangeSet.INSERT, genreId);
 				}
 			}
 		} // end if (mustInsert)
@@ -576,6 +966,151 @@ public class MediaScanner implements Handler.Callback {
 	}
 
 	private static final Pattern sIgnoredFilenames = Pattern.compile("^([^\\.]+|.+\\.(jpe?g|gif|png|bmp|webm|txt|pdf|avi|mp4|mkv|zip|tgz|xml|tmp|bin))$", Pattern.CASE_INSENSITIVE);
+	/**
+	 * Compares the folder rules with the rules the library was built
+	 * with, drops songs which are now excluded and scans folders which
+	 * are now included.
+	 */
+	private void updateFolderRules() {
+		MediaLibrary.Preferences prefs = MediaLibrary.getPreferences(mContext);
+		ArrayList<String> oldIncluded = prefs._indexedMediaFolders;
+		ArrayList<String> oldExcluded = prefs._indexedBlacklistedFolders;
+		ArrayList<String> included = new ArrayList<>(prefs.mediaFolders);
+		ArrayList<String> excluded = new ArrayList<>(prefs.blacklistedFolders);
+
+		if (included.equals(oldIncluded) && excluded.equals(oldExcluded))
+			return;
+
+		prefs._indexedMediaFolders = included;
+		prefs._indexedBlacklistedFolders = excluded;
+		MediaLibrary.setPreferences(mContext, prefs);
+
+		// getPreferences() always records the rules, but be safe
+		if (oldIncluded == null || oldExcluded == null)
+			return;
+
+		// Only these subtrees can contain songs which are now excluded
+		ArrayList<String> lost = new ArrayList<>();
+		for (String path : oldIncluded) {
+			if (!included.contains(path))
+				lost.add(path);
+		}
+		for (String path : excluded) {
+			if (!oldExcluded.contains(path))
+				lost.add(path);
+		}
+
+		ArrayList<Long> dirIds = new ArrayList<>();
+		for (String path : lost) {
+			final String dir = MediaLibrary.toDirectoryPath(path);
+			final String[] range = { dir, dir.substring(0, dir.length() - 1) + (char)('/' + 1) };
+			Cursor cursor = mBackend.query(false, MediaLibrary.TABLE_DIRECTORIES,
+			                               new String[]{ MediaLibrary.DirectoryColumns._ID, MediaLibrary.DirectoryColumns.PATH },
+			                               MediaLibrary.DirectoryColumns.PATH+">=? AND "+MediaLibrary.DirectoryColumns.PATH+"<?", range, null, null, null, null);
+			while (cursor.moveToNext()) {
+				// a nested folder may still be included
+				if (isExcluded(cursor.getString(1)) && !dirIds.contains(cursor.getLong(0)))
+					dirIds.add(cursor.getLong(0));
+			}
+			cursor.close();
+		}
+
+		if (dirIds.size() > 0) {
+			StringBuilder selection = new StringBuilder(MediaLibrary.SongColumns.DIR_ID+" IN (");
+			for (int i = 0; i < dirIds.size(); i++) {
+				selection.append(i == 0 ? "" : ",").append(dirIds.get(i));
+			}
+			selection.append(")");
+
+			ArrayList<Long> ids = new ArrayList<>();
+			Cursor cursor = mBackend.query(false, MediaLibrary.TABLE_SONGS, new String[]{ MediaLibrary.SongColumns._ID }, selection.toString(), null, null, null, null, null);
+			while (cursor.moveToNext()) {
+				ids.add(cursor.getLong(0));
+			}
+			cursor.close();
+
+			if (mBackend.removeSongs(ids) > 0) {
+				for (Long id : ids) {
+					mPendingChanges.add(MediaLibrary.TABLE_SONGS, MediaLibrary.ChangeSet.DELETE, id);
+				}
+				mPendingChanges.add(MediaLibrary.TABLE_PLAYLISTS_SONGS, MediaLibrary.ChangeSet.DELETE);
+				mPendingChanges.merge(MediaLibrary.describeOrphanCleanup(false));
+				mHandler.sendEmptyMessage(MSG_NOTIFY_CHANGE);
+				mSnapshotOutdated = true;
+			}
+		}
+
+		// Folders which are now included: an exclusion being removed
+		// also (re-)includes everything below it.
+		boolean mustScan = false;
+		for (String path : included) {
+			if (!oldIncluded.contains(path)) {
+				mScanPlan.addNextStep(RPC_READ_DIR, new File(path));
+				mustScan = true;
+			}
+		}
+		for (String path : oldExcluded) {
+			if (!excluded.contains(path) && !isExcluded(MediaLibrary.toDirectoryPath(path))) {
+				mScanPlan.addNextStep(RPC_READ_DIR, new File(path));
+				mustScan = true;
+			}
+		}
+		if (mustScan) {
+			mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_KICKSTART, 0));
+		} else if (mSnapshotOutdated && !mHandler.hasMessages(MSG_SCAN_RPC)) {
+			mSnapshotOutdated = false;
+			mBackend.exportSnapshot();
+		}
+	}
+
+	/**
+	 * Records the cover of an album, so CoverCache does not have to search for it
+	 *
+	 * @param albumId the album to update
+	 * @param file the song which was just inserted
+	 */
+	private void updateAlbumCover(long albumId, File file) {
+		final File dir = file.getAbsoluteFile().getParentFile();
+		// Songs of a directory are usually inspected in a row: only search once
+		final long fingerprint = MediaLibrary.getDirectoryFingerprint(dir);
+		if (fingerprint != mCoverDirFingerprint) {
+			mCoverDirFingerprint = fingerprint;
+			mCoverDirPath = MediaLibrary.findFolderCover(dir);
+			mCoverAlbumId = -1;
+		}
+
+		int source = MediaLibrary.COVER_SOURCE_FOLDER;
+		if (mCoverDirPath == null) {
+			// Embedded pictures belong to the album, not to the directory,
+			// which might contain songs of other albums
+			if (albumId != mCoverAlbumId) {
+				mCoverAlbumId = albumId;
+				mCoverAlbumSource = (hasEmbeddedCover(file) ? MediaLibrary.COVER_SOURCE_EMBEDDED : MediaLibrary.COVER_SOURCE_NONE);
+			}
+			source = mCoverAlbumSource;
+		}
+		mBackend.setAlbumCover(albumId, mCoverDirPath, source, MediaLibrary.getDirectoryId(dir.getPath()), fingerprint);
+	}
+
+	/**
+	 * Returns true if given file contains a picture
+	 *
+	 * @param file the file to inspect
+	 * @return boolean
+	 */
+	private static boolean hasEmbeddedCover(File file) {
+		MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+		try {
+			retriever.setDataSource(file.getPath());
+			return retriever.getEmbeddedPicture() != null;
+		} catch (Exception e) {
+			Log.v("VanillaMusic", "Failed to check for embedded picture in "+file+": "+e);
+			return false;
+		} finally {
+			retriever.release();
+		}
+	}
+
 	/**
 	 * Returns true if the file should not be scanned
 	 *
@@ -586,20 +1121,31 @@ public class MediaScanner implements Handler.Callback {
 		if (sIgnoredFilenames.matcher(file.getName()).matches())
 			return true;
 
+		return isExcluded(file.getPath());
+	}
+
+	/**
+	 * Returns true if given path is outside of all media folders
+	 * or inside of a blacklisted folder
+	 *
+	 * @param path the path to check
+	 * @return boolean
+	 */
+	private boolean isExcluded(String path) {
 		int wlPoints = -1;
 		int blPoints = -1;
 
-		for (String path : MediaLibrary.getPreferences(mContext).mediaFolders) {
-			if (path.length() > wlPoints &&
-			    file.getPath().startsWith(path)) {
-				wlPoints = path.length();
+		for (String folder : MediaLibrary.getPreferences(mContext).mediaFolders) {
+			if (folder.length() > wlPoints &&
+			    path.startsWith(folder)) {
+				wlPoints = folder.length();
 			}
 		}
 
-		for (String path : MediaLibrary.getPreferences(mContext).blacklistedFolders) {
-			if (path.length() > blPoints &&
-			    file.getPath().startsWith(path)) {
-				blPoints = path.length();
+		for (String folder : MediaLibrary.getPreferences(mContext).blacklistedFolders) {
+			if (folder.length() > blPoints &&
+			    path.startsWith(folder)) {
+				blPoints = folder.length();
 			}
 		}
 
@@ -17,7 +17,11 @@
 
 package ch.blinkenlights.android.medialibrary;
 
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.File;
 
 public class MediaSchema {
 	/**
@@ -26,7 +30,8 @@ public class MediaSchema {
 	private static final String DATABASE_CREATE_SONGS = "CREATE TABLE "+ MediaLibrary.TABLE_SONGS + " ("
 	  + MediaLibrary.SongColumns._ID          +" INTEGER PRIMARY KEY, "
 	  + MediaLibrary.SongColumns.TITLE        +" TEXT NOT NULL, "
-	  + MediaLibrary.SongColumns.TITLE_SORT   +" VARCHAR(64) NOT NULL, "
+	  + MediaLibrary.SongColumns.TITLE_SORT   +" BLOB NOT NULL, "
+	  + MediaLibrary.SongColumns.TITLE_SEARCH +" TEXT NOT NULL DEFAULT '', "
 	  + MediaLibrary.SongColumns.SONG_NUMBER  +" INTEGER, "
 	  + MediaLibrary.SongColumns.DISC_NUMBER  +" INTEGER, "
 	  + MediaLibrary.SongColumns.YEAR         +" INTEGER, "
@@ -35,18 +40,50 @@ public class MediaSchema {
 	  + MediaLibrary.SongColumns.SKIPCOUNT    +" INTEGER NOT NULL DEFAULT 0, "
 	  + MediaLibrary.SongColumns.MTIME        +" TIMESTAMP DEFAULT (strftime('%s', CURRENT_TIMESTAMP)), "
 	  + MediaLibrary.SongColumns.DURATION     +" INTEGER NOT NULL, "
-	  + MediaLibrary.SongColumns.PATH         +" VARCHAR(4096) NOT NULL "
+	  + MediaLibrary.SongColumns.PATH         +" VARCHAR(4096) NOT NULL, "
+	  + MediaLibrary.SongColumns.DIR_ID       +" INTEGER NOT NULL DEFAULT 0 "
 	  + ");";
 
+	/**
+	 * Index to select all songs of a directory quickly
+	 */
+	private static final String INDEX_IDX_SONGS_DIR_ID = "CREATE INDEX idx_songs_dir_id ON "+MediaLibrary.TABLE_SONGS
+	 +" ("+MediaLibrary.SongColumns.DIR_ID+")"
+	 +";";
+
+	/**
+	 * SQL Schema of `directories' table. The unique path doubles as range index:
+	 * all directories below `/foo/' sort between `/foo/' and `/foo0'.
+	 */
+	private static final String DATABASE_CREATE_DIRECTORIES = "CREATE TABLE "+ MediaLibrary.TABLE_DIRECTORIES + " ("
+	  + MediaLibrary.DirectoryColumns._ID        +" INTEGER PRIMARY KEY, "
+	  + MediaLibrary.DirectoryColumns.PARENT_ID  +" INTEGER NOT NULL, "
+	  + MediaLibrary.DirectoryColumns.NAME       +" TEXT NOT NULL, "
+	  + MediaLibrary.DirectoryColumns.PATH       +" VARCHAR(4096) NOT NULL UNIQUE, "
+	  + MediaLibrary.DirectoryColumns.MTIME      +" TIMESTAMP DEFAULT (strftime('%s', CURRENT_TIMESTAMP)) "
+	  + ");";
+
+	/**
+	 * Index to list the children of a directory quickly
+	 */
+	private static final String INDEX_IDX_DIRECTORIES_PARENT_ID = "CREATE INDEX idx_directories_parent_id ON "+MediaLibrary.TABLE_DIRECTORIES
+	 +" ("+MediaLibrary.DirectoryColumns.PARENT_ID+")"
+	 +";";
+
 	/**
 	 * SQL Schema of `albums' table
 	 */
 	private static final String DATABASE_CREATE_ALBUMS = "CREATE TABLE "+ MediaLibrary.TABLE_ALBUMS + " ("
 	  + MediaLibrary.AlbumColumns._ID               +" INTEGER PRIMARY KEY, "
 	  + MediaLibrary.AlbumColumns.ALBUM             +" TEXT NOT NULL, "
-	  + MediaLibrary.AlbumColumns.ALBUM_SORT        +" VARCHAR(64) NOT NULL, "
+	  + MediaLibrary.AlbumColumns.ALBUM_SORT        +" BLOB NOT NULL, "
+	  + MediaLibrary.AlbumColumns.ALBUM_SEARCH      +" TEXT NOT NULL DEFAULT '', "
 	  + MediaLibrary.AlbumColumns.PRIMARY_ALBUM_YEAR+" INTEGER, "
 	  + MediaLibrary.AlbumColumns.PRIMARY_ARTIST_ID +" INTEGER NOT NULL DEFAULT 0, "
+	  + MediaLibrary.AlbumColumns.COVER_PATH        +" VARCHAR(4096), "
+	  + MediaLibrary.AlbumColumns.COVER_FINGERPRINT +" INTEGER NOT NULL DEFAULT 0, "
+	  + MediaLibrary.AlbumColumns.COVER_SOURCE      +" INTEGER NOT NULL DEFAULT 0, "
+	  + MediaLibrary.AlbumColumns.COVER_DIR_ID      +" INTEGER NOT NULL DEFAULT 0, "
 	  + MediaLibrary.AlbumColumns.MTIME             +" TIMESTAMP DEFAULT CURRENT_TIMESTAMP "
 	  + ");";
 
@@ -56,7 +93,8 @@ public class MediaSchema {
 	private static final String DATABASE_CREATE_CONTRIBUTORS = "CREATE TABLE "+ MediaLibrary.TABLE_CONTRIBUTORS + " ("
 	  + MediaLibrary.ContributorColumns._ID               +" INTEGER PRIMARY KEY, "
 	  + MediaLibrary.ContributorColumns._CONTRIBUTOR      +" TEXT NOT NULL, "
-	  + MediaLibrary.ContributorColumns._CONTRIBUTOR_SORT +" TEXT NOT NULL, "
+	  + MediaLibrary.ContributorColumns._CONTRIBUTOR_SORT +" BLOB NOT NULL, "
+	  + MediaLibrary.ContributorColumns._CONTRIBUTOR_SEARCH +" TEXT NOT NULL DEFAULT '', "
 	  + MediaLibrary.ContributorColumns.MTIME             +" TIMESTAMP DEFAULT CURRENT_TIMESTAMP "
 	  + ");";
 
@@ -86,7 +124,8 @@ public class MediaSchema {
 	private static final String DATABASE_CREATE_GENRES = "CREATE TABLE "+ MediaLibrary.TABLE_GENRES + " ("
 	  + MediaLibrary.GenreColumns._ID         +" INTEGER PRIMARY KEY, "
 	  + MediaLibrary.GenreColumns._GENRE      +" TEXT NOT NULL, "
-	  + MediaLibrary.GenreColumns._GENRE_SORT +" TEXT NOT NULL "
+	  + MediaLibrary.GenreColumns._GENRE_SORT +" BLOB NOT NULL, "
+	  + MediaLibrary.GenreColumns._GENRE_SEARCH +" TEXT NOT NULL DEFAULT '' "
 	  + ");";
 
 	/**
@@ -118,10 +157,10 @@ public class MediaSchema {
 	  + ");";
 
 	/**
-	 * Index to select a playlist quickly
+	 * Index to select a playlist quickly, sorted by position
 	 */
-	private static final String INDEX_IDX_PLAYLIST_ID = "CREATE INDEX idx_playlist_id ON "+MediaLibrary.TABLE_PLAYLISTS_SONGS
-	 +" ("+MediaLibrary.PlaylistSongColumns.PLAYLIST_ID+")"
+	private static final String INDEX_IDX_PLAYLIST_ID_POSITION = "CREATE INDEX idx_playlist_id_position ON "+MediaLibrary.TABLE_PLAYLISTS_SONGS
+	 +" ("+MediaLibrary.PlaylistSongColumns.PLAYLIST_ID+", "+MediaLibrary.PlaylistSongColumns.POSITION+")"
 	 +";";
 
 	/**
@@ -131,11 +170,94 @@ public class MediaSchema {
 	 +" ("+MediaLibrary.PlaylistSongColumns.PLAYLIST_ID+", "+MediaLibrary.PlaylistSongColumns.SONG_ID+")"
 	 +";";
 
+	/**
+	 * Indexes on the sort keys. The rowid is part of every index entry, so
+	 * these cover queries which only need the key and the _id.
+	 */
+	private static final String INDEX_IDX_SONGS_TITLE_SORT = "CREATE INDEX idx_songs_title_sort ON "+MediaLibrary.TABLE_SONGS
+	 +" ("+MediaLibrary.SongColumns.TITLE_SORT+")"
+	 +";";
+	private static final String INDEX_IDX_ALBUMS_ALBUM_SORT = "CREATE INDEX idx_albums_album_sort ON "+MediaLibrary.TABLE_ALBUMS
+	 +" ("+MediaLibrary.AlbumColumns.ALBUM_SORT+")"
+	 +";";
+	private static final String INDEX_IDX_CONTRIBUTORS_SORT = "CREATE INDEX idx_contributors_sort ON "+MediaLibrary.TABLE_CONTRIBUTORS
+	 +" ("+MediaLibrary.ContributorColumns._CONTRIBUTOR_SORT+")"
+	 +";";
+	private static final String INDEX_IDX_GENRES_SORT = "CREATE INDEX idx_genres_sort ON "+MediaLibrary.TABLE_GENRES
+	 +" ("+MediaLibrary.GenreColumns._GENRE_SORT+")"
+	 +";";
+
+	/**
+	 * Index to select the songs of an album in track order. Also used to
+	 * find orphaned albums without scanning the songs table.
+	 */
+	private static final String INDEX_IDX_SONGS_ALBUM_ID = "CREATE INDEX idx_songs_album_id ON "+MediaLibrary.TABLE_SONGS
+	 +" ("+MediaLibrary.SongColumns.ALBUM_ID+", "+MediaLibrary.SongColumns.DISC_NUMBER+", "+MediaLibrary.SongColumns.SONG_NUMBER+")"
+	 +";";
+
+	/**
+	 * Index to find the genres of a song, the primary key only helps in the other direction
+	 */
+	private static final String INDEX_IDX_GENRES_SONGS_SONG_ID = "CREATE INDEX idx_genres_songs_song_id ON "+MediaLibrary.TABLE_GENRES_SONGS
+	 +" ("+MediaLibrary.GenreSongColumns.SONG_ID+")"
+	 +";";
+
+	/**
+	 * Index to find playlist entries of a song, used when songs are removed
+	 */
+	private static final String INDEX_IDX_PLAYLISTS_SONGS_SONG_ID = "CREATE INDEX idx_playlists_songs_song_id ON "+MediaLibrary.TABLE_PLAYLISTS_SONGS
+	 +" ("+MediaLibrary.PlaylistSongColumns.SONG_ID+")"
+	 +";";
+
+	/**
+	 * SQL Schema of the append-only log of play and skip events
+	 */
+	private static final String DATABASE_CREATE_PLAY_EVENTS = "CREATE TABLE "+ MediaLibrary.TABLE_PLAY_EVENTS + " ("
+	  + MediaLibrary.PlayEventColumns._ID      +" INTEGER PRIMARY KEY, "
+	  + MediaLibrary.PlayEventColumns.SONG_ID  +" INTEGER NOT NULL, "
+	  + MediaLibrary.PlayEventColumns.PLAYED   +" INTEGER NOT NULL, "
+	  + MediaLibrary.PlayEventColumns.TIME     +" INTEGER NOT NULL "
+	  + ");";
+
+	/**
+	 * Index to select the most played songs without sorting the songs table
+	 */
+	private static final String INDEX_IDX_SONGS_PLAYCOUNT = "CREATE INDEX idx_songs_playcount ON "+MediaLibrary.TABLE_SONGS
+	 +" ("+MediaLibrary.SongColumns.PLAYCOUNT+")"
+	 +";";
+
+	/**
+	 * Indexes for the 'year' and 'date added' sort orders. Songs are further
+	 * sorted by track, which only requires SQLite to sort songs with the same key.
+	 * The songs mtime index also finds songs pending deletion.
+	 */
+	private static final String INDEX_IDX_SONGS_YEAR = "CREATE INDEX idx_songs_year ON "+MediaLibrary.TABLE_SONGS
+	 +" ("+MediaLibrary.SongColumns.YEAR+")"
+	 +";";
+	private static final String INDEX_IDX_SONGS_MTIME = "CREATE INDEX idx_songs_mtime ON "+MediaLibrary.TABLE_SONGS
+	 +" ("+MediaLibrary.SongColumns.MTIME+")"
+	 +";";
+	private static final String INDEX_IDX_ALBUMS_YEAR = "CREATE INDEX idx_albums_year ON "+MediaLibrary.TABLE_ALBUMS
+	 +" ("+MediaLibrary.AlbumColumns.PRIMARY_ALBUM_YEAR+")"
+	 +";";
+	private static final String INDEX_IDX_ALBUMS_MTIME = "CREATE INDEX idx_albums_mtime ON "+MediaLibrary.TABLE_ALBUMS
+	 +" ("+MediaLibrary.AlbumColumns.MTIME+")"
+	 +";";
+
+	/**
+	 * Index to check if a contributor is still referenced by any song,
+	 * the primary key starts with the role
+	 */
+	private static final String INDEX_IDX_CONTRIBUTORS_SONGS_CONTRIBUTOR_ID = "CREATE INDEX idx_contributors_songs_contributor_id ON "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS
+	 +" ("+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+")"
+	 +";";
+
 	/**
 	 * Additional columns to select for artist info
 	 */
 	private static final String VIEW_ARTIST_SELECT = "_artist."+MediaLibrary.ContributorColumns._CONTRIBUTOR+" AS "+MediaLibrary.ContributorColumns.ARTIST
 	                                               +",_artist."+MediaLibrary.ContributorColumns._CONTRIBUTOR_SORT+" AS "+MediaLibrary.ContributorColumns.ARTIST_SORT
+	                                               +",_artist."+MediaLibrary.ContributorColumns._CONTRIBUTOR_SEARCH+" AS "+MediaLibrary.ContributorColumns.ARTIST_SEARCH
 	                                               +",_artist."+MediaLibrary.ContributorColumns._ID+" AS "+MediaLibrary.ContributorColumns.ARTIST_ID;
 
 	/**
@@ -143,6 +265,7 @@ public class MediaSchema {
 	 */
 	private static final String VIEW_ALBUMARTIST_SELECT = "_albumartist."+MediaLibrary.ContributorColumns._CONTRIBUTOR+" AS "+MediaLibrary.ContributorColumns.ALBUMARTIST
 	                                                    +",_albumartist."+MediaLibrary.ContributorColumns._CONTRIBUTOR_SORT+" AS "+MediaLibrary.ContributorColumns.ALBUMARTIST_SORT
+	                                                    +",_albumartist."+MediaLibrary.ContributorColumns._CONTRIBUTOR_SEARCH+" AS "+MediaLibrary.ContributorColumns.ALBUMARTIST_SEARCH
 	                                                    +",_albumartist."+MediaLibrary.ContributorColumns._ID+" AS "+MediaLibrary.ContributorColumns.ALBUMARTIST_ID;
 
 	/**
@@ -150,6 +273,7 @@ public class MediaSchema {
 	 */
 	private static final String VIEW_COMPOSER_SELECT = "_composer."+MediaLibrary.ContributorColumns._CONTRIBUTOR+" AS "+MediaLibrary.ContributorColumns.COMPOSER
 	                                                  +",_composer."+MediaLibrary.ContributorColumns._CONTRIBUTOR_SORT+" AS "+MediaLibrary.ContributorColumns.COMPOSER_SORT
+	                                                  +",_composer."+MediaLibrary.ContributorColumns._CONTRIBUTOR_SEARCH+" AS "+MediaLibrary.ContributorColumns.COMPOSER_SEARCH
 	                                                  +",_composer."+MediaLibrary.ContributorColumns._ID+" AS "+MediaLibrary.ContributorColumns.COMPOSER_ID;
 
 
@@ -242,6 +366,9 @@ public class MediaSchema {
 	 */
 	public static void createDatabaseSchema(SQLiteDatabase dbh) {
 		dbh.execSQL(DATABASE_CREATE_SONGS);
+		dbh.execSQL(INDEX_IDX_SONGS_DIR_ID);
+		dbh.execSQL(DATABASE_CREATE_DIRECTORIES);
+		dbh.execSQL(INDEX_IDX_DIRECTORIES_PARENT_ID);
 		dbh.execSQL(DATABASE_CREATE_ALBUMS);
 		dbh.execSQL(DATABASE_CREATE_CONTRIBUTORS);
 		dbh.execSQL(DATABASE_CREATE_CONTRIBUTORS_SONGS);
@@ -250,7 +377,7 @@ public class MediaSchema {
 		dbh.execSQL(DATABASE_CREATE_GENRES_SONGS);
 		dbh.execSQL(DATABASE_CREATE_PLAYLISTS);
 		dbh.execSQL(DATABASE_CREATE_PLAYLISTS_SONGS);
-		dbh.execSQL(INDEX_IDX_PLAYLIST_ID);
+		dbh.execSQL(INDEX_IDX_PLAYLIST_ID_POSITION);
 		dbh.execSQL(INDEX_IDX_PLAYLIST_ID_SONG);
 		dbh.execSQL(VIEW_CREATE_SONGS_ALBUMS_ARTISTS);
 		dbh.execSQL(VIEW_CREATE_SONGS_ALBUMS_ARTISTS_HUGE);
@@ -259,6 +386,20 @@ public class MediaSchema {
 		dbh.execSQL(VIEW_CREATE_ALBUMARTISTS);
 		dbh.execSQL(VIEW_CREATE_COMPOSERS);
 		dbh.execSQL(VIEW_CREATE_PLAYLIST_SONGS);
+		dbh.execSQL(INDEX_IDX_SONGS_TITLE_SORT);
+		dbh.execSQL(INDEX_IDX_ALBUMS_ALBUM_SORT);
+		dbh.execSQL(INDEX_IDX_CONTRIBUTORS_SORT);
+		dbh.execSQL(INDEX_IDX_GENRES_SORT);
+		dbh.execSQL(INDEX_IDX_SONGS_ALBUM_ID);
+		dbh.execSQL(INDEX_IDX_GENRES_SONGS_SONG_ID);
+		dbh.execSQL(INDEX_IDX_PLAYLISTS_SONGS_SONG_ID);
+		dbh.execSQL(DATABASE_CREATE_PLAY_EVENTS);
+		dbh.execSQL(INDEX_IDX_SONGS_PLAYCOUNT);
+		dbh.execSQL(INDEX_IDX_SONGS_YEAR);
+		dbh.execSQL(INDEX_IDX_SONGS_MTIME);
+		dbh.execSQL(INDEX_IDX_ALBUMS_YEAR);
+		dbh.execSQL(INDEX_IDX_ALBUMS_MTIME);
+		dbh.execSQL(INDEX_IDX_CONTRIBUTORS_SONGS_CONTRIBUTOR_ID);
 	}
 
 	/**
@@ -320,6 +461,180 @@ public class MediaSchema {
 			dbh.execSQL(VIEW_CREATE_PLAYLIST_SONGS);
 		}
 
+		if (oldVersion < 20170620) {
+			// Playlist positions are now sparse, so moving an item only needs
+			// to update a single row. idx_playlist_id is a prefix of the new index.
+			dbh.execSQL("UPDATE "+MediaLibrary.TABLE_PLAYLISTS_SONGS+" SET "+MediaLibrary.PlaylistSongColumns.POSITION+"="
+			            +MediaLibrary.PlaylistSongColumns.POSITION+"*"+MediaLibrary.PLAYLIST_POSITION_GAP);
+			dbh.execSQL("DROP INDEX IF EXISTS idx_playlist_id");
+			dbh.execSQL(INDEX_IDX_PLAYLIST_ID_POSITION);
+		}
+
+		if (oldVersion < 20170621) {
+			// Songs reference their directory, so folder queries do not need
+			// a LIKE on the path. Versions before 20170101 already re-created
+			// the songs table above, including the new column.
+			if (oldVersion >= 20170101) {
+				dbh.execSQL("ALTER TABLE "+MediaLibrary.TABLE_SONGS+" ADD COLUMN "+MediaLibrary.SongColumns.DIR_ID+" INTEGER NOT NULL DEFAULT 0");
+			}
+			dbh.execSQL(DATABASE_CREATE_DIRECTORIES);
+			dbh.execSQL(INDEX_IDX_DIRECTORIES_PARENT_ID);
+
+			Cursor cursor = dbh.query(MediaLibrary.TABLE_SONGS, new String[]{ MediaLibrary.SongColumns._ID, MediaLibrary.SongColumns.PATH }, null, null, null, null, null);
+			SQLiteStatement stmt = dbh.compileStatement("UPDATE "+MediaLibrary.TABLE_SONGS+" SET "+MediaLibrary.SongColumns.DIR_ID+"=? WHERE "+MediaLibrary.SongColumns._ID+"=?");
+			while (cursor.moveToNext()) {
+				stmt.bindLong(1, MediaLibraryBackend.insertDirectory(dbh, new File(cursor.getString(1)).getParentFile()));
+				stmt.bindLong(2, cursor.getLong(0));
+				stmt.executeUpdateDelete();
+			}
+			stmt.close();
+			cursor.close();
+			dbh.execSQL(INDEX_IDX_SONGS_DIR_ID);
+		}
+
+		if (oldVersion < 20170622) {
+			// Sort keys are now binary collation keys instead of MediaStore.Audio.keyFor() strings.
+			// SQLite never converts BLOBs, so the existing columns can simply be overwritten.
+			rebuildSortKeys(dbh);
+			dbh.execSQL(INDEX_IDX_SONGS_TITLE_SORT);
+			dbh.execSQL(INDEX_IDX_ALBUMS_ALBUM_SORT);
+			dbh.execSQL(INDEX_IDX_CONTRIBUTORS_SORT);
+			dbh.execSQL(INDEX_IDX_GENRES_SORT);
+		}
+
+		if (oldVersion < 20170623) {
+			// Lookups by song id and album id used to scan the whole mapping tables.
+			dbh.execSQL(INDEX_IDX_SONGS_ALBUM_ID);
+			dbh.execSQL(INDEX_IDX_GENRES_SONGS_SONG_ID);
+			dbh.execSQL(INDEX_IDX_PLAYLISTS_SONGS_SONG_ID);
+		}
+
+		if (oldVersion < 20170624) {
+			dbh.execSQL(DATABASE_CREATE_PLAY_EVENTS);
+			dbh.execSQL(INDEX_IDX_SONGS_PLAYCOUNT);
+		}
+
+		if (oldVersion < 20170625) {
+			// Versions before 20170101 already re-created the albums table above.
+			if (oldVersion >= 20170101) {
+				dbh.execSQL("ALTER TABLE "+MediaLibrary.TABLE_ALBUMS+" ADD COLUMN "+MediaLibrary.AlbumColumns.COVER_PATH+" VARCHAR(4096)");
+				dbh.execSQL("ALTER TABLE "+MediaLibrary.TABLE_ALBUMS+" ADD COLUMN "+MediaLibrary.AlbumColumns.COVER_FINGERPRINT+" INTEGER NOT NULL DEFAULT 0");
+			}
+		}
+
+		if (oldVersion < 20170626) {
+			// Sort keys are binary and can not be searched: names are searched
+			// using separate keys without case and accents.
+			// Versions before 20170101 already re-created the songs and albums table above.
+			if (oldVersion >= 20170101) {
+				dbh.execSQL("ALTER TABLE "+MediaLibrary.TABLE_SONGS+" ADD COLUMN "+MediaLibrary.SongColumns.TITLE_SEARCH+" TEXT NOT NULL DEFAULT ''");
+				dbh.execSQL("ALTER TABLE "+MediaLibrary.TABLE_ALBUMS+" ADD COLUMN "+MediaLibrary.AlbumColumns.ALBUM_SEARCH+" TEXT NOT NULL DEFAULT ''");
+			}
+			dbh.execSQL("ALTER TABLE "+MediaLibrary.TABLE_CONTRIBUTORS+" ADD COLUMN "+MediaLibrary.ContributorColumns._CONTRIBUTOR_SEARCH+" TEXT NOT NULL DEFAULT ''");
+			dbh.execSQL("ALTER TABLE "+MediaLibrary.TABLE_GENRES+" ADD COLUMN "+MediaLibrary.GenreColumns._GENRE_SEARCH+" TEXT NOT NULL DEFAULT ''");
+			rebuildSearchKeys(dbh);
+
+			// All views select the contributor columns by name
+			dbh.execSQL("DROP VIEW IF EXISTS "+MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE);
+			dbh.execSQL("DROP VIEW IF EXISTS "+MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS);
+			dbh.execSQL("DROP VIEW IF EXISTS "+MediaLibrary.VIEW_ALBUMS_ARTISTS);
+			dbh.execSQL("DROP VIEW IF EXISTS "+MediaLibrary.VIEW_ARTISTS);
+			dbh.execSQL("DROP VIEW IF EXISTS "+MediaLibrary.VIEW_ALBUMARTISTS);
+			dbh.execSQL("DROP VIEW IF EXISTS "+MediaLibrary.VIEW_COMPOSERS);
+			dbh.execSQL("DROP VIEW IF EXISTS "+MediaLibrary.VIEW_PLAYLIST_SONGS);
+			dbh.execSQL(VIEW_CREATE_SONGS_ALBUMS_ARTISTS);
+			dbh.execSQL(VIEW_CREATE_SONGS_ALBUMS_ARTISTS_HUGE);
+			dbh.execSQL(VIEW_CREATE_ALBUMS_ARTISTS);
+			dbh.execSQL(VIEW_CREATE_ARTISTS);
+			dbh.execSQL(VIEW_CREATE_ALBUMARTISTS);
+			dbh.execSQL(VIEW_CREATE_COMPOSERS);
+			dbh.execSQL(VIEW_CREATE_PLAYLIST_SONGS);
+		}
+
+		if (oldVersion < 20170627) {
+			// Versions before 20170101 already re-created the albums table above.
+			if (oldVersion >= 20170101) {
+				dbh.execSQL("ALTER TABLE "+MediaLibrary.TABLE_ALBUMS+" ADD COLUMN "+MediaLibrary.AlbumColumns.COVER_SOURCE+" INTEGER NOT NULL DEFAULT 0");
+				dbh.execSQL("ALTER TABLE "+MediaLibrary.TABLE_ALBUMS+" ADD COLUMN "+MediaLibrary.AlbumColumns.COVER_DIR_ID+" INTEGER NOT NULL DEFAULT 0");
+			}
+			// Covers recorded so far do not know their directory: search again
+			dbh.execSQL("UPDATE "+MediaLibrary.TABLE_ALBUMS+" SET "+MediaLibrary.AlbumColumns.COVER_FINGERPRINT+"=0");
+		}
+
+		if (oldVersion < 20170628) {
+			// Sort orders and lookups which QueryPlanCheck found to scan or sort whole tables.
+			dbh.execSQL(INDEX_IDX_SONGS_YEAR);
+			dbh.execSQL(INDEX_IDX_SONGS_MTIME);
+			dbh.execSQL(INDEX_IDX_ALBUMS_YEAR);
+			dbh.execSQL(INDEX_IDX_ALBUMS_MTIME);
+			dbh.execSQL(INDEX_IDX_CONTRIBUTORS_SONGS_CONTRIBUTOR_ID);
+		}
+
+	}
+
+	/**
+	 * Re-computes the sort keys of all tables, eg. after rows were
+	 * imported which might have been sorted by a different version.
+	 *
+	 * @param dbh the writeable dbh to use
+	 */
+	static void rebuildSortKeys(SQLiteDatabase dbh) {
+		rebuildSortKeys(dbh, MediaLibrary.TABLE_SONGS, MediaLibrary.SongColumns.TITLE, MediaLibrary.SongColumns.TITLE_SORT);
+		rebuildSortKeys(dbh, MediaLibrary.TABLE_ALBUMS, MediaLibrary.AlbumColumns.ALBUM, MediaLibrary.AlbumColumns.ALBUM_SORT);
+		rebuildSortKeys(dbh, MediaLibrary.TABLE_CONTRIBUTORS, MediaLibrary.ContributorColumns._CONTRIBUTOR, MediaLibrary.ContributorColumns._CONTRIBUTOR_SORT);
+		rebuildSortKeys(dbh, MediaLibrary.TABLE_GENRES, MediaLibrary.GenreColumns._GENRE, MediaLibrary.GenreColumns._GENRE_SORT);
+	}
+
+	/**
+	 * Re-computes the search keys of all tables
+	 *
+	 * @param dbh the writeable dbh to use
+	 */
+	static void rebuildSearchKeys(SQLiteDatabase dbh) {
+		rebuildSearchKeys(dbh, MediaLibrary.TABLE_SONGS, MediaLibrary.SongColumns.TITLE, MediaLibrary.SongColumns.TITLE_SEARCH);
+		rebuildSearchKeys(dbh, MediaLibrary.TABLE_ALBUMS, MediaLibrary.AlbumColumns.ALBUM, MediaLibrary.AlbumColumns.ALBUM_SEARCH);
+		rebuildSearchKeys(dbh, MediaLibrary.TABLE_CONTRIBUTORS, MediaLibrary.ContributorColumns._CONTRIBUTOR, MediaLibrary.ContributorColumns._CONTRIBUTOR_SEARCH);
+		rebuildSearchKeys(dbh, MediaLibrary.TABLE_GENRES, MediaLibrary.GenreColumns._GENRE, MediaLibrary.GenreColumns._GENRE_SEARCH);
+	}
+
+	/**
+	 * Re-computes the search key of every row in given table
+	 *
+	 * @param dbh the writeable dbh to use
+	 * @param table the table to update
+	 * @param nameColumn the column holding the human readable name
+	 * @param searchColumn the column holding the search key of nameColumn
+	 */
+	private static void rebuildSearchKeys(SQLiteDatabase dbh, String table, String nameColumn, String searchColumn) {
+		Cursor cursor = dbh.query(table, new String[]{ MediaLibrary.SongColumns._ID, nameColumn }, null, null, null, null, null);
+		SQLiteStatement stmt = dbh.compileStatement("UPDATE "+table+" SET "+searchColumn+"=? WHERE "+MediaLibrary.SongColumns._ID+"=?");
+		while (cursor.moveToNext()) {
+			stmt.bindString(1, MediaLibrary.searchKeyFor(cursor.getString(1)));
+			stmt.bindLong(2, cursor.getLong(0));
+			stmt.executeUpdateDelete();
+		}
+		stmt.close();
+		cursor.close();
+	}
+
+	/**
+	 * Re-computes the sort key of every row in given table
+	 *
+	 * @param dbh the writeable dbh to use
+	 * @param table the table to update
+	 * @param nameColumn the column holding the human readable name
+	 * @param sortColumn the column holding the sort key of nameColumn
+	 */
+	private static void rebuildSortKeys(SQLiteDatabase dbh, String table, String nameColumn, String sortColumn) {
+		Cursor cursor = dbh.query(table, new String[]{ MediaLibrary.SongColumns._ID, nameColumn }, null, null, null, null, null);
+		SQLiteStatement stmt = dbh.compileStatement("UPDATE "+table+" SET "+sortColumn+"=? WHERE "+MediaLibrary.SongColumns._ID+"=?");
+		while (cursor.moveToNext()) {
+			stmt.bindBlob(1, MediaLibrary.keyFor(cursor.getString(1)));
+			stmt.bindLong(2, cursor.getLong(0));
+			stmt.executeUpdateDelete();
+		}
+		stmt.close();
+		cursor.close();
 	}
 
 }
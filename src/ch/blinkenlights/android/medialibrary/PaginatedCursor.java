@@ -0,0 +1,636 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.DataSetObservable;
+import android.database.DataSetObserver;
+import android.database.DatabaseUtils;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Pattern;
+
+/**
+ * A read-only cursor which fetches its rows in small windows.
+ *
+ * Rows are fetched using keyset pagination on the sort key of the query:
+ * Each window starts after the last row of the previous window, so scrolling
+ * through a list never makes SQLite skip over rows it already returned.
+ * Jumps to a window which was never visited (eg. by using the fast scroller)
+ * fall back to an OFFSET relative to the closest known window.
+ *
+ * Only the first window is fetched before the cursor is returned: if it is
+ * full, the count starts out as the size of this window and the exact count is
+ * looked up in the background. Observers registered via registerDataSetObserver()
+ * are notified on the UI thread once the count changes.
+ * Windows next to the one being read are fetched in the background, so
+ * scrolling does not block on SQLite.
+ *
+ * Every window is a separate query: rows removed while the cursor is open
+ * make moveToPosition() fail, callers must check its result.
+ */
+public class PaginatedCursor extends AbstractCursor {
+	/**
+	 * How many rows to fetch per window
+	 */
+	static final int WINDOW_SIZE = 100;
+	/**
+	 * How many windows we keep in memory
+	 */
+	private static final int MAX_WINDOWS = 4;
+	/**
+	 * Start fetching the next window once we are this close to its start
+	 */
+	private static final int PRELOAD_DISTANCE = WINDOW_SIZE / 4;
+	/**
+	 * Handler of the thread used to count rows and to preload windows
+	 */
+	private static Handler sLoaderHandler;
+	/**
+	 * Handler of the UI thread, used to publish the exact count
+	 */
+	private static Handler sUiHandler;
+	/**
+	 * Matches a plain column name, as used by the keyset predicate
+	 */
+	private static final Pattern sPlainColumn = Pattern.compile("^[A-Za-z_][A-Za-z0-9_]*$");
+	/**
+	 * Sort columns which are never NULL: descending keysets on these can be
+	 * expressed as a single index range, NULL rows would sort after all others.
+	 */
+	private static final HashSet<String> sNotNullColumns = new HashSet<>(Arrays.asList(
+		MediaLibrary.SongColumns._ID,
+		MediaLibrary.SongColumns.TITLE_SORT,
+		MediaLibrary.SongColumns.PLAYCOUNT,
+		MediaLibrary.AlbumColumns.ALBUM_SORT,
+		MediaLibrary.GenreColumns._GENRE_SORT,
+		MediaLibrary.PlaylistColumns.NAME
+	));
+	/**
+	 * The backend to query
+	 */
+	private final MediaLibraryBackend mBackend;
+	/**
+	 * The table or view to query
+	 */
+	private final String mTable;
+	/**
+	 * The projection we are querying, including all sort columns
+	 */
+	private final String[] mProjection;
+	/**
+	 * The selection as passed in by the caller, may be null
+	 */
+	private final String mSelection;
+	/**
+	 * Arguments to mSelection
+	 */
+	private final String[] mSelectionArgs;
+	/**
+	 * The order used by every window query, always ending with the row id
+	 */
+	private final String mOrderBy;
+	/**
+	 * Columns of the sort key, null if we can not do keyset pagination
+	 */
+	private final String[] mKeyColumns;
+	/**
+	 * True for every entry in mKeyColumns which sorts in descending order
+	 */
+	private final boolean[] mKeyDescending;
+	/**
+	 * Index of each key column in mProjection
+	 */
+	private final int[] mKeyIndexes;
+	/**
+	 * Keyset predicates to fetch the window starting at the given position
+	 */
+	private final TreeMap<Integer, String> mBookmarks = new TreeMap<>();
+	/**
+	 * The loaded windows, indexed by the position of their first row,
+	 * in least recently used order. Guarded by 'this'.
+	 */
+	private final LinkedHashMap<Integer, Cursor> mWindows = new LinkedHashMap<>(MAX_WINDOWS, 0.75f, true);
+	/**
+	 * Start positions of the windows queued for preloading. Guarded by 'this'.
+	 */
+	private final HashSet<Integer> mPendingWindows = new HashSet<>();
+	/**
+	 * Notified once the exact count is known
+	 */
+	private final DataSetObservable mCountObservable = new DataSetObservable();
+	/**
+	 * The number of rows in this cursor, only modified on the UI thread
+	 */
+	private int mCount;
+	/**
+	 * The window holding the current row, may be null
+	 */
+	private Cursor mWindow;
+	/**
+	 * Position of the first row in mWindow
+	 */
+	private int mWindowStart;
+
+	/**
+	 * Creates a new paginated cursor. Should be called on a background
+	 * thread as this will fetch the first window.
+	 *
+	 * @param backend the backend to query
+	 * @param table the table or view to query
+	 * @param projection the columns to return
+	 * @param selection the selection (WHERE) to use
+	 * @param selectionArgs arguments for the selection
+	 * @param orderBy how the result should be sorted, may be null
+	 */
+	PaginatedCursor(MediaLibraryBackend backend, String table, String[] projection, String selection, String[] selectionArgs, String orderBy) {
+		ArrayList<String> columns = new ArrayList<>(Arrays.asList(projection));
+		ArrayList<String> keyColumns = new ArrayList<>();
+		ArrayList<Boolean> keyDescending = new ArrayList<>();
+		boolean keysetUsable = true;
+
+		if (orderBy != null && orderBy.trim().length() != 0) {
+			for (String term : orderBy.split(",")) {
+				String[] parts = term.trim().split("\\s+");
+				if (parts.length > 2 || !sPlainColumn.matcher(parts[0]).matches()) {
+					keysetUsable = false; // this is an expression we can not compare against.
+					break;
+				}
+				keyColumns.add(parts[0]);
+				keyDescending.add(parts.length == 2 && parts[1].equalsIgnoreCase("DESC"));
+			}
+			orderBy += ", ";
+		} else {
+			orderBy = "";
+		}
+		// The row id makes the sort key unique, so no rows are skipped between windows.
+		orderBy += MediaLibrary.SongColumns._ID;
+		keyColumns.add(MediaLibrary.SongColumns._ID);
+		keyDescending.add(false);
+
+		mKeyColumns = keysetUsable ? keyColumns.toArray(new String[keyColumns.size()]) : null;
+		mKeyDescending = new boolean[keyDescending.size()];
+		mKeyIndexes = new int[keyColumns.size()];
+		for (int i = 0; i < mKeyIndexes.length; i++) {
+			final String column = keyColumns.get(i);
+			if (!columns.contains(column))
+				columns.add(column);
+			mKeyIndexes[i] = columns.indexOf(column);
+			mKeyDescending[i] = keyDescending.get(i);
+		}
+
+		mBackend = backend;
+		mTable = table;
+		mProjection = columns.toArray(new String[columns.size()]);
+		mSelection = (selection != null && selection.length() != 0 ? selection : null);
+		mSelectionArgs = selectionArgs;
+		mOrderBy = orderBy;
+
+		mCount = putWindow(0, fetchWindow(0)).getCount();
+
+		if (mCount == WINDOW_SIZE) {
+			// There might be more rows: the list can be shown using the first
+			// window while the real number of rows is counted.
+			getLoaderHandler().post(new Runnable() {
+				@Override
+				public void run() {
+					countRows();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Returns the handler of our loader thread, starting it if needed
+	 */
+	private static synchronized Handler getLoaderHandler() {
+		if (sLoaderHandler == null) {
+			HandlerThread thread = new HandlerThread("PaginatedCursorLoader", Process.THREAD_PRIORITY_BACKGROUND);
+			thread.start();
+			sLoaderHandler = new Handler(thread.getLooper());
+			sUiHandler = new Handler(Looper.getMainLooper());
+		}
+		return sLoaderHandler;
+	}
+
+	/**
+	 * Waits until the loader thread finished all queries which were posted
+	 * so far, eg. before the backend used by a cursor is closed.
+	 * Must not be called on the UI thread.
+	 */
+	static void awaitLoader() {
+		final CountDownLatch done = new CountDownLatch(1);
+		getLoaderHandler().post(new Runnable() {
+			@Override
+			public void run() {
+				done.countDown();
+			}
+		});
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Counts all rows matched by this cursor and publishes the result
+	 * on the UI thread. Runs on the loader thread.
+	 */
+	private void countRows() {
+		if (isClosed())
+			return;
+
+		int count = 0;
+		Cursor cursor = mBackend.query(false, mTable, new String[]{ "count(*)" }, mSelection, mSelectionArgs, null, null, null, null);
+		if (cursor.moveToFirst())
+			count = cursor.getInt(0);
+		cursor.close();
+
+		final int exactCount = count;
+		sUiHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (isClosed() || exactCount == mCount)
+					return;
+				mCount = exactCount;
+				mCountObservable.notifyChanged();
+			}
+		});
+	}
+
+	/**
+	 * Queries the window starting at the given position. The returned cursor is
+	 * already filled, so it may be handed over to another thread.
+	 *
+	 * @param start the position of the first row, a multiple of WINDOW_SIZE
+	 * @return the window, which contains less than WINDOW_SIZE rows at the end of the result
+	 */
+	private Cursor fetchWindow(int start) {
+		String predicate = null;
+		int offset = start;
+
+		synchronized (this) {
+			// Try to find the closest window we already know the keyset of
+			Map.Entry<Integer, String> bookmark = mBookmarks.floorEntry(start);
+			if (bookmark != null) {
+				predicate = bookmark.getValue();
+				offset = start - bookmark.getKey();
+			}
+		}
+
+		String selection = mSelection;
+		if (predicate != null) {
+			// The keyset predicate MUST come first: MediaLibraryBackend.query()
+			// rewrites some selections by matching their end.
+			selection = "("+predicate+")" + (mSelection != null ? " AND "+mSelection : "");
+		}
+
+		Cursor window = mBackend.query(false, mTable, mProjection, selection, mSelectionArgs, null, null, mOrderBy, offset+", "+WINDOW_SIZE);
+		// getCount() makes SQLite run the query right now, not on first access
+		final boolean full = (window.getCount() == WINDOW_SIZE);
+		if (mKeyColumns != null && full && window.moveToLast()) {
+			// Remember where the next window is going to start
+			final String next = buildKeysetPredicate(window);
+			synchronized (this) {
+				mBookmarks.put(start + WINDOW_SIZE, next);
+			}
+		}
+		return window;
+	}
+
+	/**
+	 * Adds a window to our cache, dropping the least recently used
+	 * window if we hold too many of them.
+	 *
+	 * @param start the position of the first row in window
+	 * @param window the window to add
+	 * @return the cached window starting at start, which is not window if we already had one
+	 */
+	private synchronized Cursor putWindow(int start, Cursor window) {
+		Cursor cached = mWindows.get(start);
+		if (cached != null || isClosed()) {
+			window.close();
+			return cached;
+		}
+
+		if (mWindows.size() >= MAX_WINDOWS) {
+			Iterator<Cursor> iter = mWindows.values().iterator();
+			while (iter.hasNext()) {
+				Cursor eldest = iter.next();
+				if (eldest != mWindow) { // never drop the window we are reading from
+					iter.remove();
+					eldest.close();
+					break;
+				}
+			}
+		}
+		mWindows.put(start, window);
+		return window;
+	}
+
+	/**
+	 * Fetches the window starting at the given position in the background,
+	 * unless it is already loaded or queued.
+	 *
+	 * @param start the position of the first row of the window
+	 */
+	private synchronized void preloadWindow(final int start) {
+		// A window starting at mCount is fetched as our count may be an estimate
+		if (start < 0 || start > mCount || mWindows.containsKey(start) || !mPendingWindows.add(start))
+			return;
+
+		getLoaderHandler().post(new Runnable() {
+			@Override
+			public void run() {
+				if (!isClosed())
+					putWindow(start, fetchWindow(start));
+				synchronized (PaginatedCursor.this) {
+					mPendingWindows.remove(start);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns an SQL expression matching all rows which come after the
+	 * current row of given cursor.
+	 *
+	 * @param cursor the cursor to use, positioned on the last row of a window
+	 * @return the SQL expression
+	 */
+	private String buildKeysetPredicate(Cursor cursor) {
+		StringBuilder sb = new StringBuilder();
+		// SQLite does not turn the ORs below into an index range on its own if there
+		// is more than one key column, so we also give it the bound of the first key.
+		final String bound = buildBound(cursor);
+		if (bound != null)
+			sb.append(bound+" AND (");
+		for (int i = 0; i < mKeyColumns.length; i++) {
+			if (i != 0)
+				sb.append(" OR ");
+			sb.append("(");
+			for (int j = 0; j < i; j++) {
+				sb.append(buildComparison(cursor, j, false));
+				sb.append(" AND ");
+			}
+			sb.append(buildComparison(cursor, i, true));
+			sb.append(")");
+		}
+		if (bound != null)
+			sb.append(")");
+		return sb.toString();
+	}
+
+	/**
+	 * Returns a range on the first key column which includes all rows
+	 * coming after the current row of given cursor.
+	 *
+	 * @param cursor the cursor to use, positioned on the last row of a window
+	 * @return the SQL expression, null if the rows can not be expressed as a single range
+	 */
+	private String buildBound(Cursor cursor) {
+		final String column = mKeyColumns[0];
+		final int index = mKeyIndexes[0];
+
+		if (cursor.isNull(index))
+			return null;
+		if (!mKeyDescending[0])
+			return column+">="+toLiteral(cursor, index);
+		if (sNotNullColumns.contains(column))
+			return column+"<="+toLiteral(cursor, index);
+		return null;
+	}
+
+	/**
+	 * Compares a single key column to the value found in cursor
+	 *
+	 * @param cursor the cursor to read the value from
+	 * @param key index into mKeyColumns
+	 * @param after if true, match rows sorting after the value, match equal rows otherwise
+	 * @return the SQL expression
+	 */
+	private String buildComparison(Cursor cursor, int key, boolean after) {
+		final String column = mKeyColumns[key];
+		final int index = mKeyIndexes[key];
+
+		// SQLite sorts NULL before any other value, but NULL can not be compared
+		// using the normal operators.
+		if (cursor.isNull(index)) {
+			if (!after)
+				return column+" IS NULL";
+			return mKeyDescending[key] ? "0" : column+" IS NOT NULL";
+		}
+
+		final String value = toLiteral(cursor, index);
+		if (!after)
+			return column+"="+value;
+		if (mKeyDescending[key] && sNotNullColumns.contains(column))
+			return column+"<"+value;
+		if (mKeyDescending[key])
+			return "("+column+"<"+value+" OR "+column+" IS NULL)";
+		return column+">"+value;
+	}
+
+	/**
+	 * Returns the value of a column as an SQL literal.
+	 * Values are not bound as arguments as this would turn them into strings.
+	 *
+	 * @param cursor the cursor to read from
+	 * @param index the column to read
+	 * @return an SQL literal
+	 */
+	private static String toLiteral(Cursor cursor, int index) {
+		switch (cursor.getType(index)) {
+			case Cursor.FIELD_TYPE_INTEGER:
+				return Long.toString(cursor.getLong(index));
+			case Cursor.FIELD_TYPE_FLOAT:
+				return Double.toString(cursor.getDouble(index));
+			case Cursor.FIELD_TYPE_BLOB: {
+				StringBuilder sb = new StringBuilder("X'");
+				for (byte b : cursor.getBlob(index)) {
+					sb.append(String.format("%02X", b));
+				}
+				return sb.append("'").toString();
+			}
+			default:
+				return DatabaseUtils.sqlEscapeString(cursor.getString(index));
+		}
+	}
+
+	@Override
+	public boolean onMove(int oldPosition, int newPosition) {
+		final int start = newPosition - (newPosition % WINDOW_SIZE);
+		if (mWindow == null || start != mWindowStart) {
+			Cursor window;
+			synchronized (this) {
+				window = mWindows.get(start);
+			}
+			if (window == null) {
+				// Not preloaded (eg. a jump using the fast scroller): we have to wait.
+				window = putWindow(start, fetchWindow(start));
+			}
+			synchronized (this) {
+				mWindow = window;
+				mWindowStart = start;
+			}
+		}
+
+		final int offset = newPosition - start;
+		if (offset >= WINDOW_SIZE - PRELOAD_DISTANCE)
+			preloadWindow(start + WINDOW_SIZE);
+		if (offset < PRELOAD_DISTANCE)
+			preloadWindow(start - WINDOW_SIZE);
+
+		// Fails if rows were removed since our count was taken
+		return mWindow.moveToPosition(offset);
+	}
+
+	/**
+	 * Returns the values of a row without moving this cursor. The database
+	 * is never queried: only rows of windows which are already loaded
+	 * can be returned.
+	 *
+	 * @param position the row to read
+	 * @return the values of the row, or null if the row is not loaded
+	 */
+	public synchronized Object[] peekRow(int position) {
+		final int start = position - (position % WINDOW_SIZE);
+		final Cursor window = mWindows.get(start);
+		if (window == null)
+			return null;
+
+		// The window may be the one we are reading from: restore its position
+		final int current = window.getPosition();
+		try {
+			if (!window.moveToPosition(position - start))
+				return null;
+
+			Object[] row = new Object[window.getColumnCount()];
+			for (int i = 0; i < row.length; i++) {
+				switch (window.getType(i)) {
+					case Cursor.FIELD_TYPE_INTEGER:
+						row[i] = window.getLong(i);
+						break;
+					case Cursor.FIELD_TYPE_FLOAT:
+						row[i] = window.getDouble(i);
+						break;
+					case Cursor.FIELD_TYPE_STRING:
+						row[i] = window.getString(i);
+						break;
+					case Cursor.FIELD_TYPE_BLOB:
+						row[i] = window.getBlob(i);
+						break;
+				}
+			}
+			return row;
+		} finally {
+			window.moveToPosition(current);
+		}
+	}
+
+	@Override
+	public void registerDataSetObserver(DataSetObserver observer) {
+		super.registerDataSetObserver(observer);
+		mCountObservable.registerObserver(observer);
+	}
+
+	@Override
+	public void unregisterDataSetObserver(DataSetObserver observer) {
+		super.unregisterDataSetObserver(observer);
+		mCountObservable.unregisterObserver(observer);
+	}
+
+	@Override
+	public int getCount() {
+		return mCount;
+	}
+
+	@Override
+	public String[] getColumnNames() {
+		return mProjection;
+	}
+
+	@Override
+	public String getString(int column) {
+		return mWindow.getString(column);
+	}
+
+	@Override
+	public short getShort(int column) {
+		return mWindow.getShort(column);
+	}
+
+	@Override
+	public int getInt(int column) {
+		return mWindow.getInt(column);
+	}
+
+	@Override
+	public long getLong(int column) {
+		return mWindow.getLong(column);
+	}
+
+	@Override
+	public float getFloat(int column) {
+		return mWindow.getFloat(column);
+	}
+
+	@Override
+	public double getDouble(int column) {
+		return mWindow.getDouble(column);
+	}
+
+	@Override
+	public byte[] getBlob(int column) {
+		return mWindow.getBlob(column);
+	}
+
+	@Override
+	public int getType(int column) {
+		return mWindow.getType(column);
+	}
+
+	@Override
+	public boolean isNull(int column) {
+		return mWindow.isNull(column);
+	}
+
+	@Override
+	public void close() {
+		super.close();
+		synchronized (this) {
+			for (Cursor window : mWindows.values())
+				window.close();
+			mWindows.clear();
+			mWindow = null;
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+/**
+ * A fixed size ring buffer of play and skip events which
+ * were not yet written to the database.
+ */
+class PlayEventBuffer {
+	/**
+	 * Song ids of the buffered events
+	 */
+	private final long[] mSongIds;
+	/**
+	 * True if the song was played, false if it was skipped
+	 */
+	private final boolean[] mPlayed;
+	/**
+	 * Time of each event in unixtime
+	 */
+	private final long[] mTimes;
+	/**
+	 * Index of the oldest event
+	 */
+	private int mHead;
+	/**
+	 * Number of buffered events
+	 */
+	private int mSize;
+
+	/**
+	 * Creates a new buffer
+	 *
+	 * @param capacity the maximum number of events to hold
+	 */
+	PlayEventBuffer(int capacity) {
+		mSongIds = new long[capacity];
+		mPlayed = new boolean[capacity];
+		mTimes = new long[capacity];
+	}
+
+	/**
+	 * Appends an event to the buffer
+	 *
+	 * @param songId the id of the song
+	 * @param played true if the song was played, false if it was skipped
+	 * @param time the time of the event in unixtime
+	 * @return true if the buffer is full and must be drained
+	 */
+	synchronized boolean add(long songId, boolean played, long time) {
+		// A full buffer is drained by the caller, but never lose the newest event if it was not.
+		if (mSize == mSongIds.length) {
+			mHead = (mHead + 1) % mSongIds.length;
+			mSize--;
+		}
+		final int index = (mHead + mSize) % mSongIds.length;
+		mSongIds[index] = songId;
+		mPlayed[index] = played;
+		mTimes[index] = time;
+		mSize++;
+		return mSize == mSongIds.length;
+	}
+
+	/**
+	 * Returns the time of the oldest buffered event
+	 *
+	 * @return the time in unixtime, -1 if the buffer is empty
+	 */
+	synchronized long getOldestTime() {
+		return mSize == 0 ? -1 : mTimes[mHead];
+	}
+
+	/**
+	 * Removes all events from the buffer
+	 *
+	 * @return the removed events, oldest first
+	 */
+	synchronized Events drain() {
+		Events events = new Events(mSize);
+		for (int i = 0; i < mSize; i++) {
+			final int index = (mHead + i) % mSongIds.length;
+			events.songIds[i] = mSongIds[index];
+			events.played[i] = mPlayed[index];
+			events.times[i] = mTimes[index];
+		}
+		mHead = 0;
+		mSize = 0;
+		return events;
+	}
+
+	/**
+	 * A copy of drained events
+	 */
+	static class Events {
+		final long[] songIds;
+		final boolean[] played;
+		final long[] times;
+
+		Events(int size) {
+			songIds = new long[size];
+			played = new boolean[size];
+			times = new long[size];
+		}
+
+		int size() {
+			return songIds.length;
+		}
+	}
+}
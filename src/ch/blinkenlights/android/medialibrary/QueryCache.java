@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.util.LruCache;
+
+/**
+ * Caches small query results as immutable snapshots.
+ * Entries are only valid for the library generation they were created in.
+ */
+class QueryCache {
+	/**
+	 * Results with more rows than this are never cached
+	 */
+	private static final int MAX_ROWS = 500;
+	/**
+	 * Approximate overhead of a single cell in bytes
+	 */
+	private static final int CELL_OVERHEAD = 16;
+	/**
+	 * The cached snapshots, sized in (approximate) bytes
+	 */
+	private final LruCache<String, Snapshot> mCache;
+	/**
+	 * Number of queries answered from the cache
+	 */
+	private int mHits;
+	/**
+	 * Number of queries which had to hit the database
+	 */
+	private int mMisses;
+
+	/**
+	 * Creates a new query cache
+	 *
+	 * @param maxBytes the memory budget of this cache
+	 */
+	QueryCache(int maxBytes) {
+		mCache = new LruCache<String, Snapshot>(maxBytes) {
+			@Override
+			protected int sizeOf(String key, Snapshot snapshot) {
+				return snapshot.size;
+			}
+		};
+	}
+
+	/**
+	 * Returns a cursor for a cached result
+	 *
+	 * @param key the key returned by buildKey()
+	 * @param generation the current library generation
+	 * @return a new cursor on the snapshot, null on cache miss
+	 */
+	Cursor get(String key, long generation) {
+		Snapshot snapshot = mCache.get(key);
+		if (snapshot != null && snapshot.generation != generation) {
+			mCache.remove(key);
+			snapshot = null;
+		}
+
+		synchronized(this) {
+			if (snapshot == null) {
+				mMisses++;
+			} else {
+				mHits++;
+			}
+		}
+		return (snapshot == null ? null : new SnapshotCursor(snapshot));
+	}
+
+	/**
+	 * Stores the result of a query, if it is small enough
+	 *
+	 * @param key the key returned by buildKey()
+	 * @param generation the library generation at the time the query was started
+	 * @param cursor the result to store, will be closed if it was cached
+	 * @return a cursor equivalent to the passed in cursor
+	 */
+	Cursor put(String key, long generation, Cursor cursor) {
+		if (cursor == null || cursor.getCount() > MAX_ROWS)
+			return cursor;
+
+		Snapshot snapshot = new Snapshot(cursor, generation);
+		cursor.close();
+		mCache.put(key, snapshot);
+		return new SnapshotCursor(snapshot);
+	}
+
+	/**
+	 * Returns the number of cache hits since creation
+	 */
+	synchronized int getHitCount() {
+		return mHits;
+	}
+
+	/**
+	 * Returns the number of cache misses since creation
+	 */
+	synchronized int getMissCount() {
+		return mMisses;
+	}
+
+	/**
+	 * Returns the approximate number of bytes used by the cache
+	 */
+	int getSize() {
+		return mCache.size();
+	}
+
+	/**
+	 * Returns the memory budget of this cache in bytes
+	 */
+	int getMaxSize() {
+		return mCache.maxSize();
+	}
+
+	/**
+	 * Returns the key used to cache a query
+	 */
+	static String buildKey(String table, String[] projection, String selection, String[] selectionArgs, String orderBy) {
+		StringBuilder sb = new StringBuilder(table);
+		sb.append('\0');
+		if (projection != null) {
+			for (String column : projection) {
+				sb.append(column).append(',');
+			}
+		}
+		sb.append('\0').append(selection).append('\0');
+		if (selectionArgs != null) {
+			for (String arg : selectionArgs) {
+				sb.append(arg).append('\0');
+			}
+		}
+		sb.append('\0').append(orderBy);
+		return sb.toString();
+	}
+
+	/**
+	 * An immutable copy of a query result
+	 */
+	private static class Snapshot {
+		final String[] columns;
+		final Object[][] rows;
+		final long generation;
+		final int size;
+
+		Snapshot(Cursor cursor, long generation) {
+			int size = 0;
+			this.columns = cursor.getColumnNames();
+			this.rows = new Object[cursor.getCount()][];
+			this.generation = generation;
+
+			cursor.moveToPosition(-1);
+			for (int i = 0; cursor.moveToNext(); i++) {
+				Object[] row = new Object[columns.length];
+				for (int j = 0; j < row.length; j++) {
+					switch (cursor.getType(j)) {
+						case Cursor.FIELD_TYPE_INTEGER:
+							row[j] = cursor.getLong(j);
+							break;
+						case Cursor.FIELD_TYPE_FLOAT:
+							row[j] = cursor.getDouble(j);
+							break;
+						case Cursor.FIELD_TYPE_STRING:
+							row[j] = cursor.getString(j);
+							size += ((String)row[j]).length() * 2;
+							break;
+						case Cursor.FIELD_TYPE_BLOB:
+							row[j] = cursor.getBlob(j);
+							size += ((byte[])row[j]).length;
+							break;
+					}
+					size += CELL_OVERHEAD;
+				}
+				this.rows[i] = row;
+			}
+			this.size = Math.max(1, size);
+		}
+	}
+
+	/**
+	 * A read-only cursor on a snapshot
+	 */
+	private static class SnapshotCursor extends AbstractCursor {
+		private final Snapshot mSnapshot;
+
+		SnapshotCursor(Snapshot snapshot) {
+			mSnapshot = snapshot;
+		}
+
+		private Object get(int column) {
+			return mSnapshot.rows[getPosition()][column];
+		}
+
+		@Override
+		public int getCount() {
+			return mSnapshot.rows.length;
+		}
+
+		@Override
+		public String[] getColumnNames() {
+			return mSnapshot.columns;
+		}
+
+		@Override
+		public String getString(int column) {
+			Object value = get(column);
+			return (value == null ? null : value.toString());
+		}
+
+		@Override
+		public short getShort(int column) {
+			return (short)getLong(column);
+		}
+
+		@Override
+		public int getInt(int column) {
+			return (int)getLong(column);
+		}
+
+		@Override
+		public long getLong(int column) {
+			Object value = get(column);
+			if (value instanceof Number)
+				return ((Number)value).longValue();
+			if (value instanceof String) {
+				try {
+					return Long.parseLong((String)value);
+				} catch (NumberFormatException e) {
+					return 0; // same as sqlite
+				}
+			}
+			return 0;
+		}
+
+		@Override
+		public float getFloat(int column) {
+			return (float)getDouble(column);
+		}
+
+		@Override
+		public double getDouble(int column) {
+			Object value = get(column);
+			if (value instanceof Number)
+				return ((Number)value).doubleValue();
+			if (value instanceof String) {
+				try {
+					return Double.parseDouble((String)value);
+				} catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+			return 0;
+		}
+
+		@Override
+		public byte[] getBlob(int column) {
+			Object value = get(column);
+			if (value == null)
+				return null;
+			if (value instanceof byte[])
+				return ((byte[])value).clone(); // the cached row is shared by all cursors
+			return value.toString().getBytes();
+		}
+
+		@Override
+		public int getType(int column) {
+			Object value = get(column);
+			if (value == null)
+				return Cursor.FIELD_TYPE_NULL;
+			if (value instanceof Long)
+				return Cursor.FIELD_TYPE_INTEGER;
+			if (value instanceof Double)
+				return Cursor.FIELD_TYPE_FLOAT;
+			if (value instanceof String)
+				return Cursor.FIELD_TYPE_STRING;
+			return Cursor.FIELD_TYPE_BLOB;
+		}
+
+		@Override
+		public boolean isNull(int column) {
+			return get(column) == null;
+		}
+	}
+}
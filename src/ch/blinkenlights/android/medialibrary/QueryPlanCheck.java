@@ -0,0 +1,578 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Checks the query plans of the media library against a large synthetic library.
+ *
+ * The library is created using the real schema in a separate database file.
+ * Every query passed to this class is explained and timed, and its plan is checked
+ * for full table scans and sorts which could not use an index: such plans are
+ * fine for a few hundred songs, but make a large library slow.
+ * Queries of the library tabs run through a PaginatedCursor just like in the app,
+ * so the count and keyset queries of its windows are checked, too.
+ *
+ * This is a debugging aid which takes a while to run.
+ */
+public class QueryPlanCheck {
+	/**
+	 * Number of songs of the synthetic library used by default
+	 */
+	public static final int DEFAULT_SONGS = 100000;
+	/**
+	 * An id which has songs in every table of the synthetic library:
+	 * the artist, albumartist, composer, album, genre and playlist with this id.
+	 */
+	public static final long SAMPLE_ID = 1;
+	/**
+	 * on-disk file of the synthetic library
+	 */
+	private static final String DATABASE_NAME = "query-plan-check.db";
+	/**
+	 * How many windows of a paginated query are walked
+	 */
+	private static final int WALK_WINDOWS = 3;
+	/**
+	 * The driving loop of a query may visit every row
+	 */
+	private static final int EXPECT_SCAN = 0x1;
+	/**
+	 * A query may sort all rows it visits in a temp B-tree
+	 */
+	private static final int EXPECT_SORT = 0x2;
+	/**
+	 * Sort orders no index can provide, as { table, first sort column, reason }.
+	 * Queries using them without a selection which SQLite can look up using an
+	 * index sort every row of the table: this is known and accepted.
+	 */
+	private static final String[][] UNINDEXED_SORTS = {
+		{ MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, MediaLibrary.ContributorColumns.ARTIST_SORT, "songs sorted by the keys of contributors and albums" },
+		{ MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, MediaLibrary.AlbumColumns.ALBUM_SORT, "songs sorted by the key of albums" },
+		{ MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE, MediaLibrary.ContributorColumns.ARTIST_SORT, "songs sorted by the keys of contributors and albums" },
+		{ MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE, MediaLibrary.ContributorColumns.ALBUMARTIST_SORT, "songs sorted by the key of contributors" },
+		{ MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE, MediaLibrary.ContributorColumns.COMPOSER_SORT, "songs sorted by the key of contributors" },
+		{ MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE, MediaLibrary.AlbumColumns.ALBUM_SORT, "songs sorted by the key of albums" },
+		{ MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE, MediaLibrary.AlbumColumns.PRIMARY_ALBUM_YEAR, "songs sorted by the year of albums" },
+		{ MediaLibrary.VIEW_ALBUMS_ARTISTS, MediaLibrary.ContributorColumns.ARTIST_SORT, "albums sorted by the key of contributors" },
+		{ MediaLibrary.TABLE_PLAYLISTS, MediaLibrary.PlaylistColumns.NAME, "there are only a few playlists" },
+	};
+	/**
+	 * The synthetic library
+	 */
+	private final CheckedBackend mBackend;
+	/**
+	 * Number of songs in the synthetic library
+	 */
+	private final int mSongs;
+	/**
+	 * Problems found so far, guarded by itself as windows
+	 * of paginated cursors are loaded in the background
+	 */
+	private final ArrayList<String> mProblems = new ArrayList<>();
+
+	/**
+	 * A backend which checks the plan of every query before running it
+	 */
+	private class CheckedBackend extends MediaLibraryBackend {
+		CheckedBackend(Context context) {
+			super(context, DATABASE_NAME);
+		}
+
+		@Override
+		Cursor query(boolean distinct, String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy, String limit) {
+			final String sql = SQLiteQueryBuilder.buildQueryString(distinct, table, columns, selection, groupBy, having, orderBy, limit);
+			checkPlan(sql, explainQuery(distinct, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit), getExpectations(table, selection, orderBy));
+
+			long startAt = System.currentTimeMillis();
+			Cursor cursor = super.query(distinct, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit);
+			// super.query() already ran the query to count its rows.
+			Log.v("VanillaMusic", "query plan check: "+(System.currentTimeMillis() - startAt)+" ms for "+cursor.getCount()+" rows: "+sql);
+			return cursor;
+		}
+	}
+
+	/**
+	 * Creates the synthetic library. This takes a while and must
+	 * be called on a background thread.
+	 *
+	 * @param context the context to use
+	 * @param songs the number of songs to create, at least 100
+	 */
+	public QueryPlanCheck(Context context, int songs) {
+		context.deleteDatabase(DATABASE_NAME);
+		mBackend = new CheckedBackend(context);
+		mSongs = songs;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			// The check uses temp tables of the backend, which only exist on its primary connection.
+			mBackend.setWriteAheadLoggingEnabled(false);
+		}
+
+		long startAt = System.currentTimeMillis();
+		SQLiteDatabase dbh = mBackend.getWritableDatabase();
+		dbh.beginTransaction();
+		try {
+			fillLibrary(dbh);
+			dbh.setTransactionSuccessful();
+		} finally {
+			dbh.endTransaction();
+		}
+		Log.v("VanillaMusic", "query plan check: created "+songs+" songs in "+(System.currentTimeMillis() - startAt)+" ms");
+	}
+
+	/**
+	 * Fills the synthetic library: albums have 10 tracks and each artist has two
+	 * albums. Every 10th song features another artist and every 4th song has a composer.
+	 *
+	 * @param dbh the writable database handle, inside a transaction
+	 */
+	private void fillLibrary(SQLiteDatabase dbh) {
+		final int albums = Math.max(1, mSongs / 10);
+		final int artists = Math.max(1, albums / 2);
+		final int genres = 50;
+		final int playlists = 20;
+		final long now = System.currentTimeMillis() / 1000;
+		final String root = "/storage/query-plan-check/";
+
+		SQLiteStatement stmt = dbh.compileStatement("INSERT INTO "+MediaLibrary.TABLE_CONTRIBUTORS+" ("
+			+MediaLibrary.ContributorColumns._ID+", "+MediaLibrary.ContributorColumns._CONTRIBUTOR+", "
+			+MediaLibrary.ContributorColumns._CONTRIBUTOR_SORT+", "+MediaLibrary.ContributorColumns._CONTRIBUTOR_SEARCH+") VALUES (?, ?, ?, ?)");
+		for (int i = 1; i <= artists; i++) {
+			final String name = "Artist "+i;
+			stmt.bindLong(1, i);
+			stmt.bindString(2, name);
+			stmt.bindBlob(3, MediaLibrary.keyFor(name));
+			stmt.bindString(4, MediaLibrary.searchKeyFor(name));
+			stmt.executeInsert();
+		}
+		stmt.close();
+
+		stmt = dbh.compileStatement("INSERT INTO "+MediaLibrary.TABLE_GENRES+" ("
+			+MediaLibrary.GenreColumns._ID+", "+MediaLibrary.GenreColumns._GENRE+", "
+			+MediaLibrary.GenreColumns._GENRE_SORT+", "+MediaLibrary.GenreColumns._GENRE_SEARCH+") VALUES (?, ?, ?, ?)");
+		for (int i = 1; i <= genres; i++) {
+			final String name = "Genre "+i;
+			stmt.bindLong(1, i);
+			stmt.bindString(2, name);
+			stmt.bindBlob(3, MediaLibrary.keyFor(name));
+			stmt.bindString(4, MediaLibrary.searchKeyFor(name));
+			stmt.executeInsert();
+		}
+		stmt.close();
+
+		SQLiteStatement album = dbh.compileStatement("INSERT INTO "+MediaLibrary.TABLE_ALBUMS+" ("
+			+MediaLibrary.AlbumColumns._ID+", "+MediaLibrary.AlbumColumns.ALBUM+", "+MediaLibrary.AlbumColumns.ALBUM_SORT+", "
+			+MediaLibrary.AlbumColumns.ALBUM_SEARCH+", "+MediaLibrary.AlbumColumns.PRIMARY_ARTIST_ID+", "
+			+MediaLibrary.AlbumColumns.PRIMARY_ALBUM_YEAR+") VALUES (?, ?, ?, ?, ?, ?)");
+		SQLiteStatement dir = dbh.compileStatement("INSERT INTO "+MediaLibrary.TABLE_DIRECTORIES+" ("
+			+MediaLibrary.DirectoryColumns._ID+", "+MediaLibrary.DirectoryColumns.PARENT_ID+", "
+			+MediaLibrary.DirectoryColumns.NAME+", "+MediaLibrary.DirectoryColumns.PATH+") VALUES (?, ?, ?, ?)");
+		final long rootId = MediaLibrary.getDirectoryId(root);
+		dir.bindLong(1, rootId);
+		dir.bindLong(2, 0);
+		dir.bindString(3, "query-plan-check");
+		dir.bindString(4, root);
+		dir.executeInsert();
+		for (int i = 1; i <= albums; i++) {
+			final String name = "Album "+i;
+			album.bindLong(1, i);
+			album.bindString(2, name);
+			album.bindBlob(3, MediaLibrary.keyFor(name));
+			album.bindString(4, MediaLibrary.searchKeyFor(name));
+			album.bindLong(5, (i - 1) / 2 % artists + 1);
+			album.bindLong(6, 1960 + i % 60);
+			album.executeInsert();
+
+			final String path = root+"album-"+i+"/";
+			dir.bindLong(1, MediaLibrary.getDirectoryId(path));
+			dir.bindLong(2, rootId);
+			dir.bindString(3, "album-"+i);
+			dir.bindString(4, path);
+			dir.executeInsert();
+		}
+		album.close();
+		dir.close();
+
+		SQLiteStatement song = dbh.compileStatement("INSERT INTO "+MediaLibrary.TABLE_SONGS+" ("
+			+MediaLibrary.SongColumns._ID+", "+MediaLibrary.SongColumns.TITLE+", "+MediaLibrary.SongColumns.TITLE_SORT+", "
+			+MediaLibrary.SongColumns.TITLE_SEARCH+", "+MediaLibrary.SongColumns.SONG_NUMBER+", "+MediaLibrary.SongColumns.DISC_NUMBER+", "
+			+MediaLibrary.SongColumns.YEAR+", "+MediaLibrary.SongColumns.ALBUM_ID+", "+MediaLibrary.SongColumns.PLAYCOUNT+", "
+			+MediaLibrary.SongColumns.MTIME+", "+MediaLibrary.SongColumns.DURATION+", "+MediaLibrary.SongColumns.PATH+", "
+			+MediaLibrary.SongColumns.DIR_ID+") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+		SQLiteStatement contributor = dbh.compileStatement("INSERT INTO "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" ("
+			+MediaLibrary.ContributorSongColumns.ROLE+", "+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+", "
+			+MediaLibrary.ContributorSongColumns.SONG_ID+") VALUES (?, ?, ?)");
+		SQLiteStatement genre = dbh.compileStatement("INSERT INTO "+MediaLibrary.TABLE_GENRES_SONGS+" ("
+			+MediaLibrary.GenreSongColumns._GENRE_ID+", "+MediaLibrary.GenreSongColumns.SONG_ID+") VALUES (?, ?)");
+		for (int i = 0; i < mSongs; i++) {
+			final long id = i + 1;
+			final int albumId = Math.min(i / 10, albums - 1) + 1;
+			final long artistId = (albumId - 1) / 2 % artists + 1;
+			final String title = "Song "+id;
+			final String path = root+"album-"+albumId+"/"+id+".mp3";
+
+			song.bindLong(1, id);
+			song.bindString(2, title);
+			song.bindBlob(3, MediaLibrary.keyFor(title));
+			song.bindString(4, MediaLibrary.searchKeyFor(title));
+			song.bindLong(5, i % 10 + 1);
+			song.bindLong(6, 1);
+			song.bindLong(7, 1960 + albumId % 60);
+			song.bindLong(8, albumId);
+			song.bindLong(9, i % 7 == 0 ? i % 50 : 0);
+			song.bindLong(10, now - i);
+			song.bindLong(11, 180000);
+			song.bindString(12, path);
+			song.bindLong(13, MediaLibrary.getDirectoryId(root+"album-"+albumId));
+			song.executeInsert();
+
+			contributor.bindLong(1, MediaLibrary.ROLE_ARTIST);
+			contributor.bindLong(2, i % 10 == 5 ? albumId % artists + 1 : artistId);
+			contributor.bindLong(3, id);
+			contributor.executeInsert();
+			contributor.bindLong(1, MediaLibrary.ROLE_ALBUMARTIST);
+			contributor.bindLong(2, artistId);
+			contributor.executeInsert();
+			if (i % 4 == 0) {
+				contributor.bindLong(1, MediaLibrary.ROLE_COMPOSER);
+				contributor.bindLong(2, i / 4 % artists + 1);
+				contributor.executeInsert();
+			}
+
+			genre.bindLong(1, (albumId - 1) % genres + 1);
+			genre.bindLong(2, id);
+			genre.executeInsert();
+		}
+		song.close();
+		contributor.close();
+		genre.close();
+
+		SQLiteStatement playlist = dbh.compileStatement("INSERT INTO "+MediaLibrary.TABLE_PLAYLISTS+" ("
+			+MediaLibrary.PlaylistColumns._ID+", "+MediaLibrary.PlaylistColumns.NAME+") VALUES (?, ?)");
+		SQLiteStatement entry = dbh.compileStatement("INSERT INTO "+MediaLibrary.TABLE_PLAYLISTS_SONGS+" ("
+			+MediaLibrary.PlaylistSongColumns.PLAYLIST_ID+", "+MediaLibrary.PlaylistSongColumns.SONG_ID+", "
+			+MediaLibrary.PlaylistSongColumns.POSITION+") VALUES (?, ?, ?)");
+		for (int i = 1; i <= playlists; i++) {
+			playlist.bindLong(1, i);
+			playlist.bindString(2, "Playlist "+i);
+			playlist.executeInsert();
+			for (int j = 0; j < 500; j++) {
+				entry.bindLong(1, i);
+				entry.bindLong(2, (j * 197L + i) % mSongs + 1);
+				entry.bindLong(3, j * MediaLibrary.PLAYLIST_POSITION_GAP);
+				entry.executeInsert();
+			}
+		}
+		playlist.close();
+		entry.close();
+	}
+
+	/**
+	 * Checks a query which returns all of its rows at once, such as the ones
+	 * used to add songs to the queue.
+	 *
+	 * @param table the table to query, one of MediaLibrary.TABLE_* or VIEW_*
+	 * @param projection the columns to return
+	 * @param selection the selection (WHERE) to use
+	 * @param selectionArgs arguments for the selection
+	 * @param orderBy how the result should be sorted
+	 */
+	public void checkQuery(String table, String[] projection, String selection, String[] selectionArgs, String orderBy) {
+		if (selection != null && selection.length() == 0)
+			selection = null;
+		mBackend.query(false, table, projection, selection, selectionArgs, null, null, orderBy, null).close();
+	}
+
+	/**
+	 * Checks a query of a library tab: the first windows are fetched
+	 * just like a list which is scrolled down does.
+	 *
+	 * @param table the table to query, one of MediaLibrary.TABLE_* or VIEW_*, must have an _id column
+	 * @param projection the columns to return
+	 * @param selection the selection (WHERE) to use
+	 * @param selectionArgs arguments for the selection
+	 * @param orderBy how the result should be sorted
+	 */
+	public void checkPaginatedQuery(String table, String[] projection, String selection, String[] selectionArgs, String orderBy) {
+		PaginatedCursor cursor = new PaginatedCursor(mBackend, table, projection, selection, selectionArgs, orderBy);
+		// Each window is fetched using the keyset of the previous one. onMove() is
+		// called directly as the exact count is only published on the UI thread.
+		for (int i = 1; i <= WALK_WINDOWS; i++) {
+			if (!cursor.onMove((i - 1) * PaginatedCursor.WINDOW_SIZE, i * PaginatedCursor.WINDOW_SIZE))
+				break;
+		}
+		// Wait for the count and the preloaded windows before the database is closed.
+		PaginatedCursor.awaitLoader();
+		cursor.close();
+	}
+
+	/**
+	 * Checks the queries and statements used by the scanner and the backend to
+	 * maintain the library, and times the maintenance functions of the backend.
+	 * This modifies the library and must be called after all other checks.
+	 */
+	public void checkMaintenance() {
+		final String dir = "/storage/query-plan-check/album-"+SAMPLE_ID+"/";
+		checkQuery(MediaLibrary.TABLE_SONGS, new String[]{ MediaLibrary.SongColumns._ID }, null, null, null);
+		mBackend.query(false, MediaLibrary.TABLE_SONGS, new String[]{ MediaLibrary.SongColumns._ID }, null, null, null, null, null, "1").close();
+		checkQuery(MediaLibrary.TABLE_SONGS, new String[]{ MediaLibrary.SongColumns.PATH }, null, null, null);
+		checkQuery(MediaLibrary.TABLE_DIRECTORIES, new String[]{ MediaLibrary.DirectoryColumns._ID, MediaLibrary.DirectoryColumns.PATH },
+		           MediaLibrary.DirectoryColumns.PATH+">=? AND "+MediaLibrary.DirectoryColumns.PATH+"<?", new String[]{ dir, dir.substring(0, dir.length() - 1) + (char)('/' + 1) }, null);
+		checkQuery(MediaLibrary.TABLE_SONGS, new String[]{ MediaLibrary.SongColumns._ID },
+		           MediaLibrary.SongColumns.DIR_ID+" IN ("+MediaLibrary.getDirectoryId(dir)+")", null, null);
+		checkQuery(MediaLibrary.TABLE_ALBUMS, new String[]{ MediaLibrary.AlbumColumns.COVER_PATH, MediaLibrary.AlbumColumns.COVER_SOURCE },
+		           MediaLibrary.AlbumColumns._ID+"="+SAMPLE_ID, null, null);
+
+		PlayEventBuffer.Events events = new PlayEventBuffer.Events(1000);
+		ArrayList<Long> songs = new ArrayList<>();
+		for (int i = 0; i < events.size(); i++) {
+			events.songIds[i] = mSongs - i;
+			events.played[i] = (i % 2 == 0);
+			events.times[i] = i;
+			songs.add((long)(mSongs - i));
+		}
+
+		long startAt = System.currentTimeMillis();
+		mBackend.writePlayEvents(events);
+		logTiming("writePlayEvents("+events.size()+")", startAt);
+
+		startAt = System.currentTimeMillis();
+		mBackend.removeSongs(songs);
+		logTiming("removeSongs("+songs.size()+")", startAt);
+
+		startAt = System.currentTimeMillis();
+		mBackend.cleanOrphanedEntries(false);
+		logTiming("cleanOrphanedEntries(false)", startAt);
+
+		startAt = System.currentTimeMillis();
+		mBackend.regroupAlbums(true);
+		logTiming("regroupAlbums(true)", startAt);
+
+		// The temp tables used by the statements exist now.
+		for (String sql : buildMaintenanceStatements(false)) {
+			checkPlan(sql, mBackend.getReadableDatabase().rawQuery("EXPLAIN QUERY PLAN "+sql, null), 0);
+		}
+		for (String sql : buildMaintenanceStatements(true)) {
+			checkPlan(sql, mBackend.getReadableDatabase().rawQuery("EXPLAIN QUERY PLAN "+sql, null), EXPECT_SCAN | EXPECT_SORT);
+		}
+
+		startAt = System.currentTimeMillis();
+		mBackend.setPendingDeletion();
+		mBackend.cleanOrphanedEntries(true);
+		logTiming("setPendingDeletion() + cleanOrphanedEntries(true)", startAt);
+	}
+
+	/**
+	 * Returns the statements the backend runs directly on its database handle.
+	 * These mirror the ones built by MediaLibraryBackend.
+	 *
+	 * @param fullPass true to return the statements which are meant to visit every row
+	 *                 such as cleanOrphanedEntries(), false for the ones which must not
+	 * @return the statements
+	 */
+	private static ArrayList<String> buildMaintenanceStatements(boolean fullPass) {
+		final String staged = " IN (SELECT song_id FROM temp._delete_stage)";
+		ArrayList<String> list = new ArrayList<>();
+
+		if (fullPass) {
+			// setPendingDeletion(), cleanOrphanedEntries() and pruneDirectories()
+			list.add("UPDATE "+MediaLibrary.TABLE_SONGS+" SET "+MediaLibrary.SongColumns.MTIME+"="+MediaLibraryBackend.PENDING_DELETION_MTIME);
+			list.add("DELETE FROM "+MediaLibrary.TABLE_PLAYLISTS_SONGS+" WHERE "+MediaLibrary.PlaylistSongColumns.SONG_ID+" NOT IN (SELECT "+MediaLibrary.SongColumns._ID+" FROM "+MediaLibrary.TABLE_SONGS+")");
+			list.add("DELETE FROM "+MediaLibrary.TABLE_ALBUMS+" WHERE "+MediaLibrary.AlbumColumns._ID+" NOT IN (SELECT "+MediaLibrary.SongColumns.ALBUM_ID+" FROM "+MediaLibrary.TABLE_SONGS+")");
+			list.add("DELETE FROM "+MediaLibrary.TABLE_GENRES_SONGS+" WHERE "+MediaLibrary.GenreSongColumns.SONG_ID+" NOT IN (SELECT "+MediaLibrary.SongColumns._ID+" FROM "+MediaLibrary.TABLE_SONGS+")");
+			list.add("DELETE FROM "+MediaLibrary.TABLE_GENRES+" WHERE "+MediaLibrary.GenreColumns._ID+" NOT IN (SELECT "+MediaLibrary.GenreSongColumns._GENRE_ID+" FROM "+MediaLibrary.TABLE_GENRES_SONGS+")");
+			list.add("DELETE FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" WHERE "+MediaLibrary.ContributorSongColumns.SONG_ID+" NOT IN (SELECT "+MediaLibrary.SongColumns._ID+" FROM "+MediaLibrary.TABLE_SONGS+")");
+			list.add("DELETE FROM "+MediaLibrary.TABLE_CONTRIBUTORS+" WHERE "+MediaLibrary.ContributorColumns._ID+" NOT IN (SELECT "+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+" FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+")");
+			list.add("DELETE FROM "+MediaLibrary.TABLE_DIRECTORIES+" WHERE "
+				+MediaLibrary.DirectoryColumns._ID+" NOT IN (SELECT "+MediaLibrary.SongColumns.DIR_ID+" FROM "+MediaLibrary.TABLE_SONGS+") AND "
+				+MediaLibrary.DirectoryColumns._ID+" NOT IN (SELECT "+MediaLibrary.DirectoryColumns.PARENT_ID+" FROM "+MediaLibrary.TABLE_DIRECTORIES+")");
+			// regroupAlbums()
+			final String match = " FROM temp._album_regroup AS r WHERE r.old_id="+MediaLibrary.TABLE_SONGS+"."+MediaLibrary.SongColumns.ALBUM_ID
+				+" AND r.dir_id="+MediaLibrary.TABLE_SONGS+"."+MediaLibrary.SongColumns.DIR_ID;
+			list.add("SELECT DISTINCT s."+MediaLibrary.SongColumns.ALBUM_ID+", s."+MediaLibrary.SongColumns.DIR_ID+", d."+MediaLibrary.DirectoryColumns.PATH
+				+", a."+MediaLibrary.AlbumColumns.ALBUM+" FROM "+MediaLibrary.TABLE_SONGS+" AS s"
+				+" JOIN "+MediaLibrary.TABLE_ALBUMS+" AS a ON a."+MediaLibrary.AlbumColumns._ID+"=s."+MediaLibrary.SongColumns.ALBUM_ID
+				+" LEFT JOIN "+MediaLibrary.TABLE_DIRECTORIES+" AS d ON d."+MediaLibrary.DirectoryColumns._ID+"=s."+MediaLibrary.SongColumns.DIR_ID
+				+" ORDER BY 1, 2");
+			list.add("UPDATE "+MediaLibrary.TABLE_SONGS+" SET "+MediaLibrary.SongColumns.ALBUM_ID+"=(SELECT r.new_id"+match+") WHERE EXISTS (SELECT 1"+match+")");
+			return list;
+		}
+
+		// cleanOrphanedEntries(true) removes the songs marked by setPendingDeletion()
+		list.add("DELETE FROM "+MediaLibrary.TABLE_SONGS+" WHERE "+MediaLibrary.SongColumns.MTIME+"="+MediaLibraryBackend.PENDING_DELETION_MTIME);
+		// removeSongs() and removeSongRow()
+		list.add("DELETE FROM "+MediaLibrary.TABLE_SONGS+" WHERE "+MediaLibrary.SongColumns._ID+staged);
+		list.add("DELETE FROM "+MediaLibrary.TABLE_PLAYLISTS_SONGS+" WHERE "+MediaLibrary.PlaylistSongColumns.SONG_ID+staged);
+		list.add("DELETE FROM "+MediaLibrary.TABLE_GENRES_SONGS+" WHERE "+MediaLibrary.GenreSongColumns.SONG_ID+staged);
+		list.add("DELETE FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" WHERE "+MediaLibrary.ContributorSongColumns.SONG_ID+staged);
+		list.add("DELETE FROM "+MediaLibrary.TABLE_ALBUMS+" WHERE "+MediaLibrary.AlbumColumns._ID+" IN (SELECT parent_id FROM temp._delete_parents WHERE tbl=1)"
+			+" AND NOT EXISTS (SELECT 1 FROM "+MediaLibrary.TABLE_SONGS+" WHERE "+MediaLibrary.SongColumns.ALBUM_ID+"="+MediaLibrary.TABLE_ALBUMS+"."+MediaLibrary.AlbumColumns._ID+")");
+		list.add("DELETE FROM "+MediaLibrary.TABLE_GENRES+" WHERE "+MediaLibrary.GenreColumns._ID+" IN (SELECT parent_id FROM temp._delete_parents WHERE tbl=2)"
+			+" AND NOT EXISTS (SELECT 1 FROM "+MediaLibrary.TABLE_GENRES_SONGS+" WHERE "+MediaLibrary.GenreSongColumns._GENRE_ID+"="+MediaLibrary.TABLE_GENRES+"."+MediaLibrary.GenreColumns._ID+")");
+		list.add("DELETE FROM "+MediaLibrary.TABLE_CONTRIBUTORS+" WHERE "+MediaLibrary.ContributorColumns._ID+" IN (SELECT parent_id FROM temp._delete_parents WHERE tbl=3)"
+			+" AND NOT EXISTS (SELECT 1 FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" WHERE "+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+"="+MediaLibrary.TABLE_CONTRIBUTORS+"."+MediaLibrary.ContributorColumns._ID+")");
+		list.add("DELETE FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" WHERE "+MediaLibrary.ContributorSongColumns.SONG_ID+"="+SAMPLE_ID);
+		list.add("DELETE FROM "+MediaLibrary.TABLE_GENRES_SONGS+" WHERE "+MediaLibrary.GenreSongColumns.SONG_ID+"="+SAMPLE_ID);
+		// writePlayEvents()
+		list.add("UPDATE "+MediaLibrary.TABLE_SONGS+" SET "+MediaLibrary.SongColumns.PLAYCOUNT+"="+MediaLibrary.SongColumns.PLAYCOUNT+"+1 WHERE "+MediaLibrary.SongColumns._ID+"="+SAMPLE_ID);
+		// setAlbumCover()
+		list.add("UPDATE "+MediaLibrary.TABLE_ALBUMS+" SET "+MediaLibrary.AlbumColumns.COVER_SOURCE+"=0 WHERE "
+			+MediaLibrary.AlbumColumns._ID+"="+SAMPLE_ID+" AND "+MediaLibrary.AlbumColumns.COVER_FINGERPRINT+"!=0");
+		// addToPlaylist() and movePlaylistItem()
+		list.add("SELECT MAX("+MediaLibrary.PlaylistSongColumns.POSITION+") FROM "+MediaLibrary.TABLE_PLAYLISTS_SONGS
+			+" WHERE "+MediaLibrary.PlaylistSongColumns.PLAYLIST_ID+"="+SAMPLE_ID);
+		list.add("SELECT MIN("+MediaLibrary.PlaylistSongColumns.POSITION+") FROM "+MediaLibrary.TABLE_PLAYLISTS_SONGS
+			+" WHERE "+MediaLibrary.PlaylistSongColumns.PLAYLIST_ID+"="+SAMPLE_ID+" AND "+MediaLibrary.PlaylistSongColumns.POSITION+" > 0");
+		list.add("SELECT "+MediaLibrary.PlaylistSongColumns.POSITION+" FROM "+MediaLibrary.TABLE_PLAYLISTS_SONGS
+			+" WHERE "+MediaLibrary.PlaylistSongColumns._ID+" IN (1,2)");
+		return list;
+	}
+
+	/**
+	 * Returns which scans and sorts are expected for a query
+	 *
+	 * @param table the queried table
+	 * @param selection the selection of the query, may be null
+	 * @param orderBy the sort order of the query, may be null
+	 * @return a combination of the EXPECT_* flags
+	 */
+	private static int getExpectations(String table, String selection, String orderBy) {
+		int expected = 0;
+
+		// Lists without a selection and searches (which can not use an index) visit every row.
+		if (selection == null || selection.contains(" LIKE "))
+			expected |= EXPECT_SCAN;
+
+		if (orderBy != null) {
+			final String column = orderBy.trim().split("[\\s,]+")[0];
+			for (String[] sort : UNINDEXED_SORTS) {
+				if (sort[0].equals(table) && sort[1].equals(column)) {
+					// Keyset windows of such a query can not be looked up using an index, either.
+					expected |= EXPECT_SCAN | EXPECT_SORT;
+					break;
+				}
+			}
+			// Rows with a NULL key come last when sorting in descending order, so the keyset
+			// windows of a column which may be NULL (eg. year or mtime) are no single index range:
+			// SQLite walks the index from its end or sorts the rows before the key.
+			if (selection != null && selection.contains(column+" IS NULL"))
+				expected |= EXPECT_SCAN | EXPECT_SORT;
+		}
+		return expected;
+	}
+
+	/**
+	 * Checks a query plan for unexpected full table scans and sorts.
+	 *
+	 * The plan is split into the loops of each SELECT: a SELECT which starts with
+	 * a full scan (with or without an index) visits every row and must not sort
+	 * all of them, unless expected. A SELECT which looks up its rows using an index
+	 * may sort them. A full table scan in any inner loop is never expected, as it
+	 * runs once per row of the outer loop.
+	 *
+	 * @param what the query, used for reports
+	 * @param plan the result of EXPLAIN QUERY PLAN, closed by this function
+	 * @param expected a combination of the EXPECT_* flags
+	 */
+	private void checkPlan(String what, Cursor plan, int expected) {
+		// SQLite before 3.24 returns (selectid, order, from, detail), newer versions (id, parent, notused, detail).
+		int group = plan.getColumnIndex("selectid");
+		if (group == -1)
+			group = plan.getColumnIndex("parent");
+		final int detail = plan.getColumnCount() - 1;
+
+		ArrayList<String> driving = new ArrayList<>(); // detail of the first loop, indexed by group
+		ArrayList<String> groups = new ArrayList<>();
+		StringBuilder dump = new StringBuilder();
+		ArrayList<String> problems = new ArrayList<>();
+
+		while (plan.moveToNext()) {
+			final String step = plan.getString(detail);
+			final String key = (group == -1 ? "0" : plan.getString(group));
+			dump.append("\n    ").append(step);
+
+			final boolean loop = step.startsWith("SCAN ") || step.startsWith("SEARCH ");
+			final boolean tableScan = step.startsWith("SCAN ") && !step.contains(" INDEX ") && !step.contains("SUBQUERY")
+			                       && !step.contains("CONSTANT ROW") && !step.contains("CO-ROUTINE");
+			int index = groups.indexOf(key);
+
+			if (loop && index == -1) {
+				groups.add(key);
+				driving.add(step);
+				if (step.startsWith("SCAN ") && (expected & EXPECT_SCAN) == 0)
+					problems.add("unexpected full scan: "+step);
+			} else if (tableScan) {
+				problems.add("full scan in inner loop: "+step);
+			}
+
+			if (step.contains("TEMP B-TREE") && !step.contains("RIGHT PART") && !step.contains("LAST ")) {
+				final boolean lookup = (index != -1 && driving.get(index).startsWith("SEARCH "));
+				if (!lookup && (expected & EXPECT_SORT) == 0)
+					problems.add("unexpected sort: "+step);
+			}
+		}
+		plan.close();
+
+		for (String problem : problems) {
+			Log.e("VanillaMusic", "query plan check: "+problem+" in "+what+dump);
+			synchronized (mProblems) {
+				mProblems.add(problem+" in "+what);
+			}
+		}
+	}
+
+	/**
+	 * Logs how long a maintenance function took
+	 *
+	 * @param what the function which was called
+	 * @param startAt the time the function was called
+	 */
+	private static void logTiming(String what, long startAt) {
+		Log.v("VanillaMusic", "query plan check: "+(System.currentTimeMillis() - startAt)+" ms for "+what);
+	}
+
+	/**
+	 * Returns all problems found so far
+	 *
+	 * @return the problems, empty if all plans were as expected
+	 */
+	public ArrayList<String> getProblems() {
+		synchronized (mProblems) {
+			return new ArrayList<>(mProblems);
+		}
+	}
+
+	/**
+	 * Closes and removes the synthetic library
+	 *
+	 * @param context the context to use
+	 */
+	public void close(Context context) {
+		mBackend.close();
+		context.deleteDatabase(DATABASE_NAME);
+	}
+}
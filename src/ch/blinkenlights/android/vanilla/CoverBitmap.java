@@ -35,6 +35,7 @@ import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.Shader;
 import android.util.DisplayMetrics;
+import android.util.LruCache;
 import android.util.TypedValue;
 
 /**
@@ -63,6 +64,24 @@ public final class CoverBitmap {
 	private static Bitmap SONG_ICON;
 	private static Bitmap ALBUM_ICON;
 	private static Bitmap ARTIST_ICON;
+	/**
+	 * Memory budget of sPlaceholderCache in bytes
+	 */
+	private static final int PLACEHOLDER_CACHE_SIZE = 2*1024*1024;
+	/**
+	 * Rendered placeholder covers, keyed by glyphs, color and size.
+	 * Many titles share the same placeholder, so this saves most canvas draws.
+	 */
+	private static final LruCache<String, Bitmap> sPlaceholderCache = new LruCache<String, Bitmap>(PLACEHOLDER_CACHE_SIZE) {
+		@Override
+		protected int sizeOf(String key, Bitmap value) {
+			return value.getByteCount();
+		}
+	};
+	/**
+	 * Colors of placeholder covers, loaded from tiles_colors.xml on first use
+	 */
+	private static int[] sTileColors;
 
 	/**
 	 * Initialize the regular text size members.
@@ -381,7 +400,27 @@ public final class CoverBitmap {
 	}
 
 	/**
-	 * Draws a placeholder cover from given title string
+	 * Returns the colors used for placeholder covers
+	 *
+	 * @param context A context to use.
+	 */
+	private static synchronized int[] getTileColors(Context context)
+	{
+		if (sTileColors == null) {
+			TypedArray colors = context.getResources().obtainTypedArray(R.array.letter_tile_colors);
+			int[] result = new int[colors.length()];
+			for (int i = 0; i < result.length; i++) {
+				result[i] = colors.getColor(i, 0);
+			}
+			colors.recycle();
+			sTileColors = result;
+		}
+		return sTileColors;
+	}
+
+	/**
+	 * Draws a placeholder cover from given title string.
+	 * Covers are cached: the returned bitmap is shared and must not be modified.
 	 *
 	 * @param title A text string to use in the cover
 	 * @return bitmap The drawn bitmap
@@ -402,14 +441,19 @@ public final class CoverBitmap {
 			subText = subText.substring(0,1);
 		}
 
-		Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+		// Picks a semi-random color from tiles_colors.xml
+		int[] colors = getTileColors(context);
+		int color = colors[Math.abs(title.hashCode()) % colors.length];
+
+		// The cover only depends on the drawn text, not on the full title
+		String key = subText+"\0"+color+"\0"+width+"x"+height;
+		Bitmap bitmap = sPlaceholderCache.get(key);
+		if (bitmap != null)
+			return bitmap;
+
+		bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
 		Canvas canvas = new Canvas(bitmap);
 		Paint paint = new Paint();
-
-		// Picks a semi-random color from tiles_colors.xml
-		TypedArray colors = context.getResources().obtainTypedArray(R.array.letter_tile_colors);
-		int color = colors.getColor(Math.abs(title.hashCode()) % colors.length(), 0);
-		colors.recycle();
 		paint.setColor(color);
 
 		paint.setStyle(Paint.Style.FILL);
@@ -423,6 +467,7 @@ public final class CoverBitmap {
 		paint.getTextBounds(subText, 0, subText.length(), bounds);
 
 		canvas.drawText(subText, (width/2f)-bounds.exactCenterX(), (height/2f)-bounds.exactCenterY(), paint);
+		sPlaceholderCache.put(key, bitmap);
 		return bitmap;
 	}
 }
@@ -17,27 +17,47 @@
 
 package ch.blinkenlights.android.vanilla;
 
-import android.content.ContentResolver;
-import android.content.ContentValues;
+import ch.blinkenlights.android.medialibrary.MediaLibrary;
+
+import android.app.ActivityManager;
 import android.content.Context;
-import android.content.res.Resources;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteOpenHelper;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
-import android.os.Environment;
+import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.LruCache;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.Random;
-import java.util.regex.Pattern;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 
 public class CoverCache {
@@ -71,13 +91,26 @@ public class CoverCache {
 	 */
 	private static BitmapDiskCache sBitmapDiskCache;
 	/**
-	 * Bitmask on how we are going to load coverart
+	 * Shared in-memory cache, sits in front of sBitmapDiskCache
 	 */
-	public static int mCoverLoadMode = 0;
+	private static BitmapLruCache sBitmapLruCache;
 	/**
-	 * The public downloads directory of this device
+	 * Stored in sBitmapLruCache for items which are known to have no cover
 	 */
-	private static final File sDownloadsDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+	private static final Bitmap sNoCover = Bitmap.createBitmap(1, 1, Bitmap.Config.RGB_565);
+	/**
+	 * Temporary bitmaps which may be decoded into again
+	 */
+	private static final BitmapPool sBitmapPool = new BitmapPool();
+	/**
+	 * Covers which are currently being loaded, concurrent requests
+	 * for the same key wait for the same task
+	 */
+	private static final ConcurrentHashMap<CoverKey, FutureTask<Bitmap>> sInFlight = new ConcurrentHashMap<>();
+	/**
+	 * Bitmask on how we are going to load coverart
+	 */
+	public static int mCoverLoadMode = 0;
 
 
 	/**
@@ -87,8 +120,16 @@ public class CoverCache {
 	 * @param context A context to use
 	 */
 	public CoverCache(Context context) {
-		if (sBitmapDiskCache == null) {
-			sBitmapDiskCache = new BitmapDiskCache(context.getApplicationContext(), 25*1024*1024);
+		synchronized (CoverCache.class) {
+			if (sBitmapDiskCache == null) {
+				sBitmapDiskCache = new BitmapDiskCache(context.getApplicationContext(), 25*1024*1024);
+			}
+			if (sBitmapLruCache == null) {
+				ActivityManager am = (ActivityManager)context.getSystemService(Context.ACTIVITY_SERVICE);
+				int lruSize = am.getMemoryClass() / 8; // use ~12% for LRU
+				lruSize = lruSize < 2 ? 2 : lruSize; // LRU will always be at least 2MiB
+				sBitmapLruCache = new BitmapLruCache(lruSize*1024*1024);
+			}
 		}
 	}
 
@@ -99,19 +140,122 @@ public class CoverCache {
 	 * @param song The song used to identify the artwork to load
 	 * @return a bitmap or null if no artwork was found
 	 */
-	public Bitmap getCoverFromSong(Song song, int size) {
-		CoverKey key = new CoverCache.CoverKey(MediaUtils.TYPE_ALBUM, song.albumId, size);
+	public Bitmap getCoverFromSong(final Song song, int size) {
+		final CoverKey key = new CoverCache.CoverKey(MediaUtils.TYPE_ALBUM, song.albumId, size);
+		Bitmap cover = sBitmapLruCache.get(key);
+		if (cover != null)
+			return (cover == sNoCover ? null : cover);
+
+		FutureTask<Bitmap> task = new FutureTask<>(new Callable<Bitmap>() {
+			@Override
+			public Bitmap call() {
+				return loadCover(key, song);
+			}
+		});
+		FutureTask<Bitmap> running = sInFlight.putIfAbsent(key, task);
+		if (running == null) {
+			// nobody is loading this cover yet: do it ourselfs
+			running = task;
+			try {
+				task.run();
+			} finally {
+				sInFlight.remove(key, task);
+			}
+		}
+
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Log.w("VanillaMusic", "Loading cover "+key+" failed: "+e.getCause());
+		}
+		return null;
+	}
+
+	/**
+	 * Loads a cover from the disk cache, derives it from a larger cached
+	 * version or creates it from the original artwork, in this order.
+	 * The result is stored in the in-memory cache.
+	 *
+	 * @param key The cache key to use
+	 * @param song The song used to identify the artwork to load
+	 * @return a bitmap or null if no artwork was found
+	 */
+	private Bitmap loadCover(CoverKey key, Song song) {
 		Bitmap cover = getStoredCover(key);
 		if (cover == null) {
-			cover = sBitmapDiskCache.createBitmap(song, size*size);
+			cover = deriveCover(key);
+			if (cover == null)
+				cover = sBitmapDiskCache.createBitmap(song, key.coverSize);
 			if (cover != null) {
 				storeCover(key, cover);
-				cover = getStoredCover(key); // return lossy version to avoid random quality changes
+				// return lossy version to avoid random quality changes, but keep
+				// the one we created if it could not be stored.
+				Bitmap stored = getStoredCover(key);
+				if (stored != null) {
+					sBitmapPool.put(key.coverSize, cover); // nobody else has seen this bitmap
+					cover = stored;
+				}
 			}
 		}
+		putCachedCover(key, cover);
 		return cover;
 	}
 
+	/**
+	 * Creates a small cover by downscaling a cached large version,
+	 * which is much cheaper than decoding the original artwork again.
+	 *
+	 * @param key The cache key of the small cover
+	 * @return a new bitmap, null if no large version is cached
+	 */
+	private Bitmap deriveCover(CoverKey key) {
+		if (key.coverSize >= SIZE_LARGE)
+			return null;
+
+		CoverKey largeKey = new CoverKey(key.mediaType, key.mediaId, SIZE_LARGE);
+		Bitmap large = sBitmapLruCache.get(largeKey);
+		boolean shared = (large != null);
+		if (large == null)
+			large = getStoredCover(largeKey);
+		if (large == null || large == sNoCover)
+			return null;
+
+		// Same pixel budget as createBitmap(), but we do not enlarge small artwork
+		final double scale = Math.sqrt((double)key.coverSize * key.coverSize / ((double)large.getWidth() * large.getHeight()));
+		if (scale >= 1)
+			return (shared ? large.copy(large.getConfig(), false) : large);
+
+		Bitmap cover = Bitmap.createScaledBitmap(large, Math.max(1, (int)(large.getWidth() * scale)), Math.max(1, (int)(large.getHeight() * scale)), true);
+		if (!shared)
+			sBitmapPool.put(SIZE_LARGE, large);
+		return cover;
+	}
+
+	/**
+	 * Returns a cover from the in-memory cache only.
+	 * This is cheap enough to be called from the UI thread.
+	 *
+	 * @param key The cache key to use
+	 * @param fallback returned if the item is known to have no cover
+	 * @return the cached bitmap, fallback or null on cache miss
+	 */
+	public Bitmap getCachedCover(CoverKey key, Bitmap fallback) {
+		Bitmap cover = sBitmapLruCache.get(key);
+		return (cover == sNoCover ? fallback : cover);
+	}
+
+	/**
+	 * Stores a bitmap in the in-memory cache only
+	 *
+	 * @param key The cache key to use
+	 * @param cover The bitmap to store, null if the item has no cover
+	 */
+	public void putCachedCover(CoverKey key, Bitmap cover) {
+		sBitmapLruCache.put(key, cover == null ? sNoCover : cover);
+	}
+
 	/**
 	 * Returns the on-disk cached version of the cover.
 	 * Should only be used on a background thread
@@ -134,10 +278,43 @@ public class CoverCache {
 		sBitmapDiskCache.put(key, cover);
 	}
 
+	/**
+	 * Cleans up the on-disk cache: removes expired entries, covers of albums
+	 * which are no longer in the library and files unknown to the cache.
+	 * Does nothing if this was already done within the last day.
+	 * Should only be used on a background thread.
+	 *
+	 * @param context A context to use
+	 */
+	public static void runMaintenance(Context context) {
+		new CoverCache(context); // makes sure that sBitmapDiskCache exists
+		if (!sBitmapDiskCache.isMaintenanceDue())
+			return;
+
+		// Albums may be missing while the library is rebuilt, so we only trust a finished library
+		HashSet<Long> albumIds = null;
+		if (!MediaLibrary.describeScanProgress(context).isRunning) {
+			Cursor cursor = MediaLibrary.queryLibrary(context, MediaLibrary.TABLE_ALBUMS, new String[]{ MediaLibrary.AlbumColumns._ID }, null, null, null);
+			if (cursor != null) {
+				albumIds = new HashSet<>();
+				while (cursor.moveToNext()) {
+					albumIds.add(cursor.getLong(0));
+				}
+				cursor.close();
+				if (albumIds.isEmpty())
+					albumIds = null;
+			}
+		}
+		sBitmapDiskCache.compact(albumIds);
+	}
+
 	/**
 	 * Deletes all items hold in the cover caches
 	 */
 	public static void evictAll() {
+		if (sBitmapLruCache != null) {
+			sBitmapLruCache.evictAll();
+		}
 		if (sBitmapDiskCache != null) {
 			sBitmapDiskCache.evictAll();
 		}
@@ -172,7 +349,10 @@ public class CoverCache {
 
 		@Override
 		public int hashCode() {
-			return (int)this.mediaId + this.mediaType*(int)1e4 + this.coverSize * (int)1e5;
+			// Mix all bits of the 63 bit media id, the old sum of all fields collided easily
+			long hash = this.mediaId * 31 + this.mediaType;
+			hash = hash * 31 + this.coverSize;
+			return (int)(hash ^ (hash >>> 32));
 		}
 
 		@Override
@@ -183,7 +363,162 @@ public class CoverCache {
 	}
 
 
-	private static class BitmapDiskCache extends SQLiteOpenHelper {
+	/**
+	 * A LRU cache implementation, using the CoverKey as key to store Bitmap objects
+	 *
+	 * Note that the implementation does not override create() in order to enable
+	 * the use of fetch-if-cached functions: createBitmap() is therefore called
+	 * by CoverCache itself.
+	 */
+	private static class BitmapLruCache extends LruCache<CoverKey, Bitmap> {
+		/**
+		 * Creates a new in-memory LRU cache
+		 *
+		 * @param size the lru cache size in bytes
+		 */
+		public BitmapLruCache(int size) {
+			super(size);
+		}
+
+		/**
+		 * Returns the cache size in bytes, not objects
+		 */
+		@Override
+		protected int sizeOf(CoverKey key, Bitmap value) {
+			// pooled bitmaps may have been reconfigured to a smaller size than they occupy
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+				return value.getAllocationByteCount();
+			return value.getByteCount();
+		}
+	}
+
+
+	/**
+	 * A size-bucketed pool of bitmaps which can be decoded into
+	 * using BitmapFactory.Options.inBitmap or copyPixelsFromBuffer().
+	 *
+	 * Covers in BitmapLruCache are handed out to views, widgets and
+	 * notifications which may still draw them after eviction, so only bitmaps
+	 * which never left CoverCache may be put into the pool.
+	 * Reusing bitmaps of a different size requires KitKat, older
+	 * versions simply never pool anything.
+	 */
+	static class BitmapPool {
+		/**
+		 * Maximum number of pooled bitmaps per bucket
+		 */
+		private static final int MAX_SMALL = 16;
+		private static final int MAX_LARGE = 4;
+		/**
+		 * Log the counters after this many requests
+		 */
+		private static final int STATS_INTERVAL = 256;
+		/**
+		 * Pooled bitmaps for SIZE_SMALL and SIZE_LARGE decodes
+		 */
+		private final ArrayDeque<Bitmap> mSmall = new ArrayDeque<>();
+		private final ArrayDeque<Bitmap> mLarge = new ArrayDeque<>();
+		/**
+		 * Number of requests served from the pool
+		 */
+		private long mReused;
+		/**
+		 * Number of requests which required a new allocation
+		 */
+		private long mMissed;
+		/**
+		 * Sum of all bytes which did not have to be allocated
+		 */
+		private long mBytesSaved;
+
+		/**
+		 * Returns the bucket for given cover size, null if
+		 * such bitmaps are not pooled
+		 */
+		private ArrayDeque<Bitmap> getBucket(int size) {
+			if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT)
+				return null;
+			if (size == SIZE_SMALL)
+				return mSmall;
+			if (size == SIZE_LARGE)
+				return mLarge;
+			return null;
+		}
+
+		/**
+		 * Returns a pooled bitmap which is large enough to hold
+		 * given number of bytes. The caller owns the returned bitmap.
+		 *
+		 * @param size the cover size of the bucket to search
+		 * @param bytes the number of bytes required
+		 * @return a mutable bitmap, null if none was suitable
+		 */
+		synchronized Bitmap get(int size, int bytes) {
+			ArrayDeque<Bitmap> bucket = getBucket(size);
+			Bitmap best = null;
+			if (bucket != null) {
+				for (Bitmap bitmap : bucket) {
+					int allocated = bitmap.getAllocationByteCount();
+					if (allocated >= bytes && (best == null || allocated < best.getAllocationByteCount()))
+						best = bitmap;
+				}
+			}
+			if (best == null) {
+				mMissed++;
+			} else {
+				bucket.remove(best);
+				mReused++;
+				mBytesSaved += bytes;
+			}
+			if ((mReused + mMissed) % STATS_INTERVAL == 0)
+				Log.v("VanillaMusic", "BitmapPool: reuse rate="+getReuseRate()+", saved "+getBytesSaved()+" bytes");
+			return best;
+		}
+
+		/**
+		 * Returns a bitmap to the pool. The caller must not use
+		 * the bitmap afterwards.
+		 *
+		 * @param size the cover size of the bucket to use
+		 * @param bitmap the bitmap to return, may be null
+		 */
+		synchronized void put(int size, Bitmap bitmap) {
+			ArrayDeque<Bitmap> bucket = getBucket(size);
+			if (bucket == null || bitmap == null || !bitmap.isMutable() || bitmap.isRecycled())
+				return;
+
+			bucket.addLast(bitmap);
+			if (bucket.size() > (bucket == mSmall ? MAX_SMALL : MAX_LARGE))
+				bucket.removeFirst(); // just drop it, the gc will take care
+		}
+
+		/**
+		 * Returns the share of requests which were served from the pool
+		 *
+		 * @return a value between 0 and 1
+		 */
+		synchronized float getReuseRate() {
+			long total = mReused + mMissed;
+			return (total == 0 ? 0 : (float)mReused / total);
+		}
+
+		/**
+		 * Returns the number of bytes which did not have to be allocated
+		 */
+		synchronized long getBytesSaved() {
+			return mBytesSaved;
+		}
+	}
+
+
+	/**
+	 * A disk cache storing one JPEG file per cover.
+	 *
+	 * Files are spread over 256 shard directories. The access order and size of all
+	 * entries is kept in memory and persisted in an append-only journal, so a cache
+	 * hit is a single file read and eviction never has to look at the disk.
+	 */
+	private static class BitmapDiskCache {
 		/**
 		 * The Context to use
 		 */
@@ -193,25 +528,100 @@ public class CoverCache {
 		 */
 		private final long mCacheSize;
 		/**
-		 * SQLite table to use
+		 * Directory holding the shards and the journal
+		 */
+		private final File mDirectory;
+		/**
+		 * The journal file
+		 */
+		private final File mJournalFile;
+		/**
+		 * Empty file, touched on each run of compact()
+		 */
+		private final File mMaintenanceFile;
+		/**
+		 * All cached entries, least recently used first
+		 */
+		private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(64, 0.75f, true);
+		/**
+		 * Sum of all entry sizes in bytes
 		 */
-		private final static String TABLE_NAME = "covercache";
+		private long mUsedSpace;
 		/**
-		 * Priority-ordered list of possible cover names
+		 * Number of lines in the journal, used to decide when to rewrite it
 		 */
-		private final static Pattern[] COVER_MATCHES = { Pattern.compile("(?i).+/(COVER|ALBUM)\\.(JPE?G|PNG)$"), Pattern.compile("(?i).+/(CD|FRONT|ARTWORK)\\.(JPE?G|PNG)$"), Pattern.compile("(?i).+\\.(JPE?G|PNG)$") };
+		private int mJournalLines;
 		/**
-		 * Projection of all columns in the database
+		 * Appends to mJournalFile, null until the journal was read
 		 */
-		private final static String[] FULL_PROJECTION = {"id", "size", "expires", "blob"};
+		private Writer mJournal;
 		/**
-		 * Projection of metadata-only columns
+		 * Time (as in SystemClock.elapsedRealtime()) of the oldest READ record
+		 * which was not flushed to the journal yet, 0 if there is none
 		 */
-		private final static String[] META_PROJECTION = {"id", "size", "expires"};
+		private long mPendingReadsSince;
+		/**
+		 * Name of the old, SQLite based cache which is deleted on startup
+		 */
+		private final static String LEGACY_DATABASE = "covercache.db";
+		/**
+		 * Journal operations
+		 */
+		private final static char JOURNAL_ADD = 'A';
+		private final static char JOURNAL_READ = 'R';
+		private final static char JOURNAL_DELETE = 'D';
+		/**
+		 * Store SIZE_SMALL covers as raw RGB565 pixels instead of JPEG.
+		 * Uses more disk space, but reading them back does not need a decoder.
+		 */
+		private final static boolean STORE_RAW_SMALL = true;
+		/**
+		 * Magic number of raw covers, followed by width and height
+		 */
+		private final static int RAW_MAGIC = 0x56353635; // 'V565'
+		/**
+		 * Size of the raw cover header in bytes
+		 */
+		private final static int RAW_HEADER_SIZE = 12;
 		/**
 		 * Restrict lifetime of cached objects to, at most, OBJECT_TTL
 		 */
 		private final static int OBJECT_TTL = 86400*8;
+		/**
+		 * Buffer size used to read artwork. The bounds pass is
+		 * replayed from this buffer if the mark got moved by the decoder
+		 */
+		private final static int SOURCE_BUFFER_SIZE = 64*1024;
+		/**
+		 * How much of the artwork may be read to find its bounds before
+		 * we have to open it again
+		 */
+		private final static int SOURCE_MARK_LIMIT = 1024*1024;
+		/**
+		 * Minimum time between two runs of compact(), in seconds
+		 */
+		private final static int MAINTENANCE_INTERVAL = 86400;
+		/**
+		 * Temporary files younger than this (in ms) may still be written by put()
+		 */
+		private final static int TMP_FILE_GRACE = 60000;
+		/**
+		 * How long READ records may stay in the journal buffer, in ms.
+		 * They only update the access order, so losing them is harmless.
+		 */
+		private final static int READ_FLUSH_DELAY = 10000;
+
+		/**
+		 * Size and creation time of a cached file
+		 */
+		private static class Entry {
+			final long size;
+			final long created;
+			Entry(long size, long created) {
+				this.size = size;
+				this.created = created;
+			}
+		}
 
 		/**
 		 * Creates a new BitmapDiskCache instance
@@ -220,106 +630,294 @@ public class CoverCache {
 		 * @param cacheSize The maximal amount of disk space to use in bytes
 		 */
 		public BitmapDiskCache(Context context, long cacheSize) {
-			super(context, "covercache.db", null, 1 /* version */);
 			mCacheSize = cacheSize;
 			mContext = context;
+			mDirectory = new File(context.getCacheDir(), "covers");
+			mJournalFile = new File(mDirectory, "journal");
+			mMaintenanceFile = new File(mDirectory, "maintenance");
 		}
 
 		/**
-		 * Called by SQLiteOpenHelper to create the database schema
+		 * Reads the journal on first use. Must be called with the lock held.
 		 */
-		@Override
-		public void onCreate(SQLiteDatabase dbh) {
-			dbh.execSQL("CREATE TABLE "+TABLE_NAME+" (id INTEGER, expires INTEGER, size INTEGER, blob BLOB);");
-			dbh.execSQL("CREATE UNIQUE INDEX idx ON "+TABLE_NAME+" (id);");
+		private void open() {
+			if (mJournal != null)
+				return;
+
+			if (mContext.getDatabasePath(LEGACY_DATABASE).exists())
+				mContext.deleteDatabase(LEGACY_DATABASE);
+
+			mDirectory.mkdirs();
+			try (BufferedReader reader = new BufferedReader(new FileReader(mJournalFile))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] parts = line.split(" ");
+					mJournalLines++;
+					if (parts.length == 4 && parts[0].charAt(0) == JOURNAL_ADD) {
+						Entry old = mEntries.put(parts[1], new Entry(Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+						mUsedSpace += Long.parseLong(parts[2]) - (old == null ? 0 : old.size);
+					} else if (parts.length == 2 && parts[0].charAt(0) == JOURNAL_READ) {
+						mEntries.get(parts[1]); // moves entry to the end of the access order
+					} else if (parts.length == 2 && parts[0].charAt(0) == JOURNAL_DELETE) {
+						Entry old = mEntries.remove(parts[1]);
+						if (old != null)
+							mUsedSpace -= old.size;
+					}
+				}
+			} catch (IOException|RuntimeException e) {
+				// missing or damaged journal: files we do not know about get
+				// overwritten sooner or later, so it is safe to start from scratch.
+				mEntries.clear();
+				mUsedSpace = 0;
+			}
+
+			// Older versions named files after a 32 bit hash of the key: these
+			// can not be mapped back to a key and may even hold the wrong cover.
+			Iterator<Map.Entry<String, Entry>> iter = mEntries.entrySet().iterator();
+			while (iter.hasNext()) {
+				Map.Entry<String, Entry> entry = iter.next();
+				if (!isValidName(entry.getKey())) {
+					getFile(entry.getKey()).delete();
+					mUsedSpace -= entry.getValue().size;
+					iter.remove();
+				}
+			}
+			rewriteJournal();
 		}
 
 		/**
-		 * Called by SqLiteOpenHelper if the database needs an upgrade
+		 * Writes a compact journal containing only the live entries.
+		 * Must be called with the lock held.
 		 */
-		@Override
-		public void onUpgrade(SQLiteDatabase dbh, int oldVersion, int newVersion) {
-			// first db -> nothing to upgrade
+		private void rewriteJournal() {
+			closeJournal();
+			File tmp = new File(mDirectory, "journal.tmp");
+			try (Writer writer = new BufferedWriter(new FileWriter(tmp))) {
+				for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+					Entry e = entry.getValue();
+					writer.write(JOURNAL_ADD+" "+entry.getKey()+" "+e.size+" "+e.created+"\n");
+				}
+			} catch (IOException e) {
+				Log.w("VanillaMusic", "Failed to write cover cache journal: "+e);
+			}
+			tmp.renameTo(mJournalFile);
+			mJournalLines = mEntries.size();
+
+			try {
+				mJournal = new BufferedWriter(new FileWriter(mJournalFile, true));
+			} catch (IOException e) {
+				mJournal = new StringWriter(); // cache still works, but will not survive a restart
+			}
+		}
+
+		/**
+		 * Appends a line to the journal. Must be called with the lock held.
+		 * READ records are buffered and written out with the next other record,
+		 * once the buffer is full or after READ_FLUSH_DELAY.
+		 */
+		private void appendJournal(char op, String line) {
+			final long now = SystemClock.elapsedRealtime();
+			boolean flush = true;
+			if (op == JOURNAL_READ) {
+				if (mPendingReadsSince == 0)
+					mPendingReadsSince = now;
+				flush = now - mPendingReadsSince > READ_FLUSH_DELAY;
+			}
+			try {
+				mJournal.write(op+" "+line+"\n");
+				if (flush) {
+					mJournal.flush();
+					mPendingReadsSince = 0;
+				}
+			} catch (IOException e) {
+				// not fatal: we just forget about this operation on restart
+			}
+			if (++mJournalLines > 2 * mEntries.size() + 1000)
+				rewriteJournal();
+		}
+
+		/**
+		 * Closes the journal writer. Must be called with the lock held.
+		 */
+		private void closeJournal() {
+			mPendingReadsSince = 0;
+			if (mJournal != null) {
+				try {
+					mJournal.close();
+				} catch (IOException e) {
+					// ignored
+				}
+				mJournal = null;
+			}
 		}
 
 		/**
-		 * Trims the on disk cache to given size
+		 * Returns the file name used for given key. The name contains
+		 * the full key, so two keys can never share a file.
+		 */
+		private static String getName(CoverKey key) {
+			return Long.toHexString(key.mediaId)+"-"+key.mediaType+"-"+key.coverSize;
+		}
+
+		/**
+		 * Returns true if the name was created by getName()
+		 */
+		private static boolean isValidName(String name) {
+			return name.indexOf('-') != -1;
+		}
+
+		/**
+		 * Returns the file used to store given name, the shard
+		 * directory is derived from the name
+		 */
+		private File getFile(String name) {
+			return new File(mDirectory, String.format("%02x/%s", name.hashCode() & 0xFF, name));
+		}
+
+		/**
+		 * Removes least recently used entries until the cache fits
+		 * into maxCacheSize. Must be called with the lock held.
 		 *
 		 * @param maxCacheSize Trim cache to this many bytes
 		 */
 		private void trim(long maxCacheSize) {
-			SQLiteDatabase dbh = getWritableDatabase();
-			long availableSpace = maxCacheSize - getUsedSpace();
-
-			if (maxCacheSize == 0) {
-				// Just drop the whole database (probably a call from evictAll)
-				dbh.delete(TABLE_NAME, "1", null);
-			} else if (availableSpace < 0) {
-				// Try to evict all expired entries first
-				int affected = dbh.delete(TABLE_NAME, "expires < ?", new String[] { Long.toString(getUnixTime())});
-				if (affected > 0)
-					availableSpace = maxCacheSize - getUsedSpace();
-
-				if (availableSpace < 0) {
-					// still not enough space: purge by expire date (this kills random rows as expire times are random)
-					Cursor cursor = dbh.query(TABLE_NAME, META_PROJECTION, null, null, null, null, "expires ASC");
-					if (cursor != null) {
-						while (cursor.moveToNext() && availableSpace < 0) {
-							int id = cursor.getInt(0);
-							int size = cursor.getInt(1);
-							dbh.delete(TABLE_NAME, "id=?", new String[] { Long.toString(id) });
-							availableSpace += size;
-						}
-						cursor.close();
-					}
-				}
+			Iterator<Map.Entry<String, Entry>> iter = mEntries.entrySet().iterator();
+			while (mUsedSpace > maxCacheSize && iter.hasNext()) {
+				Map.Entry<String, Entry> entry = iter.next();
+				getFile(entry.getKey()).delete();
+				mUsedSpace -= entry.getValue().size;
+				iter.remove();
+				appendJournal(JOURNAL_DELETE, entry.getKey());
+			}
+		}
+
+		/**
+		 * Removes a single entry. Must be called with the lock held.
+		 */
+		private void remove(String name) {
+			Entry entry = mEntries.remove(name);
+			if (entry != null) {
+				getFile(name).delete();
+				mUsedSpace -= entry.size;
+				appendJournal(JOURNAL_DELETE, name);
 			}
 		}
 
 		/**
 		 * Deletes all cached elements from the on-disk cache
 		 */
-		public void evictAll() {
-			// purge all cached entries
-			trim(0);
-			// and release the dbh
-			getWritableDatabase().close();
+		public synchronized void evictAll() {
+			open();
+			for (String name : mEntries.keySet()) {
+				getFile(name).delete();
+			}
+			mEntries.clear();
+			mUsedSpace = 0;
+			rewriteJournal();
 		}
 
 		/**
-		 * Checks if given stamp is considered to be expired
-		 *
-		 * @param stamp The timestamp to check
-		 * @return boolean true if stamp is expired
+		 * Returns true if compact() was not run within MAINTENANCE_INTERVAL
 		 */
-		private boolean isExpired(long stamp) {
-			return (getUnixTime() > stamp);
+		public boolean isMaintenanceDue() {
+			long last = mMaintenanceFile.lastModified(); // 0 if it does not exist
+			return System.currentTimeMillis() - last > MAINTENANCE_INTERVAL * 1000L;
 		}
 
 		/**
-		 * Returns the current unix timestamp
+		 * Removes expired and unreachable entries, deletes files we do not know
+		 * about and rewrites the journal.
 		 *
-		 * @return long unix seconds since epoc
+		 * @param albumIds ids of all albums in the library, null to keep covers of unknown albums
 		 */
-		private long getUnixTime() {
-			return System.currentTimeMillis() / 1000L;
+		public void compact(HashSet<Long> albumIds) {
+			final long startTime = SystemClock.elapsedRealtime();
+			final long now = getUnixTime();
+			int expired = 0;
+			int unreachable = 0;
+			int stray = 0;
+			long strayBytes = 0;
+			long usedBefore;
+			long usedAfter;
+
+			synchronized (this) {
+				open();
+				usedBefore = mUsedSpace;
+
+				Iterator<Map.Entry<String, Entry>> iter = mEntries.entrySet().iterator();
+				while (iter.hasNext()) {
+					Map.Entry<String, Entry> entry = iter.next();
+					boolean isExpired = now > entry.getValue().created + OBJECT_TTL;
+					long albumId = getAlbumId(entry.getKey());
+					boolean isUnreachable = !isExpired && albumIds != null && albumId != -1 && !albumIds.contains(albumId);
+					if (isExpired || isUnreachable) {
+						getFile(entry.getKey()).delete();
+						mUsedSpace -= entry.getValue().size;
+						iter.remove();
+						if (isExpired) {
+							expired++;
+						} else {
+							unreachable++;
+						}
+					}
+				}
+
+				// Leftovers of crashes, of a damaged journal or of evictAll()
+				File[] shards = mDirectory.listFiles();
+				for (File shard : (shards == null ? new File[0] : shards)) {
+					File[] files = shard.listFiles();
+					if (files == null)
+						continue; // journal or marker file
+					for (File file : files) {
+						String name = file.getName();
+						if (name.endsWith(".tmp") && System.currentTimeMillis() - file.lastModified() < TMP_FILE_GRACE)
+							continue; // put() may be writing this right now
+						if (!mEntries.containsKey(name) || !getFile(name).equals(file)) {
+							strayBytes += file.length();
+							file.delete();
+							stray++;
+						}
+					}
+					shard.delete(); // only succeeds if the shard is empty
+				}
+
+				rewriteJournal();
+				usedAfter = mUsedSpace;
+			}
+
+			try {
+				new FileOutputStream(mMaintenanceFile).close();
+				mMaintenanceFile.setLastModified(System.currentTimeMillis());
+			} catch (IOException e) {
+				// not fatal: we will just run again next time
+			}
+
+			Log.v("VanillaMusic", "Cover cache maintenance: "+(usedBefore + strayBytes)+" -> "+usedAfter+" bytes, removed "
+			      +expired+" expired, "+unreachable+" unreachable and "+stray+" stray files in "+(SystemClock.elapsedRealtime() - startTime)+"ms");
 		}
 
 		/**
-		 * Calculates the space used by the sqlite database
-		 *
-		 * @return long the space used in bytes
+		 * Returns the album id encoded in a name created by getName(),
+		 * -1 for names of other media types
 		 */
-		private long getUsedSpace() {
-			long usedSpace = -1;
-			SQLiteDatabase dbh = getWritableDatabase();
-			Cursor cursor = dbh.query(TABLE_NAME, new String[]{"SUM(size)"}, null, null, null, null, null);
-			if (cursor != null) {
-				if (cursor.moveToNext())
-					usedSpace = cursor.getLong(0);
-				cursor.close();
+		private static long getAlbumId(String name) {
+			String[] parts = name.split("-");
+			try {
+				if (parts.length == 3 && Integer.parseInt(parts[1]) == MediaUtils.TYPE_ALBUM)
+					return Long.parseLong(parts[0], 16);
+			} catch (NumberFormatException e) {
+				// not one of our names
 			}
-			return usedSpace;
+			return -1;
+		}
+
+		/**
+		 * Returns the current unix timestamp
+		 *
+		 * @return long unix seconds since epoc
+		 */
+		private long getUnixTime() {
+			return System.currentTimeMillis() / 1000L;
 		}
 
 		/**
@@ -329,26 +927,44 @@ public class CoverCache {
 		 * @param Bitmap The bitmap to store
 		 */
 		public void put(CoverKey key, Bitmap cover) {
-			SQLiteDatabase dbh = getWritableDatabase();
-
-			// Ensure that there is some space left
-			trim(mCacheSize);
+			final String name = getName(key);
+			synchronized (this) {
+				open();
+				if (mEntries.containsKey(name))
+					return;
+			}
 
 			ByteArrayOutputStream out = new ByteArrayOutputStream();
-			// We store a lossy version as this image was
-			// created from the original source (and will not be re-compressed)
-			cover.compress(Bitmap.CompressFormat.JPEG, 85, out);
-
-			Random rnd = new Random();
-			long ttl = getUnixTime() + rnd.nextInt(OBJECT_TTL);
+			if (STORE_RAW_SMALL && key.coverSize == SIZE_SMALL) {
+				writeRaw(cover, out);
+			} else {
+				// We store a lossy version as this image was
+				// created from the original source (and will not be re-compressed)
+				cover.compress(Bitmap.CompressFormat.JPEG, 85, out);
+			}
 
-			ContentValues values = new ContentValues();
-			values.put("id"     , key.hashCode());
-			values.put("expires", ttl);
-			values.put("size"   , out.size());
-			values.put("blob"   , out.toByteArray());
+			// Write to a temporary file first, so readers never see a partial file
+			File file = getFile(name);
+			File tmp = new File(file.getPath() + ".tmp");
+			file.getParentFile().mkdirs();
+			try (FileOutputStream stream = new FileOutputStream(tmp)) {
+				out.writeTo(stream);
+			} catch (IOException e) {
+				tmp.delete();
+				return;
+			}
 
-			dbh.insert(TABLE_NAME, null, values);
+			synchronized (this) {
+				if (!tmp.renameTo(file)) {
+					tmp.delete();
+					return;
+				}
+				Entry entry = new Entry(out.size(), getUnixTime());
+				Entry old = mEntries.put(name, entry);
+				mUsedSpace += entry.size - (old == null ? 0 : old.size);
+				appendJournal(JOURNAL_ADD, name+" "+entry.size+" "+entry.created);
+				trim(mCacheSize);
+			}
 		}
 
 		/**
@@ -358,28 +974,119 @@ public class CoverCache {
 		 * @return a cached bitmap, null on cache miss
 		 */
 		public Bitmap get(CoverKey key) {
-			Bitmap cover = null;
+			final String name = getName(key);
+			synchronized (this) {
+				open();
+				Entry entry = mEntries.get(name);
+				if (entry == null)
+					return null;
+				if (getUnixTime() > entry.created + OBJECT_TTL) {
+					remove(name);
+					return null;
+				}
+				appendJournal(JOURNAL_READ, name);
+			}
 
-			SQLiteDatabase dbh = getWritableDatabase(); // may also delete
-			String selection = "id=?";
-			String[] selectionArgs = { Long.toString(key.hashCode()) };
-			Cursor cursor = dbh.query(TABLE_NAME, FULL_PROJECTION, selection, selectionArgs, null, null, null);
-			if (cursor != null) {
-				if (cursor.moveToFirst()) {
-					long expires = cursor.getLong(2);
-					byte[] blob = cursor.getBlob(3);
+			// Decoding happens without holding the lock
+			Bitmap cover = readCover(getFile(name), key.coverSize);
+			if (cover == null) {
+				synchronized (this) {
+					remove(name); // file vanished or is damaged
+				}
+			}
+			return cover;
+		}
+
+		/**
+		 * Writes the pixels of a bitmap in our raw RGB565 format
+		 *
+		 * @param cover the bitmap to write
+		 * @param out the stream to write to
+		 */
+		private static void writeRaw(Bitmap cover, ByteArrayOutputStream out) {
+			Bitmap pixels = cover;
+			if (pixels.getConfig() != Bitmap.Config.RGB_565)
+				pixels = cover.copy(Bitmap.Config.RGB_565, false);
+
+			ByteBuffer buffer = ByteBuffer.allocate(RAW_HEADER_SIZE + pixels.getByteCount());
+			buffer.putInt(RAW_MAGIC).putInt(pixels.getWidth()).putInt(pixels.getHeight());
+			pixels.copyPixelsToBuffer(buffer);
+			out.write(buffer.array(), 0, buffer.position());
+		}
 
-					if (isExpired(expires)) {
-						dbh.delete(TABLE_NAME, selection, selectionArgs);
+		/**
+		 * Reads a cached cover: raw covers are mapped and copied
+		 * into a (pooled) bitmap, anything else goes trough BitmapFactory
+		 *
+		 * @param file the file to read
+		 * @param size the cover size, selects the pool bucket
+		 * @return the bitmap, null if the file could not be read
+		 */
+		private static Bitmap readCover(File file, int size) {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+				if (raf.length() > RAW_HEADER_SIZE && raf.readInt() == RAW_MAGIC) {
+					final int width = raf.readInt();
+					final int height = raf.readInt();
+					MappedByteBuffer pixels = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, RAW_HEADER_SIZE, raf.length() - RAW_HEADER_SIZE);
+					if (pixels.remaining() < width * height * 2)
+						return null; // truncated
+					Bitmap cover = sBitmapPool.get(size, width * height * 2);
+					if (cover == null) {
+						cover = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
 					} else {
-						ByteArrayInputStream stream = new ByteArrayInputStream(blob);
-						cover = BitmapFactory.decodeStream(stream);
+						cover.reconfigure(width, height, Bitmap.Config.RGB_565);
 					}
+					cover.copyPixelsFromBuffer(pixels);
+					return cover;
 				}
-				cursor.close();
+			} catch (IOException|RuntimeException e) {
+				return null;
 			}
+			// not a raw cover, so this must be a JPEG
+			BitmapFactory.Options bopts = new BitmapFactory.Options();
+			bopts.inJustDecodeBounds = true;
+			BitmapFactory.decodeFile(file.getPath(), bopts);
+			bopts.inJustDecodeBounds = false;
+			return decodeFile(file.getPath(), bopts, size);
+		}
 
-			return cover;
+		/**
+		 * Sets inBitmap to a pooled bitmap which is large enough to hold
+		 * the decoded image. The options must contain the dimensions of
+		 * the source, as set by inJustDecodeBounds.
+		 *
+		 * @param bopts the options to update
+		 * @param size the cover size, selects the pool bucket
+		 */
+		private static void setPooledBitmap(BitmapFactory.Options bopts, int size) {
+			// decoders round the sample size down to a power of two
+			final int sample = Integer.highestOneBit(Math.max(1, bopts.inSampleSize));
+			final int bpp = (bopts.inPreferredConfig == Bitmap.Config.RGB_565 ? 2 : 4);
+			// round up: decoders do not agree on how to round sampled dimensions
+			final int bytes = ((bopts.outWidth + sample - 1) / sample) * ((bopts.outHeight + sample - 1) / sample) * bpp;
+			bopts.inMutable = true; // allows the result to be pooled
+			bopts.inBitmap = (bopts.outWidth > 0 ? sBitmapPool.get(size, bytes) : null);
+		}
+
+		/**
+		 * Decodes a file into a pooled bitmap if possible. The options must
+		 * contain the dimensions of the file, as set by inJustDecodeBounds.
+		 *
+		 * @param path the file to decode
+		 * @param bopts the options to use for decoding
+		 * @param size the cover size, selects the pool bucket
+		 * @return the decoded bitmap, null on error
+		 */
+		private static Bitmap decodeFile(String path, BitmapFactory.Options bopts, int size) {
+			setPooledBitmap(bopts, size);
+			try {
+				return BitmapFactory.decodeFile(path, bopts);
+			} catch (IllegalArgumentException e) {
+				// the pooled bitmap was not suitable after all
+				sBitmapPool.put(size, bopts.inBitmap);
+				bopts.inBitmap = null;
+				return BitmapFactory.decodeFile(path, bopts);
+			}
 		}
 
 		/**
@@ -387,90 +1094,91 @@ public class CoverCache {
 		 * Returns null if no cover art was found
 		 *
 		 * @param song the function will search for artwork of this object
-		 * @param maxPxCount the maximum amount of pixels to return (30*30 = 900)
+		 * @param size the wanted cover size, the result will have at most size*size pixels
 		 */
-		public Bitmap createBitmap(Song song, long maxPxCount) {
+		public Bitmap createBitmap(Song song, int size) {
+			final long maxPxCount = (long)size * size;
 			if (song.id < 0) {
 				// Unindexed song: return early
 				return null;
 			}
 
 			try {
-				InputStream inputStream = null;
-				InputStream sampleInputStream = null; // same as inputStream but used for getSampleSize
+				File coverFile = null;
+				Uri coverUri = null;
+				int coverSource = MediaLibrary.COVER_SOURCE_UNKNOWN;
 
 				if ((CoverCache.mCoverLoadMode & CoverCache.COVER_MODE_VANILLA) != 0) {
-					final File baseFile  = new File(song.path);  // File object of queried song
-					String bestMatchPath = null;                 // The best cover-path we found
-					int bestMatchIndex   = COVER_MATCHES.length; // The best cover-index/priority found
-					int loopCount        = 0;                    // Directory items loop counter
-
-					// Only start search if the base directory of this file is NOT the public
-					// downloads folder: Picking files from there would lead to a false positive
-					// in most cases
-					if (baseFile.getParentFile().equals(sDownloadsDir) == false) {
-						for (final File entry : baseFile.getParentFile().listFiles()) {
-							for (int i=0; i < bestMatchIndex ; i++) {
-								// We are checking each file entry to see if it matches a known
-								// cover pattern. We abort on first hit as the Pattern array is sorted from good->meh
-								if (COVER_MATCHES[i].matcher(entry.toString()).matches()) {
-									bestMatchIndex = i;
-									bestMatchPath = entry.toString();
-									break;
-								}
-							}
-							// Stop loop if we found the best match or if we looped 150 times
-							if (loopCount++ > 150 || bestMatchIndex == 0)
-								break;
-						}
-					}
+					// The scanner already searched the directory of this album, so
+					// this usually is a single indexed lookup.
+					MediaLibrary.AlbumCover albumCover = MediaLibrary.getAlbumCover(mContext, song.albumId, new File(song.path));
+					coverSource = albumCover.source;
 
-					if (bestMatchPath != null) {
-						final File guessedFile = new File(bestMatchPath);
+					if (albumCover.path != null) {
+						final File guessedFile = new File(albumCover.path);
 						if (guessedFile.exists() && !guessedFile.isDirectory()) {
-							inputStream = new FileInputStream(guessedFile);
-							sampleInputStream = new FileInputStream(guessedFile);
+							coverFile = guessedFile;
 						}
 					}
 				}
 
-				if (inputStream == null && (CoverCache.mCoverLoadMode & CoverCache.COVER_MODE_SHADOW) != 0) {
+				if (coverFile == null && (CoverCache.mCoverLoadMode & CoverCache.COVER_MODE_SHADOW) != 0) {
 					String shadowPath = "/sdcard/Music/.vanilla/"+(song.artist.replaceAll("/", "_"))+"/"+(song.album.replaceAll("/", "_"))+".jpg";
 
 					File guessedFile = new File(shadowPath);
 					if (guessedFile.exists() && !guessedFile.isDirectory()) {
-						inputStream = new FileInputStream(guessedFile);
-						sampleInputStream = new FileInputStream(guessedFile);
+						coverFile = guessedFile;
 					}
 				}
 
-				if (inputStream == null && (CoverCache.mCoverLoadMode & CoverCache.COVER_MODE_ANDROID) != 0) {
-					ContentResolver res = mContext.getContentResolver();
+				// Android only knows about embedded pictures: skip its queries if the scanner found none
+				if (coverFile == null && (CoverCache.mCoverLoadMode & CoverCache.COVER_MODE_ANDROID) != 0 && coverSource != MediaLibrary.COVER_SOURCE_NONE) {
 					long[] androidIds = MediaUtils.getAndroidMediaIds(mContext, song);
 					long albumId = androidIds[1];
 
 					if (albumId != -1) {
 						// now we can query for the album art path if we found an album id
-						Uri uri =  Uri.parse("content://media/external/audio/albumart/"+albumId);
-						sampleInputStream = res.openInputStream(uri);
-						if (sampleInputStream != null) // cache misses are VERY expensive here, so we check if the first open worked
-							inputStream = res.openInputStream(uri);
+						coverUri = Uri.parse("content://media/external/audio/albumart/"+albumId);
 					}
 				}
 
-				if (inputStream != null) {
-					BitmapFactory.Options bopts = new BitmapFactory.Options();
-					bopts.inPreferredConfig  = Bitmap.Config.RGB_565;
-					bopts.inJustDecodeBounds = true;
-
-					final int inSampleSize   = getSampleSize(sampleInputStream, bopts, maxPxCount);
-					/* reuse bopts: we are now REALLY going to decode the image */
-					bopts.inJustDecodeBounds = false;
-					bopts.inSampleSize       = inSampleSize;
-					Bitmap bitmap = BitmapFactory.decodeStream(inputStream, null, bopts);
-					sampleInputStream.close();
-					inputStream.close();
-					return bitmap;
+				// cache misses are VERY expensive for content uris, so we only open the source once
+				InputStream source = openSource(coverFile, coverUri);
+				if (source != null) {
+					BufferedInputStream inputStream = new BufferedInputStream(source, SOURCE_BUFFER_SIZE);
+					try {
+						BitmapFactory.Options bopts = new BitmapFactory.Options();
+						bopts.inPreferredConfig  = Bitmap.Config.RGB_565;
+						bopts.inJustDecodeBounds = true;
+
+						inputStream.mark(SOURCE_MARK_LIMIT);
+						final int inSampleSize   = getSampleSize(inputStream, bopts, maxPxCount);
+						try {
+							inputStream.reset();
+						} catch (IOException e) {
+							// the decoder read past the mark: start over
+							inputStream.close();
+							inputStream = new BufferedInputStream(openSource(coverFile, coverUri), SOURCE_BUFFER_SIZE);
+						}
+						/* reuse bopts: we are now REALLY going to decode the image */
+						bopts.inJustDecodeBounds = false;
+						bopts.inSampleSize       = inSampleSize;
+						setPooledBitmap(bopts, size);
+						try {
+							return BitmapFactory.decodeStream(inputStream, null, bopts);
+						} catch (IllegalArgumentException e) {
+							if (bopts.inBitmap == null)
+								throw e;
+							// the pooled bitmap was not suitable after all: decode into a new one
+							sBitmapPool.put(size, bopts.inBitmap);
+							bopts.inBitmap = null;
+							inputStream.close();
+							inputStream = new BufferedInputStream(openSource(coverFile, coverUri), SOURCE_BUFFER_SIZE);
+							return BitmapFactory.decodeStream(inputStream, null, bopts);
+						}
+					} finally {
+						inputStream.close();
+					}
 				}
 			} catch (Exception e) {
 				// no cover art found
@@ -480,6 +1188,21 @@ public class CoverCache {
 			return null;
 		}
 
+		/**
+		 * Opens the artwork found by createBitmap()
+		 *
+		 * @param file the file to open, may be null
+		 * @param uri the content uri to open if file is null, may be null
+		 * @return a new stream, null if neither file nor uri was given
+		 */
+		private InputStream openSource(File file, Uri uri) throws IOException {
+			if (file != null)
+				return new FileInputStream(file);
+			if (uri != null)
+				return mContext.getContentResolver().openInputStream(uri);
+			return null;
+		}
+
 		/**
 		 * Guess a good sampleSize value for given inputStream
 		 *
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.vanilla;
+
+import android.os.SystemClock;
+
+/**
+ * Warms the covers of rows which are about to scroll into view.
+ *
+ * The scroll direction and speed are guessed from the order in which an
+ * adapter binds its rows: a fast fling binds many rows per second, so
+ * we look further ahead than for a slow drag.
+ */
+public class CoverPrefetcher {
+	/**
+	 * Implemented by adapters which can prefetch the cover of a row
+	 */
+	public interface Client {
+		/**
+		 * Queue the cover of the given row using LazyCoverView.prefetchCover()
+		 *
+		 * @param position the row to prefetch
+		 * @return false if the row is not available yet and should be retried later
+		 */
+		boolean prefetchCover(int position);
+	}
+
+	/**
+	 * Minimum number of rows to look ahead
+	 */
+	private static final int MIN_LOOKAHEAD = 4;
+	/**
+	 * Maximum number of rows to look ahead
+	 */
+	private static final int MAX_LOOKAHEAD = 24;
+	/**
+	 * For how long (in ms) we try to stay ahead of the list
+	 */
+	private static final long LOOKAHEAD_TIME = 500;
+	/**
+	 * Binds further apart than this are treated as a jump, not as scrolling
+	 */
+	private static final int MAX_STEP = 3;
+	/**
+	 * The adapter we are prefetching for
+	 */
+	private final Client mClient;
+	/**
+	 * Position of the last bound row, -1 if unknown
+	 */
+	private int mLastPosition = -1;
+	/**
+	 * Time of the last bind, as returned by SystemClock.uptimeMillis()
+	 */
+	private long mLastTime;
+	/**
+	 * Current scroll direction: 1 for down, -1 for up, 0 if unknown
+	 */
+	private int mDirection;
+	/**
+	 * Smoothed scroll speed in rows per second
+	 */
+	private float mSpeed;
+	/**
+	 * The farthest row we already prefetched in the current direction
+	 */
+	private int mPrefetchedEdge;
+
+	/**
+	 * Creates a new prefetcher
+	 *
+	 * @param client the adapter to call back into
+	 */
+	public CoverPrefetcher(Client client) {
+		mClient = client;
+	}
+
+	/**
+	 * Forgets the current scroll state, eg. because the adapter
+	 * got a new cursor. Queued prefetches are dropped.
+	 */
+	public void reset() {
+		if (mDirection != 0)
+			LazyCoverView.cancelPrefetches();
+		mLastPosition = -1;
+		mDirection = 0;
+		mSpeed = 0;
+	}
+
+	/**
+	 * Must be called by the adapter each time it binds a row
+	 *
+	 * @param position the row which was bound
+	 * @param count the number of rows in the adapter
+	 */
+	public void onBind(int position, int count) {
+		final long now = SystemClock.uptimeMillis();
+		final int step = position - mLastPosition;
+
+		if (mLastPosition == -1 || step == 0 || Math.abs(step) > MAX_STEP) {
+			// first bind, a rebind of the same row or a jump: nothing to learn from this
+			if (mLastPosition != -1 && step != 0)
+				reset();
+			mLastPosition = position;
+			mLastTime = now;
+			return;
+		}
+
+		final int direction = (step > 0 ? 1 : -1);
+		if (direction != mDirection) {
+			if (mDirection != 0)
+				LazyCoverView.cancelPrefetches(); // rows behind us are no longer interesting
+			mDirection = direction;
+			mSpeed = 0;
+			mPrefetchedEdge = position;
+		}
+
+		final long elapsed = Math.max(1, now - mLastTime);
+		final float speed = Math.abs(step) * 1000f / elapsed;
+		mSpeed = (mSpeed == 0 ? speed : (mSpeed * 3 + speed) / 4);
+		mLastPosition = position;
+		mLastTime = now;
+
+		int lookahead = (int)(mSpeed * LOOKAHEAD_TIME / 1000);
+		lookahead = Math.max(MIN_LOOKAHEAD, Math.min(MAX_LOOKAHEAD, lookahead));
+
+		final int target = Math.max(0, Math.min(count - 1, position + direction * lookahead));
+		// Rows up to the edge were queued before and are still queued or cached.
+		int next = (direction > 0 ? Math.max(mPrefetchedEdge, position) : Math.min(mPrefetchedEdge, position)) + direction;
+		while (direction * (target - next) >= 0) {
+			if (!mClient.prefetchCover(next))
+				break; // row not loaded yet, try again on the next bind
+			next += direction;
+		}
+		mPrefetchedEdge = next - direction;
+	}
+}
@@ -23,8 +23,11 @@
 
 package ch.blinkenlights.android.vanilla;
 
+import ch.blinkenlights.android.medialibrary.MediaLibrary;
+
 import android.content.Context;
 import android.content.Intent;
+import android.database.Cursor;
 import android.graphics.drawable.Drawable;
 import android.os.FileObserver;
 import android.util.Log;
@@ -36,10 +39,10 @@ import android.view.ViewGroup;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.regex.Pattern;
 
 /**
@@ -203,7 +206,13 @@ public class FileSystemAdapter
 		if (readdir == null)
 			readdir = new File[]{};
 
-		ArrayList<File> files = new ArrayList<File>(Arrays.asList(readdir));
+		// Folders known to the media library do not need to be checked on disk,
+		// everything else is checked exactly once instead of on every compare.
+		HashSet<String> indexed = getIndexedDirectories(file);
+		ArrayList<File> files = new ArrayList<File>(readdir.length + 1);
+		for (File entry : readdir) {
+			files.add(new CachedFile(entry, indexed.contains(entry.getName()) || entry.isDirectory()));
+		}
 		Collections.sort(files, mFileComparator);
 		if (!mFsRoot.equals(file))
 			files.add(0, new File(file, NAME_PARENT_FOLDER));
@@ -328,6 +337,24 @@ public class FileSystemAdapter
 		return mLimiter == null ? new File("/") : (File)mLimiter.data;
 	}
 
+	/**
+	 * Returns the names of all folders in given directory which
+	 * contain songs of the media library
+	 *
+	 * @param dir the directory to list
+	 * @return the names of the indexed child folders
+	 */
+	private HashSet<String> getIndexedDirectories(File dir) {
+		HashSet<String> names = new HashSet<String>();
+		String selection = MediaLibrary.DirectoryColumns.PARENT_ID+"="+MediaLibrary.getDirectoryId(dir.getAbsolutePath());
+		Cursor cursor = MediaLibrary.queryLibrary(mActivity, MediaLibrary.TABLE_DIRECTORIES, new String[]{ MediaLibrary.DirectoryColumns.NAME }, selection, null, null);
+		while (cursor.moveToNext()) {
+			names.add(cursor.getString(0));
+		}
+		cursor.close();
+		return names;
+	}
+
 	/**
 	 * Returns true if the filename of 'file' indicates that
 	 * it points to '..'
@@ -366,7 +393,7 @@ public class FileSystemAdapter
 	@Override
 	public Limiter buildLimiter(long id)
 	{
-		return buildLimiter(mFiles[(int)id]);
+		return buildLimiter(new File(mFiles[(int)id].getPath()));
 	}
 
 	@Override
@@ -375,6 +402,40 @@ public class FileSystemAdapter
 		return MediaUtils.TYPE_FILE;
 	}
 
+	/**
+	 * A file which caches the results of stat(), so sorting
+	 * and drawing rows does not hit the disk over and over again.
+	 */
+	private static class CachedFile extends File {
+		private final boolean mIsDirectory;
+		private long mLength = -1;
+		private long mLastModified = -1;
+
+		CachedFile(File file, boolean isDirectory) {
+			super(file.getPath());
+			mIsDirectory = isDirectory;
+		}
+
+		@Override
+		public boolean isDirectory() {
+			return mIsDirectory;
+		}
+
+		@Override
+		public long length() {
+			if (mLength == -1)
+				mLength = super.length();
+			return mLength;
+		}
+
+		@Override
+		public long lastModified() {
+			if (mLastModified == -1)
+				mLastModified = super.lastModified();
+			return mLastModified;
+		}
+	}
+
 	/**
 	 * FileObserver that reloads the files in this adapter.
 	 */
@@ -17,7 +17,6 @@
 
 package ch.blinkenlights.android.vanilla;
 
-import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -25,12 +24,17 @@ import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Message;
+import android.os.Process;
 import android.util.AttributeSet;
-import android.util.LruCache;
 import android.widget.ImageView;
 
+import java.util.Iterator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 /**
  * LazyCoverView implements a 'song-aware' ImageView
  *
@@ -44,47 +48,88 @@ public class LazyCoverView extends ImageView
 	implements Handler.Callback 
 {
 	/**
-	 * Context of constructor
+	 * Application context, used by the worker threads
 	 */
-	private Context mContext;
+	private static Context sContext;
 	/**
 	 * UI Thread handler
 	 */
 	private static Handler sUiHandler;
 	/**
-	 * Worker thread handler
+	 * Pending cover requests, ordered by CoverMsg.compareTo()
+	 */
+	private static PriorityBlockingQueue<Runnable> sQueue;
+	/**
+	 * Worker threads creating covers
+	 */
+	private static ThreadPoolExecutor sExecutor;
+	/**
+	 * Number of worker threads
+	 */
+	private static final int WORKER_THREADS = 2;
+	/**
+	 * Sequence number of the last queued request
 	 */
-	private static Handler sHandler;
+	private static long sSequence;
 	/**
 	 * The fallback cover image resource encoded as bitmap
 	 */
 	private static Bitmap sFallbackBitmap;
 	/**
-	 * Our private LRU cache
+	 * The shared cover cache, we only use its in-memory tier directly
 	 */
-	private static BitmapLruCache sBitmapLruCache;
+	private static CoverCache sCoverCache;
 	/**
 	 * The cover key we are expected to draw
 	 */
 	private CoverCache.CoverKey mExpectedKey;
 
 	/**
-	 * Cover message we are passing around using mHandler
+	 * Cover request we are passing to the workers and back to sUiHandler.
+	 * Requests for visible views are always run before prefetches, the
+	 * most recent visible request first.
 	 */
-	private static class CoverMsg {
+	private static class CoverMsg implements Runnable, Comparable<CoverMsg> {
 		public CoverCache.CoverKey key; // A cache key identifying this RPC
-		public LazyCoverView view;      // The view we are updating
+		public LazyCoverView view;      // The view we are updating, null for prefetches
 		public String title;            // The title of this view, used for Initial-Covers
+		public long sequence;           // Order in which requests were queued
 		CoverMsg(CoverCache.CoverKey key, LazyCoverView view, String title) {
 			this.key = key;
 			this.view = view;
 			this.title = title;
+			this.sequence = ++sSequence;
 		}
 		/**
 		 * Returns true if the view still requires updating
 		 */
 		public boolean isRecent() {
-			return this.key.equals(this.view.mExpectedKey);
+			return this.view == null || this.key.equals(this.view.mExpectedKey);
+		}
+		/**
+		 * Returns true if this request only warms the cache
+		 */
+		public boolean isPrefetch() {
+			return this.view == null;
+		}
+		@Override
+		public int compareTo(CoverMsg other) {
+			if (isPrefetch() != other.isPrefetch())
+				return isPrefetch() ? 1 : -1;
+			if (isPrefetch())
+				return Long.compare(sequence, other.sequence); // in order of distance
+			return Long.compare(other.sequence, sequence); // rows bound last are on screen
+		}
+		@Override
+		public void run() {
+			if (!isRecent())
+				return; // view was re-bound to something else: nobody is waiting for this
+
+			Bitmap bitmap = sCoverCache.getCachedCover(key, sFallbackBitmap);
+			if (bitmap == null)
+				createCover(this);
+			if (!isPrefetch())
+				sUiHandler.sendMessage(sUiHandler.obtainMessage(MSG_DRAW_COVER, this));
 		}
 	}
 
@@ -96,12 +141,11 @@ public class LazyCoverView extends ImageView
 	 */
 	public LazyCoverView(Context context, AttributeSet attributes) {
 		super(context, attributes);
-		mContext = context;
-		if (sBitmapLruCache == null) {
-			ActivityManager am = (ActivityManager)context.getSystemService(context.ACTIVITY_SERVICE);
-			int lruSize = am.getMemoryClass() / 10; // use ~10% for LRU
-			lruSize = lruSize < 2 ? 2 : lruSize; // LRU will always be at least 2MiB
-			sBitmapLruCache = new BitmapLruCache(lruSize*1024*1024);
+		if (sContext == null) {
+			sContext = context.getApplicationContext();
+		}
+		if (sCoverCache == null) {
+			sCoverCache = new CoverCache(context.getApplicationContext());
 		}
 		if (sFallbackBitmap == null) {
 			sFallbackBitmap = BitmapFactory.decodeResource(getResources(), R.drawable.fallback_cover);
@@ -109,17 +153,26 @@ public class LazyCoverView extends ImageView
 		if (sUiHandler == null) {
 			sUiHandler = new Handler(this);
 		}
-		if (sHandler == null) {
-			HandlerThread thread = new HandlerThread("LazyCoverRpc");
-			thread.start();
-			sHandler = new Handler(thread.getLooper(), this);
+		if (sExecutor == null) {
+			sQueue = new PriorityBlockingQueue<>();
+			sExecutor = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 0, TimeUnit.SECONDS, sQueue, new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					return new Thread(new Runnable() {
+						@Override
+						public void run() {
+							Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+							r.run();
+						}
+					}, "LazyCoverRpc");
+				}
+			});
 		}
 	}
 
 	/**
-	 * mHandler and mUiHandler callbacks
+	 * mUiHandler callbacks
 	 */
-	private static final int MSG_CREATE_COVER = 61;
 	private static final int MSG_DRAW_COVER   = 62;
 
 	@Override
@@ -131,29 +184,6 @@ public class LazyCoverView extends ImageView
 		}
 
 		switch (message.what) {
-			case MSG_CREATE_COVER: {
-				// This message was sent due to a cache miss, but the cover might got cached in the meantime
-				Bitmap bitmap = sBitmapLruCache.get(payload.key);
-				if (bitmap == null) {
-					if (payload.key.mediaType == MediaUtils.TYPE_ALBUM) {
-						// We only display real covers for queries using the album id as key
-						Song song = MediaUtils.getSongByTypeId(mContext, payload.key.mediaType, payload.key.mediaId);
-						if (song != null) {
-							bitmap = song.getSmallCover(mContext);
-						}
-					} else {
-						bitmap = CoverBitmap.generatePlaceholderCover(mContext, CoverCache.SIZE_SMALL, CoverCache.SIZE_SMALL, payload.title);
-					}
-					if (bitmap == null) {
-						// item has no cover: return a failback
-						bitmap = sFallbackBitmap;
-					}
-				}
-				// bitmap is non null: store in LRU cache and draw it
-				sBitmapLruCache.put(payload.key, bitmap);
-				sUiHandler.sendMessage(sUiHandler.obtainMessage(MSG_DRAW_COVER, payload));
-				break;
-			}
 			case MSG_DRAW_COVER: {
 				// draw the cover into view. must be called from ui thread handler
 				payload.view.drawFromCache(payload.key, true);
@@ -165,6 +195,60 @@ public class LazyCoverView extends ImageView
 		return true;
 	}
 
+	/**
+	 * Creates the cover of a request and stores it in the shared cache.
+	 * Called from a worker thread.
+	 *
+	 * @param payload the request to handle
+	 */
+	private static void createCover(CoverMsg payload) {
+		Bitmap bitmap = null;
+		if (payload.key.mediaType == MediaUtils.TYPE_ALBUM) {
+			// We only display real covers for queries using the album id as key.
+			// getSmallCover() also stores the result in the shared cache.
+			Song song = MediaUtils.getSongByTypeId(sContext, payload.key.mediaType, payload.key.mediaId);
+			if (song != null) {
+				bitmap = song.getSmallCover(sContext);
+			}
+		} else {
+			bitmap = CoverBitmap.generatePlaceholderCover(sContext, CoverCache.SIZE_SMALL, CoverCache.SIZE_SMALL, payload.title);
+		}
+		// a null bitmap marks the item as having no cover
+		sCoverCache.putCachedCover(payload.key, bitmap);
+	}
+
+	/**
+	 * Loads a cover into the cache without drawing it, used for rows
+	 * which are about to become visible. Must be called from an UI thread.
+	 *
+	 * @param type The Media type
+	 * @param id The id of this media type to query
+	 * @param title The title, used for placeholder covers
+	 */
+	public static void prefetchCover(int type, long id, String title) {
+		if (sExecutor == null)
+			return; // no view was created yet
+
+		CoverCache.CoverKey key = new CoverCache.CoverKey(type, id, CoverCache.SIZE_SMALL);
+		if (sCoverCache.getCachedCover(key, sFallbackBitmap) == null)
+			sExecutor.execute(new CoverMsg(key, null, title));
+	}
+
+	/**
+	 * Drops all queued prefetches, eg. because the list changed
+	 * its scroll direction. Must be called from an UI thread.
+	 */
+	public static void cancelPrefetches() {
+		if (sQueue == null)
+			return;
+
+		Iterator<Runnable> iter = sQueue.iterator();
+		while (iter.hasNext()) {
+			if (((CoverMsg)iter.next()).isPrefetch())
+				iter.remove();
+		}
+	}
+
 	/**
 	 * Attempts to set the image of this cover
 	 * Must be called from an UI thread
@@ -175,8 +259,7 @@ public class LazyCoverView extends ImageView
 	public void setCover(int type, long id, String title) {
 		mExpectedKey = new CoverCache.CoverKey(type, id, CoverCache.SIZE_SMALL);
 		if (drawFromCache(mExpectedKey, false) == false) {
-			CoverMsg payload = new CoverMsg(mExpectedKey, this, title);
-			sHandler.sendMessage(sHandler.obtainMessage(MSG_CREATE_COVER, payload));
+			sExecutor.execute(new CoverMsg(mExpectedKey, this, title));
 		}
 	}
 
@@ -188,7 +271,7 @@ public class LazyCoverView extends ImageView
 	 */
 	public boolean drawFromCache(CoverCache.CoverKey key, boolean fadeIn) {
 		boolean cacheHit = true;
-		Bitmap bitmap = sBitmapLruCache.get(key);
+		Bitmap bitmap = sCoverCache.getCachedCover(key, sFallbackBitmap);
 		if (bitmap == null) {
 			cacheHit = false;
 		}
@@ -207,30 +290,4 @@ public class LazyCoverView extends ImageView
 		return cacheHit;
 	}
 
-	/**
-	* A LRU cache implementation, using the CoverKey as key to store Bitmap objects
-	*
-	* Note that the implementation does not override create() in order to enable
-	* the use of fetch-if-cached functions: createBitmap() is therefore called
-	* by CoverCache itself.
-	*/
-	private static class BitmapLruCache extends LruCache<CoverCache.CoverKey, Bitmap> {
-		/**
-		 * Creates a new in-memory LRU cache
-		 *
-		 * @param size the lru cache size in bytes
-		 */
-		public BitmapLruCache(int size) {
-			super(size);
-		}
-
-		/**
-		 * Returns the cache size in bytes, not objects
-		 */
-		@Override
-		protected int sizeOf(CoverCache.CoverKey key, Bitmap value) {
-			return value.getByteCount();
-		}
-	}
-
 }
@@ -250,7 +250,7 @@ public class LibraryActivity
 			limiter = FileSystemAdapter.buildLimiter(new File(folder));
 		} else if (type != -1 && id != -1) {
 			MediaAdapter adapter = new MediaAdapter(this, type, null, null);
-			adapter.commitQuery(adapter.query());
+			adapter.commitQuery(adapter.queryAll());
 			limiter = adapter.buildLimiter(id);
 		}
 
@@ -880,10 +880,10 @@ public class LibraryActivity
 	}
 
 	@Override
-	public void onMediaChange()
+	public void onMediaChange(MediaLibrary.ChangeSet changes)
 	{
 		if (mPagerAdapter != null)
-			mPagerAdapter.invalidateData();
+			mPagerAdapter.invalidateData(changes);
 	}
 
 	@Override
@@ -23,9 +23,12 @@
 
 package ch.blinkenlights.android.vanilla;
 
+import ch.blinkenlights.android.medialibrary.MediaLibrary;
+
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.ContentObserver;
+import android.database.DataSetObserver;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
@@ -93,6 +96,11 @@ public class LibraryPagerAdapter
 	 * The adapters. Each index corresponds to that adapter's MediaUtils id.
 	 */
 	public LibraryAdapter[] mAdapters = new LibraryAdapter[MAX_ADAPTER_COUNT];
+	/**
+	 * Observers waiting to restore the scrolling position of each adapter,
+	 * see {@link #restorePosition(int, int)}.
+	 */
+	private final DataSetObserver[] mPendingRestores = new DataSetObserver[MAX_ADAPTER_COUNT];
 	/**
 	 * Whether the adapter corresponding to each index has stale data.
 	 */
@@ -676,12 +684,13 @@ public class LibraryPagerAdapter
 		}
 		case MSG_COMMIT_QUERY: {
 			int index = message.arg1;
+			cancelRestorePosition(index);
 			mAdapters[index].commitQuery(message.obj);
 
 			// Restore scrolling position if present and valid
 			Integer curPos = sLruAdapterPos.popPosition(mAdapters[index]);
-			if (curPos != null && curPos < mLists[index].getCount())
-				mLists[index].setSelection(curPos);
+			if (curPos != null)
+				restorePosition(index, curPos);
 
 			break;
 		}
@@ -760,17 +769,122 @@ public class LibraryPagerAdapter
 	}
 
 	/**
-	 * Invalidate the data for all adapters.
+	 * Scrolls the list at the given index to position. The count of a freshly
+	 * committed adapter may still be an estimate, so we wait for it to grow
+	 * if the position is not valid yet.
+	 *
+	 * @param index the index of the list and its adapter
+	 * @param position the position to scroll to
+	 */
+	private void restorePosition(final int index, final int position)
+	{
+		final LibraryAdapter adapter = mAdapters[index];
+		if (position < adapter.getCount()) {
+			mLists[index].setSelection(position);
+			return;
+		}
+
+		DataSetObserver observer = new DataSetObserver() {
+			@Override
+			public void onChanged() {
+				if (position < adapter.getCount()) {
+					cancelRestorePosition(index);
+					mLists[index].setSelection(position);
+				}
+			}
+		};
+		adapter.registerDataSetObserver(observer);
+		mPendingRestores[index] = observer;
+	}
+
+	/**
+	 * Stops waiting to restore the scrolling position of the list
+	 * at the given index.
+	 *
+	 * @param index the index of the list and its adapter
+	 */
+	private void cancelRestorePosition(int index)
+	{
+		DataSetObserver observer = mPendingRestores[index];
+		if (observer != null) {
+			mAdapters[index].unregisterDataSetObserver(observer);
+			mPendingRestores[index] = null;
+		}
+	}
+
+	/**
+	 * Invalidate the data for all adapters which display data
+	 * affected by given changes.
+	 *
+	 * @param changes describes what was changed in the library
 	 */
-	public void invalidateData()
+	public void invalidateData(MediaLibrary.ChangeSet changes)
 	{
 		for (LibraryAdapter adapter : mAdapters) {
-			if (adapter != null) {
+			if (adapter != null && isAffected(adapter, changes)) {
 				postRequestRequery(adapter);
 			}
 		}
 	}
 
+	/**
+	 * Returns true if the adapter (or its limiter) displays data of any table
+	 * touched by the given changes.
+	 *
+	 * @param adapter the adapter to check
+	 * @param changes the library changes
+	 */
+	private static boolean isAffected(LibraryAdapter adapter, MediaLibrary.ChangeSet changes)
+	{
+		for (String table : getSourceTables(adapter.getMediaType())) {
+			if (changes.affects(table))
+				return true;
+		}
+
+		Limiter limiter = adapter.getLimiter();
+		if (limiter != null) {
+			// limited views are joined through the songs table
+			if (changes.affects(MediaLibrary.TABLE_SONGS))
+				return true;
+			if (limiter.type == MediaUtils.TYPE_GENRE && changes.affects(MediaLibrary.TABLE_GENRES_SONGS))
+				return true;
+			for (String table : getSourceTables(limiter.type)) {
+				if (changes.affects(table))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the tables read by a list of the given media type
+	 *
+	 * @param type one of MediaUtils.TYPE_*
+	 * @return an array of MediaLibrary.TABLE_* names
+	 */
+	private static String[] getSourceTables(int type)
+	{
+		switch (type) {
+		case MediaUtils.TYPE_ARTIST:
+		case MediaUtils.TYPE_ALBARTIST:
+		case MediaUtils.TYPE_COMPOSER:
+			return new String[] { MediaLibrary.TABLE_CONTRIBUTORS, MediaLibrary.TABLE_CONTRIBUTORS_SONGS };
+		case MediaUtils.TYPE_ALBUM:
+			return new String[] { MediaLibrary.TABLE_ALBUMS, MediaLibrary.TABLE_CONTRIBUTORS };
+		case MediaUtils.TYPE_SONG:
+			return new String[] { MediaLibrary.TABLE_SONGS, MediaLibrary.TABLE_ALBUMS, MediaLibrary.TABLE_CONTRIBUTORS, MediaLibrary.TABLE_CONTRIBUTORS_SONGS };
+		case MediaUtils.TYPE_PLAYLIST:
+			return new String[] { MediaLibrary.TABLE_PLAYLISTS };
+		case MediaUtils.TYPE_GENRE:
+			return new String[] { MediaLibrary.TABLE_GENRES };
+		case MediaUtils.TYPE_FILE:
+			// the file browser does not use the library, but new files likely showed up
+			return new String[] { MediaLibrary.TABLE_SONGS };
+		default:
+			return new String[0];
+		}
+	}
+
 	/**
 	 * Set the saved sort mode for the given adapter. The adapter should
 	 * be re-queried after calling this.
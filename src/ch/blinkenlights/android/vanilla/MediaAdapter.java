@@ -24,12 +24,18 @@
 package ch.blinkenlights.android.vanilla;
 
 import ch.blinkenlights.android.medialibrary.MediaLibrary;
+import ch.blinkenlights.android.medialibrary.PaginatedCursor;
 
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
+import android.database.CursorWrapper;
+import android.database.DataSetObserver;
 import android.graphics.Color;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
 import android.provider.BaseColumns;
 import android.provider.MediaStore;
 import android.text.Spannable;
@@ -65,6 +71,7 @@ public class MediaAdapter
 		implements LibraryAdapter
 		, View.OnClickListener
 		, SectionIndexer
+		, CoverPrefetcher.Client
 {
 	private static final Pattern SPACE_SPLIT = Pattern.compile("\\s+");
 	/**
@@ -104,10 +111,10 @@ public class MediaAdapter
 	 */
 	private String[] mFields;
 	/**
-	 * The collation keys corresponding to each field. If provided, these are
-	 * used to speed up sorting and filtering.
+	 * The columns holding the search keys of mFields, null if
+	 * mFields must be searched directly.
 	 */
-	private String[] mFieldKeys;
+	private String[] mSearchFields;
 	/**
 	 * The columns to query from the content provider.
 	 */
@@ -137,9 +144,34 @@ public class MediaAdapter
 	 */
 	private int mCoverCacheType;
 	/**
-	 * Alphabet to be used for {@link SectionIndexer}. Populated in {@link #buildAlphabet()}.
+	 * Warms the covers of rows which are about to become visible
+	 */
+	private final CoverPrefetcher mCoverPrefetcher = new CoverPrefetcher(this);
+	/**
+	 * Alphabet to be used for {@link SectionIndexer}. Populated in {@link #buildAlphabet(SectionedCursor)}.
 	 */
 	private List<SectionIndex> mAlphabet = new ArrayList<>(512);
+	/**
+	 * True if we already asked for a new cursor as the current one went stale
+	 */
+	private boolean mRequeryRequested;
+	/**
+	 * Handler of the thread building the alphabets of all adapters
+	 */
+	private static Handler sAlphabetHandler;
+	/**
+	 * Handler of the UI thread, used to publish new alphabets
+	 */
+	private static Handler sUiHandler;
+	/**
+	 * Updates the list if the current cursor changes its count
+	 */
+	private final DataSetObserver mCursorObserver = new DataSetObserver() {
+		@Override
+		public void onChanged() {
+			notifyDataSetChanged();
+		}
+	};
 
 	/**
 	 * Construct a MediaAdapter representing the given <code>type</code> of
@@ -174,28 +206,28 @@ public class MediaAdapter
 		case MediaUtils.TYPE_ARTIST:
 			mSource = MediaLibrary.VIEW_ARTISTS;
 			mFields = new String[] { MediaLibrary.ContributorColumns.ARTIST };
-			mFieldKeys = new String[] { MediaLibrary.ContributorColumns.ARTIST_SORT };
+			mSearchFields = new String[] { MediaLibrary.ContributorColumns.ARTIST_SEARCH };
 			mSortEntries = new int[] { R.string.title, R.string.date_added };
 			mAdapterSortValues = new String[] { MediaLibrary.ContributorColumns.ARTIST_SORT+" %1$s", MediaLibrary.ContributorColumns.MTIME+" %1$s" };
 			break;
 		case MediaUtils.TYPE_ALBARTIST:
 			mSource = MediaLibrary.VIEW_ALBUMARTISTS;
 			mFields = new String[] { MediaLibrary.ContributorColumns.ALBUMARTIST };
-			mFieldKeys = new String[] { MediaLibrary.ContributorColumns.ALBUMARTIST_SORT };
+			mSearchFields = new String[] { MediaLibrary.ContributorColumns.ALBUMARTIST_SEARCH };
 			mSortEntries = new int[] { R.string.title, R.string.date_added };
 			mAdapterSortValues = new String[] { MediaLibrary.ContributorColumns.ALBUMARTIST_SORT+" %1$s", MediaLibrary.ContributorColumns.MTIME+" %1$s" };
 			break;
 		case MediaUtils.TYPE_COMPOSER:
 			mSource = MediaLibrary.VIEW_COMPOSERS;
 			mFields = new String[] { MediaLibrary.ContributorColumns.COMPOSER };
-			mFieldKeys = new String[] { MediaLibrary.ContributorColumns.COMPOSER_SORT };
+			mSearchFields = new String[] { MediaLibrary.ContributorColumns.COMPOSER_SEARCH };
 			mSortEntries = new int[] { R.string.title, R.string.date_added };
 			mAdapterSortValues = new String[] { MediaLibrary.ContributorColumns.COMPOSER_SORT+" %1$s", MediaLibrary.ContributorColumns.MTIME+" %1$s" };
 			break;
 		case MediaUtils.TYPE_ALBUM:
 			mSource = MediaLibrary.VIEW_ALBUMS_ARTISTS;
 			mFields = new String[] { MediaLibrary.AlbumColumns.ALBUM, MediaLibrary.ContributorColumns.ARTIST };
-			mFieldKeys = new String[] { MediaLibrary.AlbumColumns.ALBUM_SORT, MediaLibrary.ContributorColumns.ARTIST_SORT };
+			mSearchFields = new String[] { MediaLibrary.AlbumColumns.ALBUM_SEARCH, MediaLibrary.ContributorColumns.ARTIST_SEARCH };
 			mSortEntries = new int[] { R.string.title, R.string.artist_album, R.string.year, R.string.date_added };
 			mAdapterSortValues = new String[] { MediaLibrary.AlbumColumns.ALBUM_SORT+" %1$s", MediaLibrary.ContributorColumns.ARTIST_SORT+" %1$s,"+MediaLibrary.AlbumColumns.ALBUM_SORT+" %1$s",
 			                                    MediaLibrary.AlbumColumns.PRIMARY_ALBUM_YEAR+" %1$s", MediaLibrary.AlbumColumns.MTIME+" %1$s" };
@@ -203,7 +235,7 @@ public class MediaAdapter
 		case MediaUtils.TYPE_SONG:
 			mSource = MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS;
 			mFields = new String[] { MediaLibrary.SongColumns.TITLE, MediaLibrary.AlbumColumns.ALBUM, MediaLibrary.ContributorColumns.ARTIST };
-			mFieldKeys = new String[] { MediaLibrary.SongColumns.TITLE_SORT, MediaLibrary.AlbumColumns.ALBUM_SORT, MediaLibrary.ContributorColumns.ARTIST_SORT };
+			mSearchFields = new String[] { MediaLibrary.SongColumns.TITLE_SEARCH, MediaLibrary.AlbumColumns.ALBUM_SEARCH, MediaLibrary.ContributorColumns.ARTIST_SEARCH };
 			mSortEntries = new int[] { R.string.title, R.string.artist_album_track, R.string.artist_album_title, R.string.album_track, R.string.year, R.string.date_added, R.string.song_playcount };
 			mAdapterSortValues = new String[] { MediaLibrary.SongColumns.TITLE_SORT+" %1$s",
 			                                    MediaLibrary.ContributorColumns.ARTIST_SORT+" %1$s,"+MediaLibrary.AlbumColumns.ALBUM_SORT+" %1$s,"+MediaLibrary.SongColumns.DISC_NUMBER+","+MediaLibrary.SongColumns.SONG_NUMBER,
@@ -220,7 +252,6 @@ public class MediaAdapter
 		case MediaUtils.TYPE_PLAYLIST:
 			mSource = MediaLibrary.TABLE_PLAYLISTS;
 			mFields = new String[] { MediaLibrary.PlaylistColumns.NAME };
-			mFieldKeys = null;
 			mSortEntries = new int[] { R.string.title, R.string.date_added };
 			mAdapterSortValues = new String[] { MediaLibrary.PlaylistColumns.NAME+" %1$s", MediaLibrary.PlaylistColumns._ID+" %1$s" };
 			mExpandable = true;
@@ -228,7 +259,7 @@ public class MediaAdapter
 		case MediaUtils.TYPE_GENRE:
 			mSource = MediaLibrary.TABLE_GENRES;
 			mFields = new String[] { MediaLibrary.GenreColumns._GENRE };
-			mFieldKeys = new String[] { MediaLibrary.GenreColumns._GENRE_SORT };
+			mSearchFields = new String[] { MediaLibrary.GenreColumns._GENRE_SEARCH };
 			mSortEntries = new int[] { R.string.title };
 			mAdapterSortValues = new String[] { MediaLibrary.GenreColumns._GENRE_SORT+" %1$s" };
 			break;
@@ -262,6 +293,17 @@ public class MediaAdapter
 		return column;
 	}
 
+	/**
+	 * Returns the raw first sort column for this adapter, as used in the ORDER BY
+	 * clause. Ensure {@link #mSortMode} is correctly set prior to calling this.
+	 *
+	 * @return the first column used for sorting
+	 */
+	private String getFirstSortKey() {
+		int mode = mSortMode < 0 ? ~mSortMode : mSortMode; // get current sort mode
+		return SPACE_SPLIT.split(mAdapterSortValues[mode])[0];
+	}
+
 	/**
 	 * Set whether or not the expander button should be shown in each row.
 	 * Defaults to true for playlist adapter and false for all others.
@@ -316,16 +358,14 @@ public class MediaAdapter
 
 		// include the constraint (aka: search string) if any
 		if (constraint != null && constraint.length() != 0) {
+			// Sort keys are binary and can not be searched, so we use the
+			// search keys, which ignore case and accents, if this type has any.
 			String[] needles;
 			String[] keySource;
-
-			if (mFieldKeys != null) {
-				String colKey = MediaLibrary.keyFor(constraint);
-				String spaceColKey = DatabaseUtils.getCollationKey(" ");
-				needles = colKey.split(spaceColKey);
-				keySource = mFieldKeys;
+			if (mSearchFields != null) {
+				needles = SPACE_SPLIT.split(MediaLibrary.searchKeyFor(constraint));
+				keySource = mSearchFields;
 			} else {
-				// only used for playlists, maybe we should just update the schema ?
 				needles = SPACE_SPLIT.split(constraint);
 				keySource = mFields;
 			}
@@ -371,12 +411,42 @@ public class MediaAdapter
 		return query;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 *
+	 * The returned cursor only fetched its first rows: its count may still grow
+	 * and the alphabet is built once the cursor was committed.
+	 */
 	@Override
 	public Cursor query()
+	{
+		QueryTask query = buildQuery(mProjection, false);
+		Cursor cursor = query.runPaginatedQuery(mContext);
+		return new SectionedCursor(cursor, query, getFirstSortColumn(), getFirstSortKey(), isSortDescending());
+	}
+
+	/**
+	 * Runs the query of this adapter, returning a cursor which already
+	 * holds all rows. Use this instead of {@link #query()} to walk all
+	 * rows right away. Should be called on a background thread.
+	 *
+	 * @return the cursor, may be null
+	 */
+	public Cursor queryAll()
 	{
 		return buildQuery(mProjection, false).runQuery(mContext);
 	}
 
+	/**
+	 * Builds the query used by {@link #query()} without running it.
+	 *
+	 * @return the query for the rows of this adapter
+	 */
+	QueryTask buildListQuery()
+	{
+		return buildQuery(mProjection, false);
+	}
+
 	@Override
 	public void commitQuery(Object data)
 	{
@@ -473,13 +543,19 @@ public class MediaAdapter
 	{
 		Cursor old = mCursor;
 		mCursor = cursor;
-		buildAlphabet();
+		mAlphabet.clear();
+		mCoverPrefetcher.reset();
+		mRequeryRequested = false;
+		if (cursor instanceof SectionedCursor)
+			postBuildAlphabet((SectionedCursor)cursor);
 		if (cursor == null) {
 			notifyDataSetInvalidated();
 		} else {
+			cursor.registerDataSetObserver(mCursorObserver);
 			notifyDataSetChanged();
 		}
 		if (old != null) {
+			old.unregisterDataSetObserver(mCursorObserver);
 			old.close();
 		}
 	}
@@ -507,7 +583,19 @@ public class MediaAdapter
 		}
 
 		Cursor cursor = mCursor;
-		cursor.moveToPosition(position);
+		if (!cursor.moveToPosition(position)) {
+			// The row was removed after the cursor was counted: show an
+			// empty row until the new cursor arrives.
+			holder.id = LibraryAdapter.INVALID_ID;
+			holder.title = null;
+			row.getTextView().setText(null);
+			row.getCoverView().setCover(MediaUtils.TYPE_INVALID, 0, null);
+			if (mActivity != null && !mRequeryRequested) {
+				mRequeryRequested = true;
+				mActivity.mPagerAdapter.postRequestRequery(this);
+			}
+			return row;
+		}
 		holder.id = cursor.getLong(0);
 		long cacheId = cursor.getLong(1);
 		if (mProjection.length >= 4) {
@@ -533,10 +621,36 @@ public class MediaAdapter
 		}
 
 		row.getCoverView().setCover(mCoverCacheType, cacheId, holder.title);
+		if (mCoverCacheType != MediaUtils.TYPE_INVALID)
+			mCoverPrefetcher.onBind(position, cursor.getCount());
 
 		return row;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 *
+	 * The row is read without moving the cursor used by getView(), rows
+	 * which were not fetched from the database yet are skipped.
+	 */
+	@Override
+	public boolean prefetchCover(int position)
+	{
+		Cursor cursor = mCursor;
+		if (cursor instanceof CursorWrapper)
+			cursor = ((CursorWrapper)cursor).getWrappedCursor();
+		if (!(cursor instanceof PaginatedCursor))
+			return false;
+
+		Object[] row = ((PaginatedCursor)cursor).peekRow(position);
+		if (row == null || !(row[1] instanceof Long))
+			return false;
+
+		String title = (row[2] == null ? DB_NULLSTRING_FALLBACK : row[2].toString());
+		LazyCoverView.prefetchCover(mCoverCacheType, (Long)row[1], title);
+		return true;
+	}
+
 	/**
 	 * Returns the type of the current limiter.
 	 *
@@ -617,9 +731,8 @@ public class MediaAdapter
 	public long getItemId(int position)
 	{
 		Cursor cursor = mCursor;
-		if (cursor == null || cursor.getCount() == 0)
+		if (cursor == null || !cursor.moveToPosition(position))
 			return 0;
-		cursor.moveToPosition(position);
 		return cursor.getLong(0);
 	}
 
@@ -651,6 +764,72 @@ public class MediaAdapter
 		}
 	}
 
+	/**
+	 * A cursor carrying what is needed to build the alphabet of its query
+	 */
+	private static class SectionedCursor extends CursorWrapper
+	{
+		/**
+		 * The query this cursor was created from
+		 */
+		final QueryTask query;
+		/**
+		 * The human readable first sort column, see {@link #getFirstSortColumn()}
+		 */
+		final String sortColumn;
+		/**
+		 * The first sort column as used in the query, see {@link #getFirstSortKey()}
+		 */
+		final String sortKey;
+		/**
+		 * True if the query sorts in descending order
+		 */
+		final boolean descending;
+
+		SectionedCursor(Cursor cursor, QueryTask query, String sortColumn, String sortKey, boolean descending) {
+			super(cursor);
+			this.query = query;
+			this.sortColumn = sortColumn;
+			this.sortKey = sortKey;
+			this.descending = descending;
+		}
+	}
+
+	/**
+	 * Builds the alphabet of given cursor in the background and uses it
+	 * if the cursor is still ours once done.
+	 *
+	 * @param cursor the cursor which was just committed
+	 */
+	private void postBuildAlphabet(final SectionedCursor cursor)
+	{
+		synchronized (MediaAdapter.class) {
+			if (sAlphabetHandler == null) {
+				HandlerThread thread = new HandlerThread("MediaAdapterAlphabet", Process.THREAD_PRIORITY_BACKGROUND);
+				thread.start();
+				sAlphabetHandler = new Handler(thread.getLooper());
+				sUiHandler = new Handler(Looper.getMainLooper());
+			}
+		}
+
+		sAlphabetHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				final List<SectionIndex> alphabet = buildAlphabet(cursor);
+				sUiHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (mCursor != cursor)
+							return; // a newer query was committed meanwhile
+						mAlphabet.clear();
+						mAlphabet.addAll(alphabet);
+						notifyDataSetChanged();
+					}
+				});
+			}
+		});
+	}
+
 	/**
 	 * Build alphabet for fast-scroller. Detects automatically whether we're sorting
 	 * on string-type (e.g. title or album) or integer type (e.g. year).
@@ -659,74 +838,87 @@ public class MediaAdapter
 	 * or sort by date added will yield no results as the section hints would not be
 	 * human-readable.
 	 *
-	 * <p/>Note: This clears alphabet in case current cursor is invalid.
+	 * <p/>The positions are calculated from an aggregate query which counts the rows
+	 * of each distinct sort key, so the actual result never has to be walked.
+	 * Should be called on a background thread.
+	 *
+	 * @param source the cursor to build the alphabet for
+	 * @return the alphabet, may be empty
 	 */
-	private void buildAlphabet()
+	private List<SectionIndex> buildAlphabet(SectionedCursor source)
 	{
-		mAlphabet.clear();
-
-		Cursor cursor = mCursor;
-		if(cursor == null || cursor.getCount() == 0) {
-			return;
-		}
+		List<SectionIndex> alphabet = new ArrayList<>();
 
-		String columnName = getFirstSortColumn();
-		int sortColumnIndex = cursor.getColumnIndex(columnName);
-		if(sortColumnIndex <= 0) {
-			// either projection doesn't contain this column
-			// or the column is _id (e.g. sort by date added),
-			// no point in building
-			return;
+		String columnName = source.sortColumn;
+		if (columnName.equals(BaseColumns._ID)) {
+			// sort by date added: no point in building
+			return alphabet;
 		}
 
-		cursor.moveToFirst();
+		QueryTask query = source.query;
+		String sortKey = source.sortKey;
+		String sort = sortKey + (source.descending ? " DESC" : " ASC");
+		String[] projection = { columnName, "count(*)" };
+		Cursor cursor = MediaLibrary.queryLibrary(mContext, query.table, projection, query.selection, query.selectionArgs, sortKey, sort);
+		if (cursor == null)
+			return alphabet;
 
 		SimpleDateFormat dfmt = new SimpleDateFormat("yyyy-MM-dd");
-		String lastString = null;
 		Object lastKnown = null;
-		Object next;
-		do {
-			int type = cursor.getType(sortColumnIndex);
-			switch (type) {
-				case Cursor.FIELD_TYPE_NULL:
-					next = DB_NULLSTRING_FALLBACK;
-					break;
-				case Cursor.FIELD_TYPE_INTEGER:
-					int value = cursor.getInt(sortColumnIndex);
-					if (columnName.equals(MediaLibrary.SongColumns.MTIME)) {
-						next = dfmt.format(new Date(value * 1000L));
-					} else {
-						next = value;
-					}
-					break;
-				case Cursor.FIELD_TYPE_STRING:
-					lastString = cursor.getString(sortColumnIndex);
-					lastString = lastString.trim().toUpperCase(); // normalize
-
-					// This is what AOSP's MediaStore.java:1337 does during indexing
-					if (lastString.startsWith("THE "))
-						lastString = lastString.substring(4);
-
-					if (lastString.startsWith("AN "))
-						lastString = lastString.substring(3);
-
-					if (lastString.startsWith("A "))
-						lastString = lastString.substring(2);
-
-					// Ensure that we got at least one char
-					if (lastString.length() < 1)
-						lastString = DB_NULLSTRING_FALLBACK;
-
-					next = lastString.charAt(0);
-					break;
-				default:
-					continue;
-			}
-			if (!next.equals(lastKnown)) { // new char
-				mAlphabet.add(new SectionIndex(next, cursor.getPosition()));
+		int position = 0;
+		while (cursor.moveToNext()) {
+			Object next = getSectionHint(cursor, columnName, dfmt);
+			if (next != null && !next.equals(lastKnown)) { // new char
+				alphabet.add(new SectionIndex(next, position));
 				lastKnown = next;
 			}
-		} while (cursor.moveToNext());
+			position += cursor.getInt(1);
+		}
+		cursor.close();
+		return alphabet;
+	}
+
+	/**
+	 * Returns the fast-scroller hint of the first column of the current row
+	 *
+	 * @param cursor the cursor to read from
+	 * @param columnName the name of the column
+	 * @param dfmt the format to use for timestamps
+	 * @return the hint, null if the column type can not be displayed
+	 */
+	private static Object getSectionHint(Cursor cursor, String columnName, SimpleDateFormat dfmt)
+	{
+		switch (cursor.getType(0)) {
+			case Cursor.FIELD_TYPE_NULL:
+				return DB_NULLSTRING_FALLBACK;
+			case Cursor.FIELD_TYPE_INTEGER:
+				int value = cursor.getInt(0);
+				if (columnName.equals(MediaLibrary.SongColumns.MTIME)) {
+					return dfmt.format(new Date(value * 1000L));
+				}
+				return value;
+			case Cursor.FIELD_TYPE_STRING:
+				String lastString = cursor.getString(0);
+				lastString = lastString.trim().toUpperCase(); // normalize
+
+				// This is what AOSP's MediaStore.java:1337 does during indexing
+				if (lastString.startsWith("THE "))
+					lastString = lastString.substring(4);
+
+				if (lastString.startsWith("AN "))
+					lastString = lastString.substring(3);
+
+				if (lastString.startsWith("A "))
+					lastString = lastString.substring(2);
+
+				// Ensure that we got at least one char
+				if (lastString.length() < 1)
+					lastString = DB_NULLSTRING_FALLBACK;
+
+				return lastString.charAt(0);
+			default:
+				return null;
+		}
 	}
 
 	@Override
@@ -748,7 +940,8 @@ public class MediaAdapter
 			return mCursor.getCount() - 1;
 		}
 
-		return mAlphabet.get(sectionIndex).position;
+		// the count of the cursor may still be an estimate
+		return Math.min(mAlphabet.get(sectionIndex).position, mCursor.getCount() - 1);
 	}
 
 	@Override
@@ -99,11 +99,14 @@ public class MediaUtils {
 	/**
 	 * The default sort order for media queries. First artist, then album, then
 	 * song number.
+	 * No index provides this order: it is only used together with a selection on
+	 * an id, so SQLite just sorts the songs it looked up.
 	 */
 	private static final String DEFAULT_SORT = "artist_sort,album_sort,disc_num,song_num";
 
 	/**
-	 * The default sort order for albums. First the album, then songnumber
+	 * The default sort order for albums. First the album, then songnumber.
+	 * Like DEFAULT_SORT, this is only used to sort the songs of a single item.
 	 */
 	private static final String ALBUM_SORT = "album_sort,disc_num,song_num";
 
@@ -526,11 +529,23 @@ public class MediaUtils {
 		/* make sure that the path is:
 		   -> fixed-up to point to the real mountpoint if user browsed to the mediadir symlink
 		   -> terminated with a / if it is a directory
-		   -> ended with a % for the LIKE query
 		*/
-		path = addDirEndSlash(sanitizeMediaPath(path)) + "%";
-		final String query = MediaLibrary.SongColumns.PATH+" LIKE ?";
-		String[] qargs = { path };
+		path = addDirEndSlash(sanitizeMediaPath(path));
+		String query;
+		String[] qargs;
+
+		if (path.endsWith("/")) {
+			// All directories below `path' sort between `path' and `path' with the
+			// trailing slash replaced by its successor, so this is an index range scan.
+			query = MediaLibrary.SongColumns.DIR_ID+" IN (SELECT "+MediaLibrary.DirectoryColumns._ID+" FROM "+MediaLibrary.TABLE_DIRECTORIES
+			        +" WHERE "+MediaLibrary.DirectoryColumns.PATH+">=? AND "+MediaLibrary.DirectoryColumns.PATH+"<?)";
+			qargs = new String[] { path, path.substring(0, path.length() - 1) + (char)('/' + 1) };
+		} else {
+			File parent = new File(path).getParentFile();
+			long dirId = (parent == null ? 0 : MediaLibrary.getDirectoryId(parent.getPath()));
+			query = MediaLibrary.SongColumns.DIR_ID+"="+dirId+" AND "+MediaLibrary.SongColumns.PATH+"=?";
+			qargs = new String[] { path };
+		}
 
 		QueryTask result = new QueryTask(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, projection, query, qargs, FILE_SORT);
 		result.type = TYPE_FILE;
@@ -17,6 +17,8 @@
 
 package ch.blinkenlights.android.vanilla;
 
+import ch.blinkenlights.android.medialibrary.MediaLibrary;
+
 import android.annotation.TargetApi;
 import android.app.PendingIntent;
 import android.content.Context;
@@ -423,7 +425,7 @@ public class MirrorLinkMediaBrowserService extends MediaBrowserService
 	private void runQuery(List<MediaBrowser.MediaItem> populateMe, int mediaType, MediaAdapter adapter) {
 		populateMe.clear();
 		try {
-			Cursor cursor = adapter.query();
+			Cursor cursor = adapter.queryAll();
 			Context context = getApplicationContext();
 
 			if (cursor == null) {
@@ -743,7 +745,7 @@ public class MirrorLinkMediaBrowserService extends MediaBrowserService
 	public void replaceSong(int delta, Song song) {
 	}
 
-	public void onMediaChange() {
+	public void onMediaChange(MediaLibrary.ChangeSet changes) {
 	}
 
 	public void recreate() {
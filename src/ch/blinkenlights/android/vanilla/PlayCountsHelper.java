@@ -39,14 +39,14 @@ public class PlayCountsHelper {
 
 
 	/**
-	 * Returns a sorted array list of most often listen song ids
+	 * Returns a sorted array list of most often listen song ids.
+	 * Play counts are written in batches, so very recent plays may be missing.
 	 */
 	public static ArrayList<Long> getTopSongs(Context context, int limit) {
 		ArrayList<Long> payload = new ArrayList<Long>();
-		Cursor cursor = MediaLibrary.queryLibrary(context, MediaLibrary.TABLE_SONGS, new String[]{ MediaLibrary.SongColumns._ID }, MediaLibrary.SongColumns.PLAYCOUNT+" > 0", null, MediaLibrary.SongColumns.PLAYCOUNT+" DESC");
-		while (cursor.moveToNext() && limit > 0) {
+		Cursor cursor = MediaLibrary.queryLibrary(context, MediaLibrary.TABLE_SONGS, new String[]{ MediaLibrary.SongColumns._ID }, MediaLibrary.SongColumns.PLAYCOUNT+" > 0", null, MediaLibrary.SongColumns.PLAYCOUNT+" DESC", limit);
+		while (cursor.moveToNext()) {
 			payload.add(cursor.getLong(0));
-			limit--;
 		}
 		cursor.close();
 		return payload;
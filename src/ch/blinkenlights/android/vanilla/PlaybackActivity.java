@@ -23,6 +23,8 @@
 
 package ch.blinkenlights.android.vanilla;
 
+import ch.blinkenlights.android.medialibrary.MediaLibrary;
+
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -387,8 +389,10 @@ public abstract class PlaybackActivity extends Activity
 
 	/**
 	 * Called when the content of the media store has changed.
+	 *
+	 * @param changes describes what was changed
 	 */
-	public void onMediaChange()
+	public void onMediaChange(MediaLibrary.ChangeSet changes)
 	{
 	}
 
@@ -37,7 +37,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
-import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.hardware.Sensor;
@@ -46,6 +45,7 @@ import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
+import android.os.BatteryManager;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -67,6 +67,7 @@ import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 
 
 /**
@@ -208,6 +209,15 @@ public final class PlaybackService extends Service
 	 * Defer entering deep sleep for this time (in ms).
 	 */
 	private static final int SLEEP_STATE_DELAY = 60000;
+	/**
+	 * Run cover cache maintenance after being asleep for this time (in ms).
+	 */
+	private static final int COVER_MAINTENANCE_DELAY = 300000;
+	/**
+	 * Write out buffered play counts after this time (in ms), even if
+	 * no further song gets counted.
+	 */
+	private static final int PLAY_COUNTS_FLUSH_DELAY = 300000;
 	/**
 	 * Save the current playlist state on queue changes after this time (in ms).
 	 */
@@ -318,6 +328,10 @@ public final class PlaybackService extends Service
 
 	private Looper mLooper;
 	private Handler mHandler;
+	/**
+	 * Background thread running the cover cache maintenance, created on demand
+	 */
+	private HandlerThread mCoverMaintenanceThread;
 	VanillaMediaPlayer mMediaPlayer;
 	VanillaMediaPlayer mPreparedMediaPlayer;
 	private boolean mMediaPlayerInitialized;
@@ -482,7 +496,7 @@ public final class PlaybackService extends Service
 		filter.addAction(Intent.ACTION_SCREEN_ON);
 		registerReceiver(mReceiver, filter);
 
-		MediaLibrary.registerContentObserver(mObserver);
+		MediaLibrary.registerLibraryObserver(mObserver);
 
 		mRemoteControlClient = new RemoteControl().getClient(this);
 		mRemoteControlClient.initializeRemote();
@@ -576,6 +590,11 @@ public final class PlaybackService extends Service
 		sInstance = null;
 
 		mLooper.quit();
+		if (mCoverMaintenanceThread != null)
+			mCoverMaintenanceThread.quit();
+
+		// write out play counts which are still buffered
+		MediaLibrary.flushPlayCounts(getApplicationContext());
 
 		// clear the notification
 		stopForeground(true);
@@ -732,6 +751,45 @@ public final class PlaybackService extends Service
 			mWakeLock.release();
 	}
 
+	/**
+	 * Queues a cleanup of the cover cache
+	 */
+	private void scheduleCoverMaintenance()
+	{
+		if (mHandler.hasMessages(MSG_COVER_MAINTENANCE))
+			return; // do not delay an already queued run
+
+		mHandler.sendEmptyMessageDelayed(MSG_COVER_MAINTENANCE, COVER_MAINTENANCE_DELAY);
+	}
+
+	/**
+	 * Runs the cover cache maintenance on a low priority thread, so
+	 * it does not block the playback handler.
+	 */
+	private void runCoverMaintenance()
+	{
+		if (mCoverMaintenanceThread == null) {
+			mCoverMaintenanceThread = new HandlerThread("CoverMaintenance", Process.THREAD_PRIORITY_BACKGROUND);
+			mCoverMaintenanceThread.start();
+		}
+		final Context context = getApplicationContext();
+		new Handler(mCoverMaintenanceThread.getLooper()).post(new Runnable() {
+			@Override
+			public void run() {
+				CoverCache.runMaintenance(context);
+			}
+		});
+	}
+
+	/**
+	 * Returns true if the device is connected to a power source
+	 */
+	private boolean isCharging()
+	{
+		Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+	}
+
 	/**
 	 * Destroys any currently prepared MediaPlayer and
 	 * re-creates a newone if needed.
@@ -1010,6 +1068,10 @@ public final class PlaybackService extends Service
 				stopForeground(removeNotification);
 				updateNotification();
 
+				// The process may be killed while paused: write out play counts now
+				mHandler.removeMessages(MSG_FLUSH_PLAY_COUNTS);
+				mHandler.sendEmptyMessage(MSG_FLUSH_PLAY_COUNTS);
+
 				// Delay entering deep sleep. This allows the headset
 				// button to continue to function for a short period after
 				// pausing and keeps the AudioFX session open
@@ -1441,7 +1503,7 @@ public final class PlaybackService extends Service
 		}
 	}
 
-	public void onMediaChange()
+	public void onMediaChange(MediaLibrary.ChangeSet changes)
 	{
 		if (MediaUtils.isSongAvailable(getApplicationContext())) {
 			if ((mState & FLAG_NO_MEDIA) != 0)
@@ -1452,7 +1514,7 @@ public final class PlaybackService extends Service
 
 		ArrayList<TimelineCallback> list = sCallbacks;
 		for (int i = list.size(); --i != -1; )
-			list.get(i).onMediaChange();
+			list.get(i).onMediaChange(changes);
 
 	}
 
@@ -1497,6 +1559,14 @@ public final class PlaybackService extends Service
 	private static final int MSG_SKIP_BROKEN_SONG = 15;
 	private static final int MSG_GAPLESS_UPDATE = 16;
 	private static final int MSG_UPDATE_PLAYCOUNTS = 17;
+	/**
+	 * Cleans up the cover cache on a background thread
+	 */
+	private static final int MSG_COVER_MAINTENANCE = 18;
+	/**
+	 * Writes the buffered play and skip counts to the media library
+	 */
+	private static final int MSG_FLUSH_PLAY_COUNTS = 19;
 
 	@Override
 	public boolean handleMessage(Message message)
@@ -1543,6 +1613,13 @@ public final class PlaybackService extends Service
 			break;
 		case MSG_ENTER_SLEEP_STATE:
 			enterSleepState();
+			scheduleCoverMaintenance();
+			break;
+		case MSG_COVER_MAINTENANCE:
+			// Only do this while nobody is listening and we are not running on battery
+			if ((mState & FLAG_PLAYING) == 0 && isCharging()) {
+				runCoverMaintenance();
+			}
 			break;
 		case MSG_SKIP_BROKEN_SONG:
 			/* Advance to next song if the user didn't already change.
@@ -1561,10 +1638,15 @@ public final class PlaybackService extends Service
 		case MSG_GAPLESS_UPDATE:
 			triggerGaplessUpdate();
 			break;
+		case MSG_FLUSH_PLAY_COUNTS:
+			MediaLibrary.flushPlayCounts(getApplicationContext());
+			break;
 		case MSG_UPDATE_PLAYCOUNTS:
 			Song song = (Song)message.obj;
 			boolean played = message.arg1 == 1;
 			PlayCountsHelper.countSong(getApplicationContext(), song, played);
+			if (!mHandler.hasMessages(MSG_FLUSH_PLAY_COUNTS))
+				mHandler.sendEmptyMessageDelayed(MSG_FLUSH_PLAY_COUNTS, PLAY_COUNTS_FLUSH_DELAY);
 			// Update the playcounts playlist in ~20% of all cases if enabled
 			if (mAutoPlPlaycounts > 0 && Math.random() > 0.8) {
 				Context context = getApplicationContext();
@@ -1664,22 +1746,25 @@ public final class PlaybackService extends Service
 	 */
 	public int deleteMedia(int type, long id)
 	{
-		int count = 0;
+		HashSet<Long> deleted = new HashSet<Long>();
 		String[] projection = new String [] { MediaLibrary.SongColumns._ID, MediaLibrary.SongColumns.PATH };
 		Cursor cursor = MediaUtils.buildQuery(type, id, projection, null).runQuery(getApplicationContext());
 
 		if (cursor != null) {
 			while (cursor.moveToNext()) {
-				if (new File(cursor.getString(1)).delete()) {
-					long songId = cursor.getLong(0);
-					MediaLibrary.removeSong(getApplicationContext(), songId);
-					mTimeline.removeSong(songId);
-					++count;
-				}
+				if (new File(cursor.getString(1)).delete())
+					deleted.add(cursor.getLong(0));
 			}
 			cursor.close();
 		}
-		return count;
+
+		// Drop all deleted songs at once: One transaction, one orphan
+		// cleanup and one change notification, regardless of the count.
+		if (!deleted.isEmpty()) {
+			MediaLibrary.removeSongs(getApplicationContext(), deleted);
+			mTimeline.removeSongs(deleted);
+		}
+		return deleted.size();
 	}
 
 	/**
@@ -1868,12 +1953,14 @@ public final class PlaybackService extends Service
 			list.get(i).onPositionInfoChanged();
 	}
 
-	private final ContentObserver mObserver = new ContentObserver(null) {
+	private final MediaLibrary.LibraryObserver mObserver = new MediaLibrary.LibraryObserver() {
 		@Override
-		public void onChange(boolean selfChange)
+		public void onLibraryChange(MediaLibrary.ChangeSet changes)
 		{
-			MediaUtils.onMediaChange();
-			onMediaChange();
+			// The cached song list only depends on the set of songs
+			if (changes.affects(MediaLibrary.TABLE_SONGS, MediaLibrary.ChangeSet.INSERT | MediaLibrary.ChangeSet.DELETE))
+				MediaUtils.onMediaChange();
+			onMediaChange(changes);
 		}
 	};
 
@@ -41,7 +41,7 @@ import android.widget.TextView;
 /**
  * CursorAdapter backed by MediaLibrary playlists.
  */
-public class PlaylistAdapter extends CursorAdapter implements Handler.Callback {
+public class PlaylistAdapter extends CursorAdapter implements Handler.Callback, CoverPrefetcher.Client {
 
 	private static final String[] PROJECTION = new String[] {
 		MediaLibrary.PlaylistSongColumns._ID,
@@ -56,6 +56,7 @@ public class PlaylistAdapter extends CursorAdapter implements Handler.Callback {
 	private final Handler mWorkerHandler;
 	private final Handler mUiHandler;
 	private final LayoutInflater mInflater;
+	private final CoverPrefetcher mCoverPrefetcher = new CoverPrefetcher(this);
 
 	private long mPlaylistId;
 
@@ -116,6 +117,31 @@ public class PlaylistAdapter extends CursorAdapter implements Handler.Callback {
 
 		LazyCoverView cover = dview.getCoverView();
 		cover.setCover(MediaUtils.TYPE_ALBUM, cursor.getLong(4), null);
+		mCoverPrefetcher.onBind(cursor.getPosition(), cursor.getCount());
+	}
+
+	/**
+	 * Prefetch the album cover of a row which is about to become visible.
+	 */
+	@Override
+	public boolean prefetchCover(int position)
+	{
+		Cursor cursor = getCursor();
+		if (cursor == null)
+			return false;
+
+		int oldPosition = cursor.getPosition();
+		if (cursor.moveToPosition(position))
+			LazyCoverView.prefetchCover(MediaUtils.TYPE_ALBUM, cursor.getLong(4), null);
+		cursor.moveToPosition(oldPosition);
+		return true;
+	}
+
+	@Override
+	public void changeCursor(Cursor cursor)
+	{
+		mCoverPrefetcher.reset();
+		super.changeCursor(cursor);
 	}
 
 	/**
@@ -102,10 +102,6 @@ public class PreferencesMediaLibrary extends Fragment implements View.OnClickLis
 	 * Set if we are in the edit dialog
 	 */
 	private boolean mIsEditingDirectories;
-	/**
-	 * The original state of our media folders.
-	 */
-	private String mInitialMediaFolders;
 
 	@Override
 	public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
@@ -154,19 +150,9 @@ public class PreferencesMediaLibrary extends Fragment implements View.OnClickLis
 				});
 			}}), 0, 200);
 
-		// We got freshly created and user didn't have a chance
-		// to edit anything: remember this state
-		if (mInitialMediaFolders == null)
-			mInitialMediaFolders = getMediaFoldersDescription();
-
-		// Returned from edit dialog
-		if (mIsEditingDirectories) {
-			mIsEditingDirectories = false;
-			// trigger a scan if user changed its preferences
-			// in the edit dialog
-			if (!mInitialMediaFolders.equals(getMediaFoldersDescription()))
-				mFullScanPending = true;
-		}
+		// Returned from edit dialog: changed folders were already
+		// applied to the library by MediaLibrary.setPreferences()
+		mIsEditingDirectories = false;
 
 		updatePreferences(null);
 	}
@@ -182,7 +168,6 @@ public class PreferencesMediaLibrary extends Fragment implements View.OnClickLis
 		// User exited this view -> scan if needed
 		if (mFullScanPending && !mIsEditingDirectories) {
 			MediaLibrary.startLibraryScan(getActivity(), true, true);
-			mInitialMediaFolders = null;
 			mFullScanPending = false;
 		}
 	}
@@ -200,6 +185,9 @@ public class PreferencesMediaLibrary extends Fragment implements View.OnClickLis
 				editButtonPressed(view);
 				break;
 			case R.id.media_scan_group_albums:
+				// albums are re-keyed from the existing library, no rescan needed
+				updatePreferences((CheckBox)view);
+				break;
 			case R.id.media_scan_force_bastp:
 				confirmUpdatePreferences((CheckBox)view);
 				break;
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2017 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.vanilla;
+
+import ch.blinkenlights.android.medialibrary.QueryPlanCheck;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Runs {@link QueryPlanCheck} on every query shape used by the library
+ * views, the queue and the scanner. Only available in debug builds:
+ *
+ * adb shell am startservice -n ch.blinkenlights.android.vanilla/.QueryPlanCheckService
+ *
+ * The result is written to the log, the service crashes if problems were found.
+ */
+public class QueryPlanCheckService extends IntentService {
+	/**
+	 * Adapter types and the limiters they may be opened with
+	 */
+	private static final int[][] LIMITER_TYPES = {
+		{ MediaUtils.TYPE_ARTIST, MediaUtils.TYPE_GENRE },
+		{ MediaUtils.TYPE_ALBARTIST, MediaUtils.TYPE_GENRE },
+		{ MediaUtils.TYPE_COMPOSER, MediaUtils.TYPE_GENRE },
+		{ MediaUtils.TYPE_ALBUM, MediaUtils.TYPE_ARTIST, MediaUtils.TYPE_ALBARTIST, MediaUtils.TYPE_COMPOSER, MediaUtils.TYPE_GENRE },
+		{ MediaUtils.TYPE_SONG, MediaUtils.TYPE_ARTIST, MediaUtils.TYPE_ALBARTIST, MediaUtils.TYPE_COMPOSER, MediaUtils.TYPE_ALBUM, MediaUtils.TYPE_GENRE },
+		{ MediaUtils.TYPE_PLAYLIST },
+		{ MediaUtils.TYPE_GENRE },
+	};
+	/**
+	 * Filters to check each adapter with: none and a search
+	 */
+	private static final String[] FILTERS = { null, "1 2" };
+
+	public QueryPlanCheckService() {
+		super("QueryPlanCheckService");
+	}
+
+	@Override
+	protected void onHandleIntent(Intent intent) {
+		if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) == 0) {
+			Log.w("VanillaMusic", "query plan check is only available in debug builds");
+			return;
+		}
+
+		QueryPlanCheck check = new QueryPlanCheck(this, QueryPlanCheck.DEFAULT_SONGS);
+		try {
+			for (int[] types : LIMITER_TYPES) {
+				checkAdapter(check, types[0], null);
+				for (int i = 1; i < types.length; i++) {
+					String selection = MediaUtils.buildQuery(types[i], QueryPlanCheck.SAMPLE_ID, null, null).selection;
+					checkAdapter(check, types[0], new Limiter(types[i], new String[] { "check" }, selection));
+				}
+			}
+
+			// Queries used to enqueue or play a single item.
+			for (int type = 0; type != MediaUtils.TYPE_FILE; type++) {
+				if (type == MediaUtils.TYPE_PLAYLIST)
+					continue;
+				checkTask(check, MediaUtils.buildQuery(type, QueryPlanCheck.SAMPLE_ID, Song.FILLED_PROJECTION, null));
+			}
+			checkTask(check, MediaUtils.buildPlaylistQuery(QueryPlanCheck.SAMPLE_ID, Song.FILLED_PLAYLIST_PROJECTION));
+
+			check.checkMaintenance();
+		} finally {
+			check.close(this);
+		}
+
+		ArrayList<String> problems = check.getProblems();
+		if (problems.size() != 0) {
+			for (String problem : problems) {
+				Log.e("VanillaMusic", "query plan check: "+problem);
+			}
+			throw new IllegalStateException("query plan check found "+problems.size()+" problems, see log");
+		}
+		Log.i("VanillaMusic", "query plan check passed");
+	}
+
+	/**
+	 * Checks the list and song queries of an adapter in all sort modes
+	 *
+	 * @param check the check to use
+	 * @param type the type of the adapter, one of MediaUtils.TYPE_*
+	 * @param limiter the limiter to use, may be null
+	 */
+	private void checkAdapter(QueryPlanCheck check, int type, Limiter limiter) {
+		MediaAdapter adapter = new MediaAdapter(this, type, limiter, null);
+		// Song queries of playlists and genres are not built by the adapter.
+		boolean songs = type != MediaUtils.TYPE_PLAYLIST && type != MediaUtils.TYPE_GENRE;
+
+		for (String filter : FILTERS) {
+			adapter.setFilter(filter);
+			for (int mode = 0; mode != adapter.getSortEntries().length; mode++) {
+				for (int sortMode : new int[] { mode, ~mode }) {
+					adapter.setSortMode(sortMode);
+					QueryTask query = adapter.buildListQuery();
+					check.checkPaginatedQuery(query.table, query.projection, query.selection, query.selectionArgs, query.sortOrder);
+					if (songs)
+						checkTask(check, adapter.buildSongQuery(Song.FILLED_PROJECTION));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks a single query task
+	 *
+	 * @param check the check to use
+	 * @param query the query to check
+	 */
+	private void checkTask(QueryPlanCheck check, QueryTask query) {
+		check.checkQuery(query.table, query.projection, query.selection, query.selectionArgs, query.sortOrder);
+	}
+}
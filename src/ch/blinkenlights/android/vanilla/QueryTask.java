@@ -64,10 +64,22 @@ public class QueryTask {
 
 	/**
 	 * Run the query. Should be called on a background thread.
+	 * Identical queries are answered from the library query cache
+	 * until the library changes.
 	 *
 	 * @param context The Context to use
 	 */
 	public Cursor runQuery(Context context) {
-		return MediaLibrary.queryLibrary(context, table, projection, selection, selectionArgs, sortOrder);
+		return MediaLibrary.queryLibraryCached(context, table, projection, selection, selectionArgs, sortOrder);
+	}
+
+	/**
+	 * Run the query, returning a cursor which fetches its rows on demand.
+	 * Should be called on a background thread.
+	 *
+	 * @param context The Context to use
+	 */
+	public Cursor runPaginatedQuery(Context context) {
+		return MediaLibrary.queryLibraryPaginated(context, table, projection, selection, selectionArgs, sortOrder);
 	}
 }
@@ -31,7 +31,7 @@ import android.text.style.ForegroundColorSpan;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
 
-public class ShowQueueAdapter extends BaseAdapter {
+public class ShowQueueAdapter extends BaseAdapter implements CoverPrefetcher.Client {
 	/**
 	 * The resource to pass to the inflater
 	 */
@@ -52,6 +52,10 @@ public class ShowQueueAdapter extends BaseAdapter {
 	 * The playback service reference to query
 	 */
 	private PlaybackService mService;
+	/**
+	 * Warms the covers of rows which are about to become visible
+	 */
+	private final CoverPrefetcher mCoverPrefetcher = new CoverPrefetcher(this);
 
 	public ShowQueueAdapter(Context context, int resource) {
 		super();
@@ -145,10 +149,25 @@ public class ShowQueueAdapter extends BaseAdapter {
 			row.getTextView().setText(sb);
 			row.getCoverView().setCover(MediaUtils.TYPE_ALBUM, song.albumId, null);
 		}
+		mCoverPrefetcher.onBind(position, mSongCount);
 
 		row.highlightRow(position == mHighlightRow);
 
 		return row;
 	}
 
+	/**
+	 * Prefetches the album cover of the song at `pos'
+	 *
+	 * @param pos the position to prefetch
+	 * @return always true, songs of the queue are never loaded later
+	 */
+	@Override
+	public boolean prefetchCover(int pos) {
+		Song song = getItem(pos);
+		if (song.isFilled())
+			LazyCoverView.prefetchCover(MediaUtils.TYPE_ALBUM, song.albumId, null);
+		return true;
+	}
+
 }
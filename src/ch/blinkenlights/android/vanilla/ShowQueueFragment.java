@@ -17,6 +17,8 @@
 
 package ch.blinkenlights.android.vanilla;
 
+import ch.blinkenlights.android.medialibrary.MediaLibrary;
+
 import android.annotation.SuppressLint;
 import android.app.Fragment;
 import android.content.Context;
@@ -230,7 +232,7 @@ public class ShowQueueFragment extends Fragment
 	// Unused Callbacks of TimelineCallback
 	public void onPositionInfoChanged() {
 	}
-	public void onMediaChange() {
+	public void onMediaChange(MediaLibrary.ChangeSet changes) {
 	}
 	public void recreate() {
 	}
@@ -36,7 +36,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
-import java.util.ListIterator;
+import java.util.Set;
 import junit.framework.Assert;
 
 /**
@@ -926,20 +926,36 @@ public final class SongTimeline {
 	 * @param id The MediaStore id of the song to remove.
 	 */
 	public void removeSong(long id)
+	{
+		removeSongs(Collections.singleton(id));
+	}
+
+	/**
+	 * Remove all songs with the given ids from the timeline in a single pass.
+	 *
+	 * @param ids The MediaStore ids of the songs to remove.
+	 */
+	public void removeSongs(Set<Long> ids)
 	{
 		synchronized (this) {
 			saveActiveSongs();
 
+			// Compact the list in place: removing items one by one
+			// would shift the tail of the list for every match.
 			ArrayList<Song> songs = mSongs;
-			ListIterator<Song> it = songs.listIterator();
-			while (it.hasNext()) {
-				int i = it.nextIndex();
-				if (Song.getId(it.next()) == id) {
+			int kept = 0;
+			int removedBefore = 0;
+			for (int i = 0, size = songs.size(); i != size; ++i) {
+				Song song = songs.get(i);
+				if (ids.contains(Song.getId(song))) {
 					if (i < mCurrentPos)
-						--mCurrentPos;
-					it.remove();
+						++removedBefore;
+				} else {
+					songs.set(kept++, song);
 				}
 			}
+			songs.subList(kept, songs.size()).clear();
+			mCurrentPos -= removedBefore;
 
 			if (getSong(1) == null)
 				mCurrentPos = 0;
@@ -17,6 +17,8 @@
 
 package ch.blinkenlights.android.vanilla;
 
+import ch.blinkenlights.android.medialibrary.MediaLibrary;
+
 public interface TimelineCallback {
 	/**
 	 * Called when the song timeline position/size has changed
@@ -24,8 +26,10 @@ public interface TimelineCallback {
 	void onPositionInfoChanged();
 	/**
 	 * The library contents changed and should be invalidated
+	 *
+	 * @param changes describes what was changed
 	 */
-	void onMediaChange();
+	void onMediaChange(MediaLibrary.ChangeSet changes);
 	/**
 	 * Notification about a change in the timeline
 	 */